@@ -7,10 +7,20 @@
  * getNextMove will be invoked by a thread that will run for a specified period
  * of time before having the terminate flag set by the GameController.  Once the
  * terminate flag is set, the getNextMove function will be given a short amount
- * of time to exit.  If it does not, a Exception will be invoked.
+ * of time to exit.  If it does not, a Exception will be invoked.  The same thread
+ * makes all of an AI's moves in a game, so thread-local caches carry over between
+ * moves.
+ *
+ * Before each call the GameController also sets deadline and target, so that an AI
+ * can plan its search instead of only reacting to the terminate flag.  timeLeft,
+ * timeToTarget, pastTarget and timeUp check them cheaply.
+ *
+ * An AI that keeps state between turns can also implement GameListener to be told
+ * about every move as it is played.
  * 
  * @author Leonid Shamis
  * @see RandomAI, StupidAI, MonteCarloAI
+ * @see GameListener
  */
 public abstract class AIModule
 {
@@ -28,11 +38,53 @@ public abstract class AIModule
 	/**
 	 * The GameController will read the value of this field after running the
 	 * getNextMove function for a period of time.  getNextMove should set this value
-	 * before it returns.
+	 * before it returns.  It is volatile because the GameController may read it from
+	 * another thread while getNextMove is still running.
 	 *
 	 * @see getNextMove
+	 * @see publish
 	 */
-	public int chosenMove = -1;
+	public volatile int chosenMove = -1;
+	/// The AI's best line so far this move, or null if it has not published one.
+	private volatile SearchResult result = null;
+	/// Time at which the terminate flag will be set, in System.nanoTime terms.
+	/**
+	 * The GameController sets this before running getNextMove.  With a fixed time per
+	 * move this is the end of that time; under a clock it is the end of the most time
+	 * the time control lets one move take.  Past this point getNextMove has only the
+	 * short grace period to return, so it should not start any work it cannot abandon.
+	 *
+	 * @see TimeControl#limit
+	 *
+	 * @see timeLeft
+	 * @see timeUp
+	 */
+	public long deadline = Long.MAX_VALUE;
+	/// Time by which getNextMove should aim to stop starting new work, in System.nanoTime terms.
+	/**
+	 * Halfway to the deadline; under a clock this is the share of the clock the time
+	 * control allots to the move.  An AI that searches in iterations of growing cost
+	 * should not start one after this, since it is unlikely to finish, but may run on
+	 * past it in a critical position.
+	 *
+	 * @see pastTarget
+	 * @see timeToTarget
+	 */
+	public long target = Long.MAX_VALUE;
+	/// Time added to this AI's clock after each move, in nanoseconds; 0 with a fixed time per move.
+	public long increment = 0;
+	/// Time at which the current move started, in System.nanoTime terms.
+	long started = 0;
+	/// Time at which getNextMove last returned, in System.nanoTime terms.
+	long finished = 0;
+	/// CPU time used by the last call to getNextMove in nanoseconds, or -1 if unknown.
+	long cpuUsed = -1;
+	/// Time at which terminate was set during the current move, or 0 if it wasn't.
+	volatile long stoppedAt = 0;
+	/// Number of calls to timeUp until it next reads the clock.
+	private int checksLeft = 0;
+	/// Calls to timeUp between readings of the clock.
+	private static final int CHECK_INTERVAL = 256;
 
 	/// Determines the best move to be played for the active player.
 	/**
@@ -42,9 +94,85 @@ public abstract class AIModule
 	 * (customizable through the command line) and will then set the terminate flag.
 	 * At that point, the function should set chosenMove and return.
 	 *
+	 * The GameController reuses the game object between turns, so an AI that wants
+	 * to keep a position around after returning must copy it.
+	 *
 	 * @param game Current state of the game.
 	 * @see terminate
 	 * @see chosenMove
 	 */
 	public abstract void getNextMove(final GameStateModule game);
+
+	/// Sets deadline and target for a move that starts now.
+	/**
+	 * Called by the GameController just before getNextMove.
+	 *
+	 * @param limit Time until the terminate flag is set, in nanoseconds.
+	 * @param allocation Time the AI should plan to spend on the move, in nanoseconds.
+	 * @param increment Time added to the clock after the move, in nanoseconds.
+	 */
+	final void startClock(final long limit, final long allocation, final long increment)
+	{
+		final long now = System.nanoTime();
+		started = now;
+		stoppedAt = 0;
+		result = null;
+		deadline = now + limit;
+		target = now + allocation;
+		this.increment = increment;
+		checksLeft = 0;
+	}
+
+	/// Publishes the AI's best line so far and makes its move the chosen one.
+	/**
+	 * May be called from getNextMove whenever the best line changes.  The result can be
+	 * read with getResult from any thread without locking.
+	 *
+	 * @param best The new best line.
+	 */
+	protected final void publish(final SearchResult best)
+	{
+		result = best;
+		chosenMove = best.getMove();
+	}
+
+	/// Returns the last result published during the current or last move, or null if none was.
+	public final SearchResult getResult()
+	{
+		return result;
+	}
+
+	/// Returns the time left until the deadline in nanoseconds, negative once it has passed.
+	protected final long timeLeft()
+	{
+		return deadline - System.nanoTime();
+	}
+
+	/// Returns the time left until the target in nanoseconds, negative once it has passed.
+	protected final long timeToTarget()
+	{
+		return target - System.nanoTime();
+	}
+
+	/// Returns whether the target has passed or the terminate flag is set.
+	protected final boolean pastTarget()
+	{
+		return terminate || System.nanoTime() >= target;
+	}
+
+	/// Returns whether getNextMove should return now.
+	/**
+	 * True once the terminate flag is set or the deadline has passed.  Cheap enough
+	 * for hot loops: the clock is only read every few hundred calls, and the flag
+	 * covers the calls in between.
+	 */
+	protected final boolean timeUp()
+	{
+		if(terminate)
+			return true;
+		if(--checksLeft > 0)
+			return false;
+		checksLeft = CHECK_INTERVAL;
+		return System.nanoTime() >= deadline;
+	}
 }
@@ -0,0 +1,425 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/// Entry point for re-analysing every position of stored games.
+/**
+ * Reads a binary game record (see GameRecordReader), replays each game and asks one
+ * AIModule for its move in every position before a move was played, with a fixed
+ * budget per position.  Games are analysed in parallel on all cores, each worker
+ * keeping its own instance of the AI; an AI that implements GameListener follows each
+ * game move by move instead of starting over in every position.
+ *
+ * The output is a tab separated text file with one line per position:
+ * game number (from 0, in record order), ply, the player that moved, the column they
+ * played, the AI's best column, the AI's score and depth from its last SearchResult
+ * ("-" if it published none), and 1 if the played move matched the AI's choice or 0
+ * otherwise.  All lines of a game are written together once it is finished, so an
+ * interrupted run can be picked up with -resume: games that are already complete in
+ * the output are skipped and anything after the last complete game is discarded.
+ *
+ * At the end, how often each player's moves agreed with the AI in the games analysed
+ * by this run is printed, along with how many of those games stopped without a result
+ * (GameRecordWriter.UNFINISHED), such as games lost by forfeit.  Their moves are
+ * analysed like any others, but their results are not counted as wins.  Run with --help for the command line options.
+ *
+ * @see GameRecordWriter
+ * @see Tournament
+ */
+public class Analysis
+{
+	/// First line of the output file.
+	private static final String HEADER = "# game\tply\tplayer\tplayed\tbest\tscore\tdepth\tagree";
+
+	/// The analysis of one game.
+	private static final class Game
+	{
+		final int index;
+		final int first;
+		final int second;
+		final int[] moves;
+		/// Whether the record holds a result for the game.
+		final boolean finished;
+		/// One line per position, filled in by analyse.
+		final StringBuilder lines = new StringBuilder();
+		/// Positions where each player's move agreed with the AI.
+		final int[] agreed = new int[2];
+
+		Game(final int index, final int first, final int second, final int[] moves, final boolean finished)
+		{
+			this.index = index;
+			this.first = first;
+			this.second = second;
+			this.moves = moves;
+			this.finished = finished;
+		}
+	}
+
+	private final String engine;
+	/// Time budget per position in nanoseconds.
+	private final long budget;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	/// Sets the AIs' terminate flags when their budgets run out.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+	/// Each worker's instance of the AI.
+	private final ThreadLocal<AIModule> instances = new ThreadLocal<AIModule>();
+	/// Games analysed by run that stopped without a result.
+	private int unfinished = 0;
+
+	/// Primary Constructor.
+	/**
+	 * @param engine The name of the AIModule class to analyse with.
+	 * @param budgetMillis Time budget per position in milliseconds.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public Analysis(final String engine, final int budgetMillis, final int width, final int height,
+					final int winLength)
+	{
+		this.engine = engine;
+		this.budget = budgetMillis * 1000000L;
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+	}
+
+	/// Analyses every position of one game, on a worker thread.
+	private void analyse(final Game game) throws Exception
+	{
+		AIModule ai = instances.get();
+		if(ai == null)
+		{
+			ai = (AIModule) Class.forName(engine).getDeclaredConstructor().newInstance();
+			instances.set(ai);
+		}
+		final AIModule player = ai;
+		final GameListener listener = ai instanceof GameListener ? (GameListener) ai : null;
+
+		final GameStateModule state = Main.createGame(width, height, winLength);
+		if(listener != null)
+			listener.onGameStart(state.copy());
+		for(int ply = 0; ply < game.moves.length; ply++)
+		{
+			final int mover = state.getActivePlayer();
+			final int played = game.moves[ply];
+
+			player.terminate = false;
+			player.chosenMove = -1;
+			player.startClock(budget, budget, 0);
+			final TimerWheel.Timeout stop = timer.schedule(budget, new Runnable()
+			{
+				public void run()
+				{
+					player.terminate = true;
+				}
+			});
+			try
+			{
+				player.getNextMove(state.copy());
+			}
+			finally
+			{
+				stop.cancel();
+				player.terminate = true;
+			}
+
+			int best = player.chosenMove;
+			for(int j = 0; j < width && !state.canMakeMove(best); j++)
+				best = j;
+			final SearchResult result = player.getResult();
+			final int agree = best == played ? 1 : 0;
+			game.agreed[mover - 1] += agree;
+			game.lines.append(game.index).append('\t').append(ply).append('\t').append(mover)
+				.append('\t').append(played).append('\t').append(best)
+				.append('\t').append(result == null ? "-" : Integer.toString(result.getScore()))
+				.append('\t').append(result == null ? "-" : Integer.toString(result.getDepth()))
+				.append('\t').append(agree).append('\n');
+
+			state.makeMove(played);
+			if(listener != null)
+				listener.onMovePlayed(played, mover);
+		}
+		if(listener != null)
+			listener.onGameEnd(state.isGameOver() ? state.getWinner() : 0);
+	}
+
+	/// Finds the games already complete in an output file and cuts off anything after them.
+	/**
+	 * Every game's lines are written in one go, so only the last game in the file can
+	 * be incomplete.
+	 *
+	 * @param output The output of an earlier run.
+	 * @param reader The record that was being analysed.
+	 * @return Whether each game of the record is complete.
+	 */
+	private static BitSet resume(final File output, final GameRecordReader reader) throws IOException
+	{
+		// Number of moves in each game of the record
+		final List<Integer> lengths = new ArrayList<Integer>();
+		reader.reset();
+		while(reader.next())
+			lengths.add(reader.getMoveCount());
+		reader.reset();
+
+		final BitSet done = new BitSet();
+		long kept = 0;
+		try(RandomAccessFile file = new RandomAccessFile(output, "rw"))
+		{
+			final Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+			long offset = 0;
+			String line;
+			while((line = file.readLine()) != null)
+			{
+				// A line without its newline was cut short
+				final boolean complete = file.getFilePointer() > offset + line.length();
+				offset = file.getFilePointer();
+				if(!complete)
+					break;
+				if(kept == 0)
+				{
+					if(!line.equals(HEADER))
+						throw new IOException(output + " is not the output of an analysis");
+					kept = offset;
+					continue;
+				}
+				final int game;
+				try
+				{
+					game = Integer.parseInt(line.substring(0, line.indexOf('\t')));
+				}
+				catch(RuntimeException e)
+				{
+					break;
+				}
+				if(game >= lengths.size())
+					break;
+				final int lines = seen.containsKey(game) ? seen.get(game) + 1 : 1;
+				seen.put(game, lines);
+				if(lines == lengths.get(game))
+				{
+					done.set(game);
+					kept = offset;
+				}
+			}
+			file.setLength(kept);
+		}
+		return done;
+	}
+
+	/// Analyses the games of a record.
+	/**
+	 * @param reader The record to analyse.
+	 * @param output Where to write the analysis.
+	 * @param resume Whether to carry on from an earlier run's output instead of overwriting it.
+	 * @param threads Number of games analysed at once.
+	 * @return Positions where each player's moves agreed with the AI, and the number of
+	 *         positions each played, indexed by the record's player numbers.
+	 */
+	public int[][] run(final GameRecordReader reader, final File output, final boolean resume, final int threads)
+		throws Exception
+	{
+		final BitSet done = resume && output.length() > 0 ? resume(output, reader) : new BitSet();
+		final int players = reader.getPlayers().length;
+		final int[][] totals = new int[2][players];
+
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		// Keep a bounded number of games in memory at once
+		final Semaphore inFlight = new Semaphore(4 * threads);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		try(Writer out = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(output, !done.isEmpty()), StandardCharsets.UTF_8)))
+		{
+			if(done.isEmpty())
+				out.write(HEADER + "\n");
+			int index = 0;
+			for(reader.reset(); reader.next() && error.get() == null; index++)
+			{
+				if(done.get(index))
+					continue;
+				final int[] moves = new int[reader.getMoveCount()];
+				for(int i = 0; i < moves.length; i++)
+					moves[i] = reader.getMove(i);
+				final Game game = new Game(index, reader.getPlayer1(), reader.getPlayer2(), moves,
+										   reader.getResult() != GameRecordWriter.UNFINISHED);
+
+				inFlight.acquire();
+				workers.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							analyse(game);
+							synchronized(out)
+							{
+								out.write(game.lines.toString());
+								out.flush();
+								totals[0][game.first] += game.agreed[0];
+								totals[0][game.second] += game.agreed[1];
+								totals[1][game.first] += (game.moves.length + 1) / 2;
+								totals[1][game.second] += game.moves.length / 2;
+								if(!game.finished)
+									unfinished++;
+							}
+						}
+						catch(Exception e)
+						{
+							error.compareAndSet(null, e);
+						}
+						finally
+						{
+							inFlight.release();
+						}
+					}
+				});
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			if(error.get() != null)
+				throw error.get();
+		}
+		finally
+		{
+			workers.shutdownNow();
+			timer.stop();
+		}
+		return totals;
+	}
+
+	/// Returns the number of games analysed by run that stopped without a result.
+	public int getUnfinishedCount()
+	{
+		return unfinished;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-games [file]\" : Binary game record to analyse");
+		System.out.println("      Example: -games games.c4r");
+		System.out.println("    \"-ai [AI Class Name]\" : The AI to analyse with");
+		System.out.println("      Example: -ai DeepConnect");
+		System.out.println("    \"-t [Time in ms]\" : Time budget per position");
+		System.out.println("      Example: -t 100");
+		System.out.println("    \"-o [file]\" : Where to write the analysis (default: analysis.tsv)");
+		System.out.println("      Example: -o analysis.tsv");
+		System.out.println("    \"-resume\" : Carry on from the games already in the output");
+		System.out.println("    \"-threads [int]\" : Number of games analysed at once (default: all cores)");
+		System.out.println("      Example: -threads 4");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String games = null;
+		String engine = null;
+		int time = 100;
+		String output = "analysis.tsv";
+		boolean resume = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-games"))
+					games = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-ai"))
+				{
+					engine = args[i + 1];
+					Class.forName(engine);
+				}
+				else if(args[i].equalsIgnoreCase("-t"))
+				{
+					time = Integer.parseInt(args[i + 1]);
+					if(time <= 0)
+						throw new IllegalArgumentException("AI think time must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-resume"))
+				{
+					resume = true;
+					// Compensate for i += 2
+					i--;
+				}
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(games == null || engine == null)
+				throw new IllegalArgumentException("A game record and an AI are needed.");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final GameRecordReader reader = new GameRecordReader(new File(games));
+			final Analysis analysis = new Analysis(engine, time, reader.getWidth(), reader.getHeight(),
+												   reader.getWinLength());
+			final long start = System.nanoTime();
+			final int[][] totals = analysis.run(reader, new File(output), resume, threads);
+			final double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("%-16s %9s %9s %7s%n", "Player", "Positions", "Agreed", "Agree%");
+			int positions = 0;
+			for(int p = 0; p < totals[0].length; p++)
+			{
+				positions += totals[1][p];
+				if(totals[1][p] > 0)
+					System.out.printf("%-16s %9d %9d %6.1f%%%n", reader.getPlayer(p), totals[1][p], totals[0][p],
+									  100.0 * totals[0][p] / totals[1][p]);
+			}
+			System.out.printf("%d positions in %.1f s%n", positions, seconds);
+			if(analysis.getUnfinishedCount() > 0)
+				System.out.printf("%d games stopped without a result (forfeit or loss on time)%n",
+								  analysis.getUnfinishedCount());
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
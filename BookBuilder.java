@@ -0,0 +1,359 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Entry point for building an opening book.
+/**
+ * Lists every position reachable in at most a given number of plies, keeping one of
+ * each pair of mirror images, and searches each one with an AI for a fixed budget on
+ * all cores.  The best moves are written, sorted by canonical key, as an OpeningBook.
+ * Positions that are already won or drawn are left out.
+ *
+ * Each worker keeps its own instance of the AI, so an AI with a transposition table
+ * carries what it learns from one position to the next.  Run with --help for the
+ * command line options.
+ *
+ * @see OpeningBook
+ */
+public class BookBuilder
+{
+	/// A position to search.
+	private static final class Position
+	{
+		final long key;
+		final long mirrorKey;
+		final int[] moves;
+		/// The result, filled in by search.
+		int move;
+		int depth;
+		int score;
+		boolean proven;
+
+		Position(final long key, final long mirrorKey, final int[] moves)
+		{
+			this.key = key;
+			this.mirrorKey = mirrorKey;
+			this.moves = moves;
+		}
+	}
+
+	private final String engine;
+	/// Time budget per position in nanoseconds.
+	private final long budget;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	/// Sets the AIs' terminate flags when their budgets run out.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+	/// Each worker's instance of the AI.
+	private final ThreadLocal<AIModule> instances = new ThreadLocal<AIModule>();
+
+	/// Primary Constructor.
+	/**
+	 * @param engine The name of the AIModule class to search with.
+	 * @param budgetMillis Time budget per position in milliseconds.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public BookBuilder(final String engine, final int budgetMillis, final int width, final int height,
+					   final int winLength)
+	{
+		this.engine = engine;
+		this.budget = budgetMillis * 1000000L;
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		// Search every position rather than answering from an existing book
+		System.setProperty(OpeningBook.FILE_PROPERTY, "");
+	}
+
+	/// Lists the positions up to the given number of plies, one per canonical key.
+	private List<Position> enumerate(final int plies)
+	{
+		final Map<Long, Position> positions = new HashMap<Long, Position>();
+		enumerate(Main.createGame(width, height, winLength), 0L, 0L, new int[plies], 0, plies, positions);
+		final List<Position> list = new ArrayList<Position>(positions.values());
+		Collections.sort(list, new Comparator<Position>()
+		{
+			public int compare(final Position a, final Position b)
+			{
+				return Long.compare(PositionKey.canonical(a.key, a.mirrorKey),
+									PositionKey.canonical(b.key, b.mirrorKey));
+			}
+		});
+		return list;
+	}
+
+	/// Adds the positions below game to positions, depth first.
+	private void enumerate(final GameStateModule game, final long key, final long mirrorKey, final int[] moves,
+						   final int ply, final int plies, final Map<Long, Position> positions)
+	{
+		final long canonical = PositionKey.canonical(key, mirrorKey);
+		if(game.isGameOver() || positions.containsKey(canonical))
+			return;
+		positions.put(canonical, new Position(key, mirrorKey, Arrays.copyOf(moves, ply)));
+		if(ply == plies)
+			return;
+
+		final int mover = game.getActivePlayer();
+		for(int x = 0; x < width; x++)
+			if(game.canMakeMove(x))
+			{
+				final int y = game.getHeightAt(x);
+				game.makeMove(x);
+				moves[ply] = x;
+				enumerate(game, key ^ PositionKey.tile(mover, x, y),
+						  mirrorKey ^ PositionKey.tile(mover, PositionKey.mirror(x, width), y), moves, ply + 1, plies,
+						  positions);
+				game.unMakeMove();
+			}
+	}
+
+	/// Searches one position, on a worker thread.
+	private void search(final Position position) throws Exception
+	{
+		AIModule ai = instances.get();
+		if(ai == null)
+		{
+			ai = (AIModule) Class.forName(engine).getDeclaredConstructor().newInstance();
+			instances.set(ai);
+		}
+		final AIModule player = ai;
+
+		final GameStateModule game = Main.createGame(width, height, winLength);
+		for(final int column : position.moves)
+			game.makeMove(column);
+		if(player instanceof GameListener)
+		{
+			// Start the AI's own copy of the game over, since positions come in any order
+			final GameListener listener = (GameListener) player;
+			final GameStateModule replay = Main.createGame(width, height, winLength);
+			listener.onGameStart(replay.copy());
+			for(final int column : position.moves)
+			{
+				final int mover = replay.getActivePlayer();
+				replay.makeMove(column);
+				listener.onMovePlayed(column, mover);
+			}
+		}
+
+		player.terminate = false;
+		player.chosenMove = -1;
+		player.startClock(budget, budget, 0);
+		final TimerWheel.Timeout stop = timer.schedule(budget, new Runnable()
+		{
+			public void run()
+			{
+				player.terminate = true;
+			}
+		});
+		try
+		{
+			player.getNextMove(game.copy());
+		}
+		finally
+		{
+			stop.cancel();
+			player.terminate = true;
+		}
+
+		int move = player.chosenMove;
+		for(int j = 0; j < width && !game.canMakeMove(move); j++)
+			move = j;
+		// Store the move for the position with the canonical key
+		if(position.key != PositionKey.canonical(position.key, position.mirrorKey))
+			move = PositionKey.mirror(move, width);
+		final SearchResult result = player.getResult();
+		position.move = move;
+		position.depth = result == null ? 0 : Math.min(result.getDepth(), ~OpeningBook.PROVEN & 0xFF);
+		position.score = result == null ? 0 : Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, result.getScore()));
+		position.proven = result != null && result.isProven();
+	}
+
+	/// Builds a book.
+	/**
+	 * @param output The file to write.
+	 * @param plies The number of plies the book covers.
+	 * @param threads Number of positions searched at once.
+	 * @param log Where to print progress, or null.
+	 * @return The number of positions in the book.
+	 * @throws Exception If a search or the output fails.
+	 */
+	public int build(final File output, final int plies, final int threads, final PrintStream log) throws Exception
+	{
+		final List<Position> positions = enumerate(plies);
+		if(log != null)
+			log.println(positions.size() + " positions to search");
+
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try
+		{
+			final List<Future<?>> pending = new ArrayList<Future<?>>();
+			for(final Position position : positions)
+				pending.add(workers.submit(new Callable<Object>()
+				{
+					public Object call() throws Exception
+					{
+						search(position);
+						return null;
+					}
+				}));
+			for(int i = 0; i < pending.size(); i++)
+			{
+				pending.get(i).get();
+				if(log != null && (i + 1) % 1000 == 0)
+					log.println((i + 1) + " positions searched");
+			}
+		}
+		finally
+		{
+			workers.shutdownNow();
+			timer.stop();
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(OpeningBook.HEADER_SIZE
+													  + positions.size() * OpeningBook.ENTRY_SIZE);
+		buffer.put(OpeningBook.MAGIC).put((byte) OpeningBook.VERSION).put((byte) width).put((byte) height)
+			.put((byte) winLength).put((byte) plies).putInt(positions.size());
+		for(final Position position : positions)
+			buffer.putLong(PositionKey.canonical(position.key, position.mirrorKey)).put((byte) position.move)
+				.put((byte) (position.depth | (position.proven ? OpeningBook.PROVEN : 0)))
+				.putShort((short) position.score);
+		buffer.flip();
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+											   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while(buffer.hasRemaining())
+				out.write(buffer);
+		}
+		return positions.size();
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-ai [AI Class Name]\" : The AI to search with (default: DeepConnect)");
+		System.out.println("      Example: -ai DeepConnect");
+		System.out.println("    \"-plies [int]\" : Cover every position up to this many plies (default: 6)");
+		System.out.println("      Example: -plies 8");
+		System.out.println("    \"-t [Time in ms]\" : Time budget per position (default: 1000)");
+		System.out.println("      Example: -t 5000");
+		System.out.println("    \"-w [int]\" : Set the width of the game board");
+		System.out.println("      Example: -w 7");
+		System.out.println("    \"-h [int]\" : Set the height of the game board");
+		System.out.println("      Example: -h 6");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-o [file]\" : Where to write the book (default: book.c4b)");
+		System.out.println("      Example: -o book.c4b");
+		System.out.println("    \"-threads [int]\" : Number of positions searched at once (default: all cores)");
+		System.out.println("      Example: -threads 4");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String engine = "DeepConnect";
+		int plies = 6;
+		int time = 1000;
+		int width = 7;
+		int height = 6;
+		int winLength = 4;
+		String output = OpeningBook.DEFAULT_FILE;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-ai"))
+				{
+					engine = args[i + 1];
+					Class.forName(engine);
+				}
+				else if(args[i].equalsIgnoreCase("-plies"))
+				{
+					plies = Integer.parseInt(args[i + 1]);
+					if(plies < 1 || plies > 255)
+						throw new IllegalArgumentException("Ply count must be from 1 to 255");
+				}
+				else if(args[i].equalsIgnoreCase("-t"))
+				{
+					time = Integer.parseInt(args[i + 1]);
+					if(time <= 0)
+						throw new IllegalArgumentException("AI think time must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-w"))
+					width = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-h"))
+					height = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-k"))
+					winLength = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(width < 4 || height < 4)
+				throw new IllegalArgumentException("Widths and heights must be at least four.");
+			if(winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Invalid win length.");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final long start = System.nanoTime();
+			final int size = new BookBuilder(engine, time, width, height, winLength)
+				.build(new File(output), plies, threads, System.out);
+			System.out.printf("Wrote %d positions to %s in %.1f s%n", size, output,
+							  (System.nanoTime() - start) / 1e9);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,1003 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.util.*;
+
+/// Entry point for checking the optimized code against simple references.
+/**
+ * Each check plays random games or writes small files and compares what the fast
+ * code does with a slow version that is easy to see is right:
+ * - boards: the bitboard game states (GameState_Opt7x6, GameState_Opt8x8) against
+ *   GameState_General, and all of them against a scan of the board for lines, for
+ *   every win length, over random games with moves taken back.
+ * - lines: the open line counts of EvaluatedGameState, over a bitboard and over
+ *   GameState_General, against counting every line of the board.
+ * - keys: PositionKey's keys, kept up to date move by move, against the keys of the
+ *   mirrored game, and isSymmetric against comparing the board with its mirror.
+ * - table: TranspositionTable entries, their replacement, a file kept between runs,
+ *   a file with another tag or a damaged header, and sharing through acquire.
+ * - records: game records written, appended to and cut short, read back, and the
+ *   recorder's handling of a game that stopped before it was over.
+ * - book: an OpeningBook built by BookBuilder, probed with every position it covers
+ *   and their mirror images.
+ * - network: a NeuralNetwork saved and loaded, its header, the accumulators of a
+ *   NeuralEvaluator after make and unmake against rebuilding them over 20000 random
+ *   games, and batched against single evaluation.
+ * - endgame: EndgameTable files from RetrogradeSolver against a brute-force negamax
+ *   of every position of small boards.
+ * - symmetry: the nodes DeepConnect's tree has with mirrored moves skipped, against
+ *   counting them directly and against the full tree, in the opening.
+ *
+ * A passing check prints "ok" and what it covered; a failing one prints its first
+ * few mismatches.  Run with --help for the command line options.  Exits with 1 if a
+ * check failed.
+ */
+public class Checks
+{
+	/// Names of the checks, in the order they run.
+	private static final String[] CHECKS = {"boards", "lines", "keys", "table", "records", "book", "network",
+											"endgame", "symmetry"};
+	/// Most mismatches a check keeps to print.
+	private static final int MAX_REPORTED = 10;
+
+	private final Random random;
+	private final int threads;
+	/// Mismatches found by the check running now.
+	private final List<String> failures = new ArrayList<String>();
+	private int failureCount = 0;
+
+	/// Primary Constructor.
+	/**
+	 * @param seed Seed for the random games.
+	 * @param threads Number of threads the solver may use.
+	 */
+	public Checks(final long seed, final int threads)
+	{
+		random = new Random(seed);
+		this.threads = threads;
+	}
+
+	/// Runs one check.
+	/**
+	 * @param name The name of the check.
+	 * @param log Where to print the outcome.
+	 * @return Whether the check passed.
+	 * @throws Exception If the check could not run, which also counts as a failure.
+	 */
+	public boolean run(final String name, final PrintStream log) throws Exception
+	{
+		failures.clear();
+		failureCount = 0;
+		final long start = System.nanoTime();
+		final String covered;
+		if(name.equals("boards"))
+			covered = boards();
+		else if(name.equals("lines"))
+			covered = lines();
+		else if(name.equals("keys"))
+			covered = keys();
+		else if(name.equals("table"))
+			covered = table();
+		else if(name.equals("records"))
+			covered = records();
+		else if(name.equals("book"))
+			covered = book();
+		else if(name.equals("network"))
+			covered = network();
+		else if(name.equals("endgame"))
+			covered = endgame();
+		else if(name.equals("symmetry"))
+			covered = symmetry();
+		else
+			throw new IllegalArgumentException("Unknown check: " + name);
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		if(failureCount == 0)
+		{
+			log.printf("ok      %-9s %s (%.1f s)%n", name, covered, seconds);
+			return true;
+		}
+		log.printf("FAILED  %-9s %d mismatches%n", name, failureCount);
+		for(final String failure : failures)
+			log.println("        " + failure);
+		return false;
+	}
+
+	/// Records a mismatch if a condition does not hold.
+	/**
+	 * @return The condition.
+	 */
+	private boolean expect(final boolean condition, final String message)
+	{
+		if(!condition)
+		{
+			if(failureCount < MAX_REPORTED)
+				failures.add(message);
+			failureCount++;
+		}
+		return condition;
+	}
+
+	/// Plays a random legal move, or returns -1 if there is none.
+	private int randomMove(final GameStateModule game)
+	{
+		final int width = game.getWidth();
+		final int start = random.nextInt(width);
+		for(int i = 0; i < width; i++)
+		{
+			final int x = (start + i) % width;
+			if(game.canMakeMove(x))
+				return x;
+		}
+		return -1;
+	}
+
+	/// Returns the coin at a tile, reading only tiles below the top of the column.
+	private static int coin(final GameStateModule game, final int x, final int y)
+	{
+		return y < game.getHeightAt(x) ? game.getAt(x, y) : 0;
+	}
+
+	/// Finds a player with winLength in a row by looking at every line of the board.
+	/**
+	 * @return The player, or 0 if neither has a line.
+	 */
+	private static int scanWinner(final GameStateModule game)
+	{
+		final int width = game.getWidth();
+		final int height = game.getHeight();
+		final int length = game.getWinLength();
+		final int[][] directions = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+		for(final int[] d : directions)
+			for(int x = 0; x < width; x++)
+				for(int y = 0; y < height; y++)
+				{
+					final int endX = x + (length - 1) * d[0];
+					final int endY = y + (length - 1) * d[1];
+					if(endX >= width || endY < 0 || endY >= height)
+						continue;
+					final int owner = coin(game, x, y);
+					int i = 1;
+					while(owner != 0 && i < length && coin(game, x + i * d[0], y + i * d[1]) == owner)
+						i++;
+					if(owner != 0 && i == length)
+						return owner;
+				}
+		return 0;
+	}
+
+	/// Describes a game by its size and moves, for mismatch messages.
+	private static String describe(final GameStateModule game, final List<Integer> moves)
+	{
+		return game.getWidth() + "x" + game.getHeight() + "/" + game.getWinLength() + " after " + moves;
+	}
+
+	/// Compares the bitboard game states with GameState_General and a scan of the board.
+	private String boards()
+	{
+		final int[][] sizes = {{7, 6}, {8, 8}, {5, 4}, {9, 7}};
+		int games = 0;
+		long moves = 0;
+		for(final int[] size : sizes)
+			for(int k = 2; k <= Math.max(size[0], size[1]); k++)
+				for(int g = 0; g < 200; g++, games++)
+				{
+					final GameStateModule fast = Main.createGame(size[0], size[1], k);
+					final GameStateModule general = new GameState_General(size[0], size[1], k);
+					final List<Integer> played = new ArrayList<Integer>();
+					// Keep going a while after the game ends, taking back the winning move
+					for(int step = 0; step < 3 * size[0] * size[1]; step++, moves++)
+					{
+						if(played.size() > 0 && (general.isGameOver() || random.nextInt(5) == 0))
+						{
+							fast.unMakeMove();
+							general.unMakeMove();
+							played.remove(played.size() - 1);
+						}
+						else
+						{
+							final int x = randomMove(general);
+							if(x < 0)
+								break;
+							fast.makeMove(x);
+							general.makeMove(x);
+							played.add(x);
+						}
+						if(!compare(fast, general, played))
+							break;
+					}
+					final GameStateModule copy = fast.copy();
+					expect(same(copy, general), "copy differs: " + describe(general, played));
+					final GameStateModule target = Main.createGame(size[0], size[1], k);
+					expect(same(fast.copyInto(target), general), "copyInto differs: " + describe(general, played));
+				}
+		return games + " games, " + moves + " moves and unmoves";
+	}
+
+	/// Compares a game state with GameState_General and the scan; returns false at the first mismatch.
+	private boolean compare(final GameStateModule fast, final GameStateModule general, final List<Integer> played)
+	{
+		final int scanned = scanWinner(general);
+		final boolean full = general.getCoins() == general.getWidth() * general.getHeight();
+		if(!expect(general.isGameOver() == (scanned != 0 || full), "general game over wrong: "
+				   + describe(general, played)))
+			return false;
+		if(!expect(fast.isGameOver() == general.isGameOver(), fast.getClass().getName() + " game over wrong: "
+				   + describe(general, played)))
+			return false;
+		if(general.isGameOver())
+		{
+			if(!expect(general.getWinner() == scanned, "general winner " + general.getWinner() + ", scan "
+					   + scanned + ": " + describe(general, played)))
+				return false;
+			if(!expect(fast.getWinner() == scanned, fast.getClass().getName() + " winner " + fast.getWinner()
+					   + ", scan " + scanned + ": " + describe(general, played)))
+				return false;
+		}
+		return expect(same(fast, general), fast.getClass().getName() + " board differs: "
+					  + describe(general, played));
+	}
+
+	/// Returns whether two game states hold the same position.
+	private static boolean same(final GameStateModule a, final GameStateModule b)
+	{
+		if(a.getCoins() != b.getCoins() || a.isGameOver() != b.isGameOver()
+		   || (!a.isGameOver() && a.getActivePlayer() != b.getActivePlayer()) || a.getWidth() != b.getWidth()
+		   || a.getHeight() != b.getHeight() || a.getWinLength() != b.getWinLength())
+			return false;
+		for(int x = 0; x < a.getWidth(); x++)
+		{
+			if(a.getHeightAt(x) != b.getHeightAt(x) || a.canMakeMove(x) != b.canMakeMove(x))
+				return false;
+			for(int y = 0; y < a.getHeightAt(x); y++)
+				if(a.getAt(x, y) != b.getAt(x, y))
+					return false;
+		}
+		return true;
+	}
+
+	/// Counts the lines open to each player by the number of their coins in them.
+	/**
+	 * @return Counts indexed by (player - 1) * (winLength + 1) + coins.
+	 */
+	private static int[] countOpenLines(final GameStateModule game)
+	{
+		final int width = game.getWidth();
+		final int height = game.getHeight();
+		final int length = game.getWinLength();
+		final int[] open = new int[2 * (length + 1)];
+		final int[][] directions = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+		for(final int[] d : directions)
+			for(int x = 0; x < width; x++)
+				for(int y = 0; y < height; y++)
+				{
+					final int endX = x + (length - 1) * d[0];
+					final int endY = y + (length - 1) * d[1];
+					if(endX >= width || endY < 0 || endY >= height)
+						continue;
+					final int[] coins = new int[3];
+					for(int i = 0; i < length; i++)
+						coins[coin(game, x + i * d[0], y + i * d[1])]++;
+					if(coins[2] == 0)
+						open[coins[1]]++;
+					if(coins[1] == 0)
+						open[length + 1 + coins[2]]++;
+				}
+		return open;
+	}
+
+	/// Compares EvaluatedGameState's line counts with counting every line.
+	private String lines()
+	{
+		final int[][] sizes = {{7, 6, 4}, {8, 8, 5}, {5, 4, 3}, {9, 7, 4}};
+		int games = 0;
+		long positions = 0;
+		for(final int[] size : sizes)
+			for(int g = 0; g < 400; g++, games++)
+			{
+				// Every other game over GameState_General rather than a bitboard
+				final GameStateModule inner = g % 2 == 0 ? Main.createGame(size[0], size[1], size[2])
+					: new GameState_General(size[0], size[1], size[2]);
+				final EvaluatedGameState state = new EvaluatedGameState(inner);
+				final List<Integer> played = new ArrayList<Integer>();
+				while(!state.isGameOver())
+				{
+					if(played.size() > 0 && random.nextInt(4) == 0)
+					{
+						state.unMakeMove();
+						played.remove(played.size() - 1);
+					}
+					else
+					{
+						final int x = randomMove(state);
+						state.makeMove(x);
+						played.add(x);
+					}
+					positions++;
+					final int[] open = countOpenLines(state);
+					boolean matches = true;
+					for(int p = 1; p <= 2; p++)
+						for(int c = 0; c <= size[2]; c++)
+							matches &= state.getOpenLines(p, c) == open[(p - 1) * (size[2] + 1) + c];
+					if(!expect(matches, "open lines differ over " + inner.getClass().getName() + ": "
+							   + describe(state, played)))
+						break;
+				}
+			}
+		return games + " games, " + positions + " positions";
+	}
+
+	/// Compares PositionKey's keys with those of the mirrored game.
+	private String keys()
+	{
+		final int[][] sizes = {{7, 6}, {8, 8}, {6, 5}};
+		int games = 0;
+		long positions = 0;
+		int symmetric = 0;
+		for(final int[] size : sizes)
+			for(int g = 0; g < 500; g++, games++)
+			{
+				final GameStateModule game = Main.createGame(size[0], size[1], 4);
+				final GameStateModule mirrored = Main.createGame(size[0], size[1], 4);
+				final List<Integer> played = new ArrayList<Integer>();
+				long key = 0L;
+				long mirrorKey = 0L;
+				// Half the games answer every move with its mirror image for a while
+				final int echoes = g % 2 == 0 ? random.nextInt(size[0] * size[1] / 2) : 0;
+				while(!game.isGameOver())
+				{
+					int x = randomMove(game);
+					if(played.size() % 2 == 1 && played.size() < echoes)
+					{
+						final int echo = PositionKey.mirror(played.get(played.size() - 1), size[0]);
+						if(game.canMakeMove(echo))
+							x = echo;
+					}
+					final int mover = game.getActivePlayer();
+					final int y = game.getHeightAt(x);
+					key ^= PositionKey.tile(mover, x, y);
+					mirrorKey ^= PositionKey.tile(mover, PositionKey.mirror(x, size[0]), y);
+					game.makeMove(x);
+					mirrored.makeMove(PositionKey.mirror(x, size[0]));
+					played.add(x);
+					positions++;
+
+					expect(key == PositionKey.key(game) && mirrorKey == PositionKey.mirrorKey(game),
+						   "incremental keys differ: " + describe(game, played));
+					expect(PositionKey.key(mirrored) == mirrorKey && PositionKey.mirrorKey(mirrored) == key,
+						   "mirror keys differ from the mirrored game's keys: " + describe(game, played));
+					final boolean isMirror = same(game, mirrored);
+					if(isMirror)
+						symmetric++;
+					expect(PositionKey.isSymmetric(game) == isMirror, "isSymmetric wrong: " + describe(game, played));
+					expect((key == mirrorKey) == isMirror, "keys of a position and its mirror "
+						   + (isMirror ? "differ" : "collide") + ": " + describe(game, played));
+					final int last = PositionKey.lastColumn(game, key, mirrorKey);
+					expect(last == (isMirror ? (size[0] - 1) / 2 : size[0] - 1), "lastColumn wrong: "
+						   + describe(game, played));
+				}
+			}
+		return games + " games, " + positions + " positions, " + symmetric + " of them symmetric";
+	}
+
+	/// Makes a temporary file that is deleted on exit.
+	private static File temporary(final String suffix) throws IOException
+	{
+		final File file = File.createTempFile("checks", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/// Checks TranspositionTable entries, files and sharing.
+	private String table() throws IOException
+	{
+		// Entries and replacement
+		final TranspositionTable memory = new TranspositionTable(12);
+		final long key = random.nextLong();
+		expect(memory.probe(key, 0) == TranspositionTable.MISSING, "empty table has an entry");
+		memory.store(key, 5, 123);
+		expect(memory.probe(key, 5) == 123 && memory.probe(key, 3) == 123, "stored entry not found");
+		expect(memory.probe(key, 6) == TranspositionTable.MISSING, "entry used for a deeper search");
+		memory.store(key, 3, 456);
+		expect(memory.probe(key, 5) == 123, "deeper entry replaced by a shallower one");
+		memory.store(key, 7, -789);
+		expect(memory.probe(key, 7) == -789, "deeper entry did not replace a shallower one");
+		expect(memory.probe(key ^ 1, 0) == TranspositionTable.MISSING, "entry found under another key");
+		memory.clear();
+		expect(memory.probe(key, 0) == TranspositionTable.MISSING, "entry left after clear");
+
+		// A file kept between runs
+		final File file = temporary(".c4tt");
+		final long[] keys = new long[2000];
+		final int[] expected = new int[keys.length];
+		final int bits = 10;
+		TranspositionTable table = new TranspositionTable(file, bits, 7, 6, 4, 42L);
+		expect(!table.isRestored(), "new file restored");
+		for(int i = 0; i < keys.length; i++)
+		{
+			keys[i] = random.nextLong();
+			table.store(keys[i], random.nextInt(20), random.nextInt(4001) - 2000);
+		}
+		for(int i = 0; i < keys.length; i++)
+			expected[i] = table.probe(keys[i], 0);
+		boolean locked = false;
+		try
+		{
+			new TranspositionTable(file, bits, 7, 6, 4, 42L).close();
+		}
+		catch(IOException e)
+		{
+			locked = true;
+		}
+		expect(locked, "file opened twice");
+		table.close();
+
+		table = new TranspositionTable(file, bits, 7, 6, 4, 42L);
+		expect(table.isRestored(), "file not restored");
+		int kept = 0;
+		for(int i = 0; i < keys.length; i++)
+		{
+			expect(table.probe(keys[i], 0) == expected[i], "restored entry differs");
+			if(expected[i] != TranspositionTable.MISSING)
+				kept++;
+		}
+		table.close();
+
+		table = new TranspositionTable(file, bits, 7, 6, 4, 43L);
+		expect(!table.isRestored(), "file with another evaluation tag restored");
+		for(int i = 0; i < keys.length; i++)
+			expect(table.probe(keys[i], 0) == TranspositionTable.MISSING, "entry kept under another tag");
+		table.close();
+
+		// A damaged header throws the contents away
+		table = new TranspositionTable(file, bits, 7, 6, 4, 42L);
+		table.store(keys[0], 3, 1);
+		table.close();
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.seek(TranspositionTable.HEADER_SIZE - 1);
+			final int last = raf.read();
+			raf.seek(TranspositionTable.HEADER_SIZE - 1);
+			raf.write(last ^ 1);
+		}
+		table = new TranspositionTable(file, bits, 7, 6, 4, 42L);
+		expect(!table.isRestored(), "file with a damaged header restored");
+		expect(table.probe(keys[0], 0) == TranspositionTable.MISSING, "entry kept from a damaged file");
+		table.close();
+
+		// Sharing through acquire
+		final TranspositionTable shared = TranspositionTable.acquire(null, 7, 6, 4, 1L);
+		expect(TranspositionTable.acquire(null, 7, 6, 4, 1L) == shared, "acquire made a second table");
+		TranspositionTable.release(shared);
+		TranspositionTable.release(shared);
+		final TranspositionTable sharedFile = TranspositionTable.acquire(file, 7, 6, 4, 1L);
+		expect(TranspositionTable.acquire(file, 7, 6, 4, 1L) == sharedFile, "acquire opened the file twice");
+		TranspositionTable.release(sharedFile);
+		locked = false;
+		try
+		{
+			new TranspositionTable(file, bits, 7, 6, 4, 1L).close();
+		}
+		catch(IOException e)
+		{
+			locked = true;
+		}
+		expect(locked, "file unlocked while a search still uses it");
+		TranspositionTable.release(sharedFile);
+		try
+		{
+			new TranspositionTable(file, bits, 7, 6, 4, 1L).close();
+		}
+		catch(IOException e)
+		{
+			expect(false, "file still locked after every search released it");
+		}
+		return keys.length + " entries, " + kept + " kept across a reopen";
+	}
+
+	/// A game as written to a record, to compare with what is read back.
+	private static final class RecordedGame
+	{
+		final int first;
+		final int second;
+		final int result;
+		final int[] moves;
+
+		RecordedGame(final int first, final int second, final int result, final int[] moves)
+		{
+			this.first = first;
+			this.second = second;
+			this.result = result;
+			this.moves = moves;
+		}
+	}
+
+	/// Plays a random game, stopping early if stopAt is smaller than its length.
+	private RecordedGame randomRecordedGame(final int stopAt)
+	{
+		final GameStateModule game = Main.createGame(7, 6, 4);
+		final int[] moves = new int[42];
+		int count = 0;
+		while(!game.isGameOver() && count < stopAt)
+		{
+			final int x = randomMove(game);
+			game.makeMove(x);
+			moves[count++] = x;
+		}
+		final int result = game.isGameOver() ? game.getWinner() : GameRecordWriter.UNFINISHED;
+		return new RecordedGame(random.nextInt(3), random.nextInt(3), result, Arrays.copyOf(moves, count));
+	}
+
+	/// Writes, appends to and cuts short a game record and reads it back.
+	private String records() throws IOException
+	{
+		final File file = temporary(".c4r");
+		file.delete();
+		final String[] players = {"DeepConnect", "PuctAI", "MonteCarloAI"};
+		final List<RecordedGame> written = new ArrayList<RecordedGame>();
+		for(int run = 0; run < 2; run++)
+		{
+			final GameRecordWriter writer = new GameRecordWriter(file, 7, 6, 4, players);
+			for(int g = 0; g < 300; g++)
+			{
+				final RecordedGame game = randomRecordedGame(random.nextInt(8) == 0 ? random.nextInt(42) : 42);
+				writer.write(game.first, game.second, game.result, game.moves, game.moves.length);
+				written.add(game);
+			}
+			writer.close();
+		}
+
+		// A run killed in the middle of a game leaves part of it behind
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.seek(raf.length());
+			raf.write(new byte[] {0, 1, 1, 20, 0x33});
+		}
+		final GameRecordReader cut = new GameRecordReader(file);
+		int read = 0;
+		while(cut.next())
+			read++;
+		expect(read == written.size(), "reader did not stop before the game cut short");
+
+		// The writer drops it, and the recorder stores a game that stopped early as unfinished
+		final GameRecordWriter writer = new GameRecordWriter(file, 7, 6, 4, players);
+		final GameListener recorder = writer.recorder(2, 1);
+		for(final boolean forfeit : new boolean[] {true, false})
+		{
+			final GameStateModule game = Main.createGame(7, 6, 4);
+			recorder.onGameStart(game.copy());
+			final int[] moves = new int[42];
+			int count = 0;
+			while(!game.isGameOver() && !(forfeit && count == 9))
+			{
+				final int mover = game.getActivePlayer();
+				final int x = randomMove(game);
+				game.makeMove(x);
+				moves[count++] = x;
+				recorder.onMovePlayed(x, mover);
+			}
+			// A forfeit is reported as a win for the player who did not forfeit
+			recorder.onGameEnd(game.isGameOver() ? game.getWinner() : 2);
+			written.add(new RecordedGame(2, 1, game.isGameOver() ? game.getWinner() : GameRecordWriter.UNFINISHED,
+										 Arrays.copyOf(moves, count)));
+		}
+		writer.close();
+
+		int unfinished = 0;
+		final GameRecordReader reader = new GameRecordReader(file);
+		expect(Arrays.equals(reader.getPlayers(), players), "players differ");
+		expect(reader.getWidth() == 7 && reader.getHeight() == 6 && reader.getWinLength() == 4,
+			   "board size differs");
+		int index = 0;
+		while(reader.next())
+		{
+			if(!expect(index < written.size(), "more games read than written"))
+				break;
+			final RecordedGame game = written.get(index);
+			boolean matches = reader.getPlayer1() == game.first && reader.getPlayer2() == game.second
+				&& reader.getResult() == game.result && reader.getMoveCount() == game.moves.length;
+			for(int i = 0; matches && i < game.moves.length; i++)
+				matches = reader.getMove(i) == game.moves[i];
+			expect(matches, "game " + index + " differs");
+			if(reader.getResult() == GameRecordWriter.UNFINISHED)
+				unfinished++;
+			final GameStateModule replay = Main.createGame(7, 6, 4);
+			reader.replay(replay, reader.getMoveCount());
+			expect(replay.getCoins() == game.moves.length, "replay of game " + index + " differs");
+			index++;
+		}
+		expect(index == written.size(), "read " + index + " games of " + written.size());
+		return written.size() + " games, " + unfinished + " unfinished";
+	}
+
+	/// Builds a small opening book and probes it with every position it covers.
+	private String book() throws Exception
+	{
+		final File file = temporary(".c4b");
+		final int plies = 4;
+		final int size = new BookBuilder("RandomAI", 1, 7, 6, 4).build(file, plies, threads, null);
+		final OpeningBook book = new OpeningBook(file);
+		expect(book.size() == size, "book holds " + book.size() + " of " + size + " positions");
+		expect(book.getPlies() == plies && book.getWidth() == 7 && book.getHeight() == 6 && book.getWinLength() == 4,
+			   "book header differs");
+
+		final Set<Long> canonical = new HashSet<Long>();
+		final int[] probed = new int[1];
+		probeBook(book, Main.createGame(7, 6, 4), 0L, 0L, plies, canonical, probed, new ArrayList<Integer>());
+		expect(canonical.size() == size, canonical.size() + " positions up to " + plies + " plies, book has "
+			   + size);
+		return size + " positions, " + probed[0] + " probes with their mirror images";
+	}
+
+	/// Probes the book with a position and its mirror image, then every position after it.
+	private void probeBook(final OpeningBook book, final GameStateModule game, final long key, final long mirrorKey,
+						   final int plies, final Set<Long> canonical, final int[] probed, final List<Integer> played)
+	{
+		final int width = game.getWidth();
+		final int entry = book.find(key, mirrorKey);
+		probed[0]++;
+		if(game.getCoins() > plies)
+		{
+			expect(entry < 0, "position past the book's plies found: " + describe(game, played));
+			return;
+		}
+		canonical.add(PositionKey.canonical(key, mirrorKey));
+		if(!expect(entry >= 0, "position missing: " + describe(game, played)))
+			return;
+		expect(book.find(mirrorKey, key) == entry, "mirror image has another entry: " + describe(game, played));
+		final int move = book.getMove(entry, key, mirrorKey);
+		expect(game.canMakeMove(move), "illegal book move " + move + ": " + describe(game, played));
+		// A symmetric position's move may be either of a mirrored pair
+		expect(key == mirrorKey || book.getMove(entry, mirrorKey, key) == PositionKey.mirror(move, width),
+			   "mirror image's move is not mirrored: " + describe(game, played));
+		if(game.isGameOver())
+			return;
+		final int mover = game.getActivePlayer();
+		for(int x = 0; x < width; x++)
+			if(game.canMakeMove(x))
+			{
+				final int y = game.getHeightAt(x);
+				game.makeMove(x);
+				played.add(x);
+				probeBook(book, game, key ^ PositionKey.tile(mover, x, y),
+						  mirrorKey ^ PositionKey.tile(mover, PositionKey.mirror(x, width), y), plies, canonical,
+						  probed, played);
+				played.remove(played.size() - 1);
+				game.unMakeMove();
+			}
+	}
+
+	/// Checks network files, incremental accumulators and batched evaluation.
+	private String network() throws IOException
+	{
+		final NeuralNetwork network = NeuralNetwork.random(7, 6, 4, 32, 8, random);
+		final File file = temporary(".c4n");
+		network.save(file);
+		final NeuralNetwork loaded = new NeuralNetwork(file);
+		expect(loaded.getFingerprint() == network.getFingerprint(), "loaded network has other weights");
+		expect(loaded.isFor(7, 6, 4) && !loaded.isFor(7, 6, 5) && !loaded.isFor(6, 7, 4),
+			   "loaded network is for another game");
+		expect(loaded.getHidden() == 32 && loaded.getHidden2() == 8, "loaded network has other layers");
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"))
+		{
+			final byte[] header = new byte[NeuralNetwork.HEADER_SIZE];
+			raf.readFully(header);
+			expect(header[4] == NeuralNetwork.VERSION && header[5] == 7 && header[6] == 6 && header[7] == 4,
+				   "header does not hold the version, size and win length");
+		}
+		boolean rejected = false;
+		try
+		{
+			new NeuralEvaluator(Main.createGame(7, 6, 5), loaded);
+		}
+		catch(IllegalArgumentException e)
+		{
+			rejected = true;
+		}
+		expect(rejected, "network used for another win length");
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.seek(NeuralNetwork.MAGIC.length);
+			raf.write(NeuralNetwork.VERSION - 1);
+		}
+		rejected = false;
+		try
+		{
+			new NeuralNetwork(file);
+		}
+		catch(IOException e)
+		{
+			rejected = true;
+		}
+		expect(rejected, "network of an older version loaded");
+
+		// Make and unmake against rebuilding the accumulators from the board
+		final short[] kept = new short[2 * network.getHidden()];
+		final short[] rebuilt = new short[kept.length];
+		final int games = 20000;
+		long checked = 0;
+		for(int g = 0; g < games; g++)
+		{
+			final GameStateModule inner = g % 4 == 3 ? new GameState_General(7, 6, 4) : Main.createGame(7, 6, 4);
+			final NeuralEvaluator state = new NeuralEvaluator(inner, network);
+			final List<Integer> played = new ArrayList<Integer>();
+			while(!state.isGameOver())
+			{
+				if(played.size() > 0 && random.nextInt(4) == 0)
+				{
+					state.unMakeMove();
+					played.remove(played.size() - 1);
+				}
+				else
+				{
+					final int x = randomMove(state);
+					state.makeMove(x);
+					played.add(x);
+				}
+				// Every position of the first games, then only the last before each game ends
+				if(state.isGameOver())
+				{
+					if(g < 500)
+						continue;
+					state.unMakeMove();
+					played.remove(played.size() - 1);
+				}
+				else if(g >= 500)
+					continue;
+				final NeuralEvaluator fresh = new NeuralEvaluator(state.getGame().copy(), network);
+				final int own = state.exportAccumulators(kept);
+				final int freshOwn = fresh.exportAccumulators(rebuilt);
+				checked++;
+				if(!expect(own == freshOwn && Arrays.equals(kept, rebuilt) && state.evaluate() == fresh.evaluate(),
+						   "accumulators differ from a rebuild: " + describe(state, played)))
+					break;
+				if(g >= 500)
+					break;
+			}
+		}
+
+		// Batched against single evaluation
+		final int count = 64;
+		final short[][] accumulators = new short[count][2 * network.getHidden()];
+		final int[] own = new int[count];
+		final float[] single = new float[count];
+		for(int p = 0; p < count; p++)
+		{
+			final NeuralEvaluator state = new NeuralEvaluator(Main.createGame(7, 6, 4), network);
+			for(int m = random.nextInt(30); m > 0 && !state.isGameOver(); m--)
+				state.makeMove(randomMove(state));
+			own[p] = state.exportAccumulators(accumulators[p]);
+			single[p] = state.evaluate();
+		}
+		final float[] batched = new float[count];
+		network.evaluate(accumulators, own, count, new float[network.getBatchScratchSize(count)], batched);
+		for(int p = 0; p < count; p++)
+			expect(Math.abs(batched[p] - single[p]) <= 1e-4f * Math.max(1f, Math.abs(single[p])),
+				   "batched score " + batched[p] + ", single " + single[p]);
+		return games + " games, " + checked + " rebuilds, " + count + " batched positions";
+	}
+
+	/// Solves small boards and compares every position of the table with a brute-force negamax.
+	private String endgame() throws IOException
+	{
+		final int[][] boards = {{4, 4, 3}, {4, 4, 4}, {5, 4, 3}};
+		long positions = 0;
+		final StringBuilder values = new StringBuilder();
+		for(final int[] board : boards)
+		{
+			final RetrogradeSolver solver = new RetrogradeSolver(board[0], board[1], board[2], threads);
+			solver.solve(null);
+			final File file = temporary(".c4e");
+			solver.write(file);
+			final EndgameTable table = new EndgameTable(file);
+			expect(table.size() == solver.size(), "table holds " + table.size() + " of " + solver.size()
+				   + " positions");
+
+			final Map<Long, Integer> solved = new HashMap<Long, Integer>();
+			final GameStateModule game = new GameState_General(board[0], board[1], board[2]);
+			final int value = negamax(game, table, solved, new ArrayList<Integer>());
+			expect(solver.getValue() == value, "solver gives the empty " + board[0] + "x" + board[1] + "/"
+				   + board[2] + " board " + solver.getValue() + ", negamax " + value);
+			positions += solved.size();
+			values.append(values.length() == 0 ? "" : ", ").append(board[0]).append('x').append(board[1])
+				.append('/').append(board[2]).append(" = ").append(value);
+		}
+		return positions + " positions (" + values + ")";
+	}
+
+	/// Solves a position by trying every line of play, checking the table on the way.
+	/**
+	 * Values are as in EndgameTable: 0 for a draw, d > 0 for a win in d plies and -d
+	 * for a loss in d plies, the winner taking the quickest win and the loser the
+	 * slowest loss.
+	 *
+	 * @param game A position that is not over.
+	 * @param table The table to check.
+	 * @param solved Values of the positions already solved, by key.
+	 * @param played The moves that led to the position.
+	 * @return The value of the position for the player to move.
+	 */
+	private int negamax(final GameStateModule game, final EndgameTable table, final Map<Long, Integer> solved,
+						final List<Integer> played)
+	{
+		final long key = PositionKey.key(game);
+		final Integer known = solved.get(key);
+		if(known != null)
+			return known;
+		final int mover = game.getActivePlayer();
+		int best = Integer.MIN_VALUE;
+		for(int x = 0; x < game.getWidth(); x++)
+		{
+			if(!game.canMakeMove(x))
+				continue;
+			game.makeMove(x);
+			played.add(x);
+			final int value;
+			if(game.isGameOver())
+				value = game.getWinner() == mover ? 1 : 0;
+			else
+			{
+				final int reply = negamax(game, table, solved, played);
+				value = reply == 0 ? 0 : reply > 0 ? -(reply + 1) : -reply + 1;
+			}
+			played.remove(played.size() - 1);
+			game.unMakeMove();
+			// Quickest win, else a draw, else the slowest loss
+			if(best == Integer.MIN_VALUE || ((value > 0) == (best > 0) && value != 0 && best != 0 ? value < best
+											 : value > best))
+				best = value;
+		}
+		expect(table.probe(game) == best, "table gives " + table.probe(game) + ", negamax " + best + ": "
+			   + describe(game, played));
+		solved.put(key, best);
+		return best;
+	}
+
+	/// Compares the size of DeepConnect's trees with counting their nodes directly.
+	private String symmetry()
+	{
+		final DeepConnect ai = new DeepConnect();
+		// As the GameController does before each move; buildTree stops at once while it is set
+		ai.terminate = false;
+		final StringBuilder counts = new StringBuilder();
+		for(int depth = 1; depth <= 6; depth++)
+		{
+			final GameStateModule game = Main.createGame(7, 6, 4);
+			final Node root = new Node(-1, game);
+			root.setKeys(PositionKey.key(game), PositionKey.mirrorKey(game));
+			ai.buildTree(root, depth);
+			final long built = size(root) - 1;
+			ai.releaseTree(root);
+
+			final long skipped = perft(game, depth, true);
+			final long full = perft(game, depth, false);
+			expect(built == skipped, "DeepConnect's tree has " + built + " nodes at depth " + depth + ", expected "
+				   + skipped);
+			// Only the empty board and a few early positions are symmetric, so close to half go
+			expect(skipped * 10 <= full * 6, "skipping mirrored moves keeps " + skipped + " of " + full
+				   + " nodes at depth " + depth);
+			counts.append(counts.length() == 0 ? "" : ", ").append(built).append('/').append(full);
+		}
+		return "nodes with mirrored moves skipped against the full tree, depth 1 to 6: " + counts;
+	}
+
+	/// Counts the nodes of a tree, the root included.
+	private static long size(final Node node)
+	{
+		long size = 1;
+		for(final Node child : node.getChildren())
+			size += size(child);
+		return size;
+	}
+
+	/// Counts the positions reachable in up to depth moves, the way DeepConnect builds its tree.
+	/**
+	 * @param game The position; left as it was.
+	 * @param depth The number of moves to look ahead.
+	 * @param skipMirrors Whether to leave out moves right of the middle of a symmetric position.
+	 * @return The number of positions, not counting game itself.
+	 */
+	private static long perft(final GameStateModule game, final int depth, final boolean skipMirrors)
+	{
+		if(depth == 0 || game.isGameOver())
+			return 0;
+		final int width = game.getWidth();
+		final int last = skipMirrors && PositionKey.isSymmetric(game) ? (width - 1) / 2 : width - 1;
+		long count = 0;
+		for(int x = 0; x <= last; x++)
+			if(game.canMakeMove(x))
+			{
+				game.makeMove(x);
+				count += 1 + perft(game, depth - 1, skipMirrors);
+				game.unMakeMove();
+			}
+		return count;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-only [names]\" : Comma separated list of the checks to run (default: all)");
+		System.out.println("      Checks: " + String.join(", ", CHECKS));
+		System.out.println("      Example: -only boards,keys");
+		System.out.println("    \"-seed [int]\" : Seed for the random games (default: 1)");
+		System.out.println("      Example: -seed 7");
+		System.out.println("    \"-threads [int]\" : Number of threads the solver and book builder use (default: all cores)");
+		System.out.println("      Example: -threads 4");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String[] names = CHECKS;
+		long seed = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-only"))
+				{
+					names = args[i + 1].split(",");
+					for(final String name : names)
+						if(!Arrays.asList(CHECKS).contains(name))
+							throw new IllegalArgumentException("Unknown check: " + name);
+				}
+				else if(args[i].equalsIgnoreCase("-seed"))
+					seed = Long.parseLong(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		final Checks checks = new Checks(seed, threads);
+		int failed = 0;
+		for(final String name : names)
+		{
+			try
+			{
+				if(!checks.run(name, System.out))
+					failed++;
+			}
+			catch(Exception e)
+			{
+				System.out.printf("FAILED  %-9s %s%n", name, e);
+				e.printStackTrace();
+				failed++;
+			}
+		}
+		System.out.println(failed == 0 ? "All checks passed" : failed + " of " + names.length + " checks failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
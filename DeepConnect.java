@@ -1,65 +1,275 @@
 // (c) Scott Madera, Cameron Lee, (add your name here)
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-/// Minimax AI module that picks moves after looking 6 levels down the game tree.
+/// Minimax AI module that picks moves by looking deeper down the game tree as time allows.
 /**
  * This AI chooses columns to drop coins into based on the minimax algorithm.
  * The AI, given a game state's board configuration, creates a game tree that
- * looks at most 6 levels down from that game state. It then uses minimax
+ * looks a number of levels down from that game state. It then uses minimax
  * to search through the game tree, and picks the column index with the highest
  * payoff after propagating payoffs up the tree recursively.
+ * It starts one level down and searches one level deeper each time, for as long
+ * as the next search is expected to finish before the deadline.
  *
  * @author Scott Madera
  * @author Cameron Lee
  * (add your name here)
  */
-public class DeepConnect extends AIModule {
+public class DeepConnect extends AIModule implements GameListener {
     private int player;
     private int enemy;
+    // values of positions already searched, shared between mirror images and
+    // kept from player 1's point of view; opened by openTable. It's the table
+    // every DeepConnect playing this kind of game in the process shares
+    private TranspositionTable table;
+    private long tableTag;
+    // system property naming a file to keep the table in between runs
+    public static final String CACHE_PROPERTY = "c4.cache";
+    // bump this whenever a change to the evaluation code changes its scores,
+    // so that cache files written by the old code are thrown away
+    private static final int EVAL_VERSION = 2;
+    // deepest and largest tree ever built, to bound memory use
+    private static final int MAX_DEPTH = 12;
+    private static final int MAX_NODES = 1 << 19;
+    // nodes in the tree being built, and whether building it was cut short
+    private int nodes;
+    private boolean aborted;
+    // board states and nodes of earlier trees, reused for the next one so that
+    // the search stops allocating once it has warmed up; let go at game end
+    private final GameStatePool pool = new GameStatePool(MAX_NODES);
+    private Node[] freeNodes = new Node[64];
+    private int freeCount;
+    // payoff of a won game; more than any evaluation can reach, so a score
+    // this large means a forced win (or loss if negative) has been found
+    private static final int WIN = 1000;
+    // wins are kept in the table as MATE minus the plies to the win, well away
+    // from both evaluations and WIN plus the levels left
+    private static final int MATE = 4 * WIN;
+    // the game as played so far, kept up to date by onMovePlayed so that
+    // getNextMove doesn't have to recount the open lines every turn
+    private GameStateModule position;
+    private long positionKey;
+    private long positionMirrorKey;
+    // weights of the evaluation terms, tunable with Tuner, and the threat
+    // analyzer the parity term needs (null if it isn't used)
+    private EvalWeights weights;
+    private ThreatAnalyzer threats;
+    // exact values of solved positions, or null if none were solved for this board
+    private EndgameTable endgame;
+    // network that replaces the streak counting, or null if there is none for this board
+    private NeuralNetwork network;
 
     DeepConnect() {
         player = 0;
         enemy = 0;
     }
 
+    public void onGameStart(final GameStateModule game) {
+        position = evaluated(game);
+        positionKey = PositionKey.key(game);
+        positionMirrorKey = PositionKey.mirrorKey(game);
+    }
+
+    public void onMovePlayed(final int column, final int mover) {
+        if (position == null) {
+            return;
+        }
+        int row = position.getHeightAt(column);
+        positionKey ^= PositionKey.tile(mover, column, row);
+        positionMirrorKey ^= PositionKey.tile(mover, PositionKey.mirror(column, position.getWidth()), row);
+        position.makeMove(column);
+    }
+
+    public void onGameEnd(final int winner) {
+        position = null;
+        pool.clear();
+        freeNodes = new Node[64];
+        freeCount = 0;
+        if (table != null) {
+            // writes out the cache file, and lets go of it if no one else is playing
+            TranspositionTable.release(table);
+            table = null;
+        }
+    }
+
     public void getNextMove(final GameStateModule game) {
-        Node root = new Node(game);
-        buildTree(root, 6);
+        // The evaluation layer keeps the streak counts (or the network's first
+        // layer) of every node in the tree up to date as moves are made, so
+        // leaves don't have to rescan the board.
+        // If we've been following the game it's already up to date for the root too.
+        Node root;
+        if (position != null && position.getCoins() == game.getCoins()) {
+            root = newNode(-1, position);
+            root.setKeys(positionKey, positionMirrorKey);
+        }
+        else {
+            root = newNode(-1, evaluated(game));
+            root.setKeys(PositionKey.key(game), PositionKey.mirrorKey(game));
+        }
 
         player = game.getActivePlayer();
+        if (weights == null || !weights.isFor(game.getWidth(), game.getHeight(), game.getWinLength())) {
+            weights = EvalWeights.forGame(game.getWidth(), game.getHeight(), game.getWinLength());
+        }
+        endgame = EndgameTable.forGame(game.getWidth(), game.getHeight(), game.getWinLength());
+        network = NeuralNetwork.forGame(game.getWidth(), game.getHeight(), game.getWinLength());
+        openTable(game);
+        threats = null;
+        if (weights.usesParity() && ThreatAnalyzer.fits(game.getWidth(), game.getHeight())) {
+            threats = new ThreatAnalyzer(game.getWidth(), game.getHeight(), game.getWinLength());
+        }
         if (player == 1) {
             enemy = 2;
         }
         else {
             enemy = 1;
         }
-        chosenMove = minimaxValue(root);
+
+        // play instantly while the position is in the opening book
+        OpeningBook book = OpeningBook.forGame(game.getWidth(), game.getHeight(), game.getWinLength());
+        if (book != null && game.getCoins() <= book.getPlies()) {
+            int entry = book.find(root.getKey(), root.getMirrorKey());
+            if (entry >= 0) {
+                int move = book.getMove(entry, root.getKey(), root.getMirrorKey());
+                if (game.canMakeMove(move)) {
+                    chosenMove = move;
+                    int score = book.getScore(entry);
+                    publish(new SearchResult(move, score, book.getDepth(entry), new int[] {move},
+                            book.isProven(entry) ? Integer.signum(score) : 0));
+                    return;
+                }
+            }
+        }
+
+        // fall back to any legal move if not even one level can be searched
+        for (int col = game.getWidth() - 1; col >= 0; col--) {
+            if (game.canMakeMove(col)) {
+                chosenMove = col;
+            }
+        }
+
+        // iterative deepening: each search is slower than the last by about the
+        // branching factor (or by however much the last one grew, if that was
+        // more), so only start one that should finish in time and fit in memory
+        long estimate = 0;
+        long previous = 0;
+        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+            if (depth > 1 && (pastTarget() || timeLeft() < estimate
+                    || (long) nodes * root.getState().getWidth() > MAX_NODES)) {
+                break;
+            }
+            long start = System.nanoTime();
+            nodes = 0;
+            aborted = false;
+            buildTree(root, depth);
+            boolean proven = false;
+            if (!aborted) {
+                int move = minimaxValue(root);
+                int value = root.getValue();
+                proven = Math.abs(value) >= WIN;
+                publish(new SearchResult(move, value, depth, principalVariation(root),
+                        proven ? Integer.signum(value) : 0));
+            }
+            releaseTree(root);
+            root.getChildren().clear();
+            // a forced win or loss won't change by looking deeper
+            if (aborted || proven) {
+                break;
+            }
+            long elapsed = System.nanoTime() - start;
+            long growth = Math.max(root.getState().getWidth(), previous > 0 ? elapsed / previous : 0);
+            estimate = elapsed * growth;
+            previous = Math.max(1, elapsed);
+        }
+        freeNode(root);
+    }
+
+    /**
+     * Hands the nodes below root and their board states back to the pools, so
+     * the next tree can be built without allocating new ones. The root's own
+     * state belongs to the caller and is not released.
+     *
+     * @param root The root of a tree built by buildTree
+     */
+    public void releaseTree(Node root) {
+        for (Node child : root.getChildren()) {
+            releaseTree(child);
+            pool.release(child.getState());
+            freeNode(child);
+        }
+    }
+
+    /**
+     * Takes a node from the free list, or makes one if it's empty.
+     *
+     * @param col The column played to reach the node, or -1 for a root
+     * @param state The board state at the node
+     * @return A node with no children
+     */
+    private Node newNode(int col, GameStateModule state) {
+        if (freeCount == 0) {
+            return new Node(col, state);
+        }
+        Node node = freeNodes[--freeCount];
+        freeNodes[freeCount] = null;
+        node.reset(col, state);
+        return node;
+    }
+
+    /**
+     * Puts a node no longer in any tree on the free list, child list and all.
+     */
+    private void freeNode(Node node) {
+        if (freeCount == MAX_NODES) {
+            return;
+        }
+        if (freeCount == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, freeCount * 2);
+        }
+        node.reset(-1, null);
+        freeNodes[freeCount++] = node;
     }
 
     /**
      * Recurisvely build the game tree down to the specified depth.
+     * If a node's board is its own mirror image, only the columns up to the
+     * middle get children, since the rest would just be their mirror images.
      *
      * @param root The current board state when this AI's getNextMove() is called
      * @param levels The depth
      * @return returns the passed in node (base case condition)
      */
     public Node buildTree(Node root, int levels) {
+        root.setDepth(levels);
         if (levels == 0) { // base case
             return root;
         }
+        if (aborted || timeUp() || nodes >= MAX_NODES) {
+            aborted = true; // out of time or memory, this tree won't be used
+            return root;
+        }
+        if (root.getState().isGameOver()) {
+            return root; // i.e. don't bother making children for this node
+        }
+        GameStateModule state = root.getState();
         GameStateModule stateCopy;
-        for (int col = 0; col < root.getState().getWidth(); col++) {
-            stateCopy = root.getState().copy();
-            if (stateCopy.isGameOver()) {
-                break; // i.e. don't bother making children for this node
-            }
-            if (!stateCopy.canMakeMove(col)) {
+        int mover = state.getActivePlayer();
+        int lastCol = PositionKey.lastColumn(state, root.getKey(), root.getMirrorKey());
+        for (int col = 0; col <= lastCol; col++) {
+            if (!state.canMakeMove(col)) {
                 continue; // i.e. ignore making impossible children nodes
             }
+            int row = state.getHeightAt(col);
+            stateCopy = pool.borrow(state);
             stateCopy.makeMove(col);
-            Node newChild = new Node(col, stateCopy);
+            Node newChild = newNode(col, stateCopy);
+            newChild.setKeys(root.getKey() ^ PositionKey.tile(mover, col, row),
+                    root.getMirrorKey() ^ PositionKey.tile(mover, PositionKey.mirror(col, state.getWidth()), row));
             root.addChild(newChild);
+            nodes++;
         }
         for (int i = 0; i < root.getChildren().size(); i++) {
             root.getChildren().set(i, buildTree(root.getChildren().get(i), levels-1));
@@ -85,34 +295,163 @@ public class DeepConnect extends AIModule {
             if (tempValue > value) {
                 finalMove = child.getCol(); // where to ultimately drop the coin
                 value = tempValue;
+                treeNode.setBest(child);
             }
         }
+        treeNode.setValue(value);
         return finalMove;
     }
 
+    /**
+     * Follows the best child of every node from root down, as recorded by the
+     * last minimax search. The line stops early where a value came from the
+     * transposition table instead of the node's children.
+     *
+     * @param root The root of a searched tree
+     * @return The columns played along the best line
+     */
+    public int[] principalVariation(Node root) {
+        ArrayList<Integer> line = new ArrayList<Integer>();
+        for (Node node = root.getBest(); node != null; node = node.getBest()) {
+            line.add(node.getCol());
+        }
+        int[] pv = new int[line.size()];
+        for (int i = 0; i < pv.length; i++) {
+            pv[i] = line.get(i);
+        }
+        return pv;
+    }
+
+    /**
+     * Opens the transposition table the first time, and again whenever the board
+     * size or the evaluation changes. If the c4.cache system property names a
+     * file, the table is kept there, so a restarted engine starts with what it
+     * searched before; a file written for another board or evaluation is
+     * thrown away. Either way it's the table shared by every DeepConnect in the
+     * process searching the same kind of game, handed back at game end.
+     *
+     * @param game The game about to be searched.
+     */
+    private void openTable(GameStateModule game) {
+        long evaluator = EVAL_VERSION;
+        evaluator = evaluator * 31 + weights.fingerprint();
+        evaluator = evaluator * 31 + (network == null ? 0 : network.getFingerprint());
+        evaluator = evaluator * 31 + (endgame == null ? 0 : endgame.size());
+        long tag = ((evaluator * 31 + game.getWidth()) * 31 + game.getHeight()) * 31 + game.getWinLength();
+        if (table != null && tag == tableTag) {
+            return;
+        }
+        tableTag = tag;
+        if (table != null) {
+            // let go of the cache file, so a table with the new tag can have it
+            TranspositionTable.release(table);
+        }
+        String path = System.getProperty(CACHE_PROPERTY, "");
+        table = TranspositionTable.acquire(path.isEmpty() ? null : new File(path), game.getWidth(),
+                game.getHeight(), game.getWinLength(), evaluator);
+    }
+
+    /**
+     * Wraps a game in the layer the evaluation works from: a NeuralEvaluator if
+     * a network for the board was loaded (see NeuralNetwork.forGame), and an
+     * EvaluatedGameState otherwise.
+     *
+     * @param game The game to wrap; it's changed through the wrapper from now on.
+     * @return The wrapped game.
+     */
+    private GameStateModule evaluated(GameStateModule game) {
+        network = NeuralNetwork.forGame(game.getWidth(), game.getHeight(), game.getWinLength());
+        if (network != null) {
+            return new NeuralEvaluator(game, network);
+        }
+        return new EvaluatedGameState(game);
+    }
+
+    /**
+     * Turns a payoff for player into one for player 1 and back. Payoffs are
+     * symmetric, so the table stays good when we switch sides.
+     */
+    private int forPlayer(int value) {
+        return player == 1 ? value : -value;
+    }
+
+    /**
+     * Turns a value found at a node into the one kept in the table. A win is
+     * worth WIN plus the levels that were left where it was reached, which
+     * depends on how deep the node was searched, so it's kept as the number of
+     * plies from the node to the win instead.
+     *
+     * @param value The node's value
+     * @param depth The levels searched below the node
+     */
+    private static int toTable(int value, int depth) {
+        if (Math.abs(value) < WIN) {
+            return value;
+        }
+        int plies = depth - (Math.abs(value) - WIN);
+        return Integer.signum(value) * (MATE - plies);
+    }
+
+    /**
+     * Turns a value from the table back into one for a node searched depth
+     * levels deep. A win further away than that is still a win, with nothing
+     * added for speed, like a solved position past the leaves.
+     *
+     * @param value The value kept in the table
+     * @param depth The levels the node is being searched below it
+     */
+    private static int fromTable(int value, int depth) {
+        if (Math.abs(value) < WIN) {
+            return value;
+        }
+        int plies = MATE - Math.abs(value);
+        return Integer.signum(value) * (WIN + Math.max(0, depth - plies));
+    }
+
     public int getMaxValue(Node currentNode) {
         // terminal state check
         if (currentNode.isLeafNode()) {
             return calculatePayoff(currentNode);
         }
+        // a transposition or the mirror image of this board may already be solved
+        long key = PositionKey.canonical(currentNode.getKey(), currentNode.getMirrorKey());
+        int cached = table.probe(key, currentNode.getDepth());
+        if (cached != TranspositionTable.MISSING) {
+            return forPlayer(fromTable(cached, currentNode.getDepth()));
+        }
         int utilityValue = Integer.MIN_VALUE;
         Node child;
         for (int i = 0; i < currentNode.getChildren().size(); ++i) {
             child = currentNode.getChildren().get(i);
-            utilityValue = Math.max(utilityValue, getMinValue(child));
+            int childValue = getMinValue(child);
+            if (childValue > utilityValue) {
+                utilityValue = childValue;
+                currentNode.setBest(child);
+            }
         }
+        table.store(key, currentNode.getDepth(), toTable(forPlayer(utilityValue), currentNode.getDepth()));
         return utilityValue;
     }
     public int getMinValue(Node currentNode) {
         if (currentNode.isLeafNode()) {
             return calculatePayoff(currentNode);
         }
+        long key = PositionKey.canonical(currentNode.getKey(), currentNode.getMirrorKey());
+        int cached = table.probe(key, currentNode.getDepth());
+        if (cached != TranspositionTable.MISSING) {
+            return forPlayer(fromTable(cached, currentNode.getDepth()));
+        }
         int utilityValue = Integer.MAX_VALUE;
         Node child;
         for (int i = 0; i < currentNode.getChildren().size(); ++i) {
             child = currentNode.getChildren().get(i);
-            utilityValue = Math.min(utilityValue, getMaxValue(child));
+            int childValue = getMaxValue(child);
+            if (childValue < utilityValue) {
+                utilityValue = childValue;
+                currentNode.setBest(child);
+            }
         }
+        table.store(key, currentNode.getDepth(), toTable(forPlayer(utilityValue), currentNode.getDepth()));
         return utilityValue;
     }
 
@@ -125,17 +464,29 @@ public class DeepConnect extends AIModule {
      */
     public int calculatePayoff(Node leaf) {
         int score = 0;
+        int solved;
         // case 1: leaf contains a board state who's game is over.
         // So, determine who the winner is, and assign payoffs based on that.
+        // Leaves with more levels left below them are reached sooner, and a
+        // sooner win (or a later loss) is better.
         if (leaf.getState().isGameOver()) {
             if (leaf.getState().getWinner() == player) {
-                score += 10;
+                score += WIN + leaf.getDepth();
             }
             else if (leaf.getState().getWinner() == enemy){
-                score = -10; // enemy won, so discourage taking this path!
+                score = -WIN - leaf.getDepth(); // enemy won, so discourage taking this path!
+            }
+        }
+        // case 2: the position has been solved. A win d plies away is worth
+        // about as much as one found d levels below this leaf.
+        else if (endgame != null
+                && (solved = endgame.probe(leaf.getState())) != EndgameTable.MISSING) {
+            int sign = leaf.getState().getActivePlayer() == player ? 1 : -1;
+            if (solved != 0) {
+                score = sign * Integer.signum(solved) * (WIN + Math.max(0, leaf.getDepth() - Math.abs(solved)));
             }
         }
-        // case 2: game isn't over yet. Call the evaluation function.
+        // case 3: game isn't over yet. Call the evaluation function.
         else {
             score += determineStreaks(leaf);
         }
@@ -144,226 +495,50 @@ public class DeepConnect extends AIModule {
 
     /**
      * Evaluation function that determines payoffs for non-GameOver leaf nodes.
-     * It analyzes leaf's board state and determines how many possible 4-in-a-rows
-     * (called "streaks" in our functions) both player and enemy can make based on
-     * that given board state. It does this by separately calculating number of
-     * horizontal streaks, number of vertical streaks, and number of diagonal streaks.
+     * Every state in the tree is wrapped by evaluated(), so the leaf's state
+     * either keeps its open lines up to date (an EvaluatedGameState), which
+     * are weighed in O(1) rather than by a scan of the board, or keeps a
+     * network's first layer (a NeuralEvaluator), which then scores it.
      *
-     * @param leaf A leaf of the created tree, i.e. a node with a game over board
-     *             state, or a node who has reached the final depth level.
-     * @return The payoff generated by the difference between streak totals.
+     * @param leaf A leaf of the created tree, i.e. a node who has reached the
+     *             final depth level without the game being over.
+     * @return The payoff from player's point of view.
      */
     public int determineStreaks(Node leaf) {
-        int streakBalance = 0;
-        streakBalance += determineHorizontalStreaks(leaf, 4);
-        streakBalance += determineVerticalStreaks(leaf, 4);
-        streakBalance += determineDiagonalStreaks(leaf, 4);
-        return streakBalance;
-    }
-
-    public int determineHorizontalStreaks(Node leaf, int totalStreak) {
-        int playerStreak = 0;
-        int enemyStreak = 0;
-        int totalPlayerStreaks = 0;
-        int totalEnemyStreaks = 0;
-        int occupies = 0;
-
-        for (int row = 0; row < leaf.getState().getHeight(); row++) {
-            for (int col = 0; col < leaf.getState().getWidth(); col++) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    if (playerStreak > 0) {
-                        playerStreak += 1;
-                    }
-                    else if (enemyStreak > 0) {
-                        enemyStreak += 1;
-                    }
-                }
-                if (playerStreak >= totalStreak) {
-                    totalPlayerStreaks += 1;
-                    playerStreak = 0;
-                }
-                if (enemyStreak >= totalStreak) {
-                    totalEnemyStreaks += 1;
-                    enemyStreak = 0;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
+        if (leaf.getState() instanceof NeuralEvaluator) {
+            return determineNetworkScore((NeuralEvaluator) leaf.getState());
         }
-        return (totalPlayerStreaks - totalEnemyStreaks);
+        return determineOpenLines((EvaluatedGameState) leaf.getState());
     }
 
-    public int determineVerticalStreaks(Node leaf, int totalStreak) {
-        int playerStreak = 0;
-        int enemyStreak = 0;
-        int totalPlayerStreaks = 0;
-        int totalEnemyStreaks = 0;
-        int occupies = 0;
-
-        for (int col = 0; col < leaf.getState().getWidth(); col++) {
-            for (int row = 0; row < leaf.getState().getHeight(); row++) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    if (playerStreak > 0) {
-                        playerStreak += 1;
-                    }
-                    else if (enemyStreak > 0) {
-                        enemyStreak += 1;
-                    }
-                }
-                if (playerStreak == totalStreak) {
-                    totalPlayerStreaks += 1;
-                    playerStreak = 0;
-                }
-                if (enemyStreak == totalStreak) {
-                    totalEnemyStreaks += 1;
-                    enemyStreak = 0;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
-        }
-        return (totalPlayerStreaks - totalEnemyStreaks);
-    }
-
-    public int determineDiagonalStreaks(Node leaf, int totalStreak) {
-        int playerStreak = 0;
-        int enemyStreak = 0;
-        int totalPlayerStreaks = 0;
-        int totalEnemyStreaks = 0;
-        int occupies = 0;
-        int maxRow = leaf.getState().getHeight();
-        int maxCol = leaf.getState().getWidth();
-
-        // left to right
-
-        // top left to bottom right, moving down the rows
-        for (int rowBegin = maxRow-1; rowBegin > 2; rowBegin--) {
-            for (int row = rowBegin, col = 0; row >= 0 && col < maxCol; row--, col++) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    ++playerStreak;
-                    ++enemyStreak;
-                }
-                if (playerStreak == totalStreak) {
-                    totalPlayerStreaks += 1;
-                }
-                if (enemyStreak == totalStreak) {
-                    totalEnemyStreaks += 1;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
-        }
-
-        // top-left to bottom-right, moving up the columns
-        for (int colBegin = 1; colBegin < maxCol-3; colBegin++) {
-            for (int row = maxRow-1, col = colBegin; row >= 0 && col < maxCol; row--, col++) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    ++playerStreak;
-                    ++enemyStreak;
-                }
-                if (playerStreak == totalStreak) {
-                    totalPlayerStreaks += 1;
-                }
-                if (enemyStreak == totalStreak) {
-                    totalEnemyStreaks += 1;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
-        }
-
-        // right to left
-
-        // top-right to bottom-left, moving down the columns
-        for (int colBegin = maxCol-2; colBegin >= 3; colBegin--) {
-            for (int row = maxRow-1, col = colBegin; row >= 0 && col >= 0; row--, col--) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    ++playerStreak;
-                    ++enemyStreak;
-                }
-                if (playerStreak == totalStreak) {
-                    totalPlayerStreaks += 1;
-                }
-                if (enemyStreak == totalStreak) {
-                    totalEnemyStreaks += 1;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
-        }
+    /**
+     * Weighs the winning lines that player could still complete and already
+     * has a coin in, minus the same for the enemy, along with the other terms
+     * of EvalWeights. With the default weights every such line counts 1.
+     * Kept short of WIN so that it can't be mistaken for a forced win.
+     *
+     * @param state A state that tracks its open lines incrementally
+     * @return The weighted difference between player's and enemy's prospects
+     */
+    public int determineOpenLines(EvaluatedGameState state) {
+        int streakBalance = weights.evaluate(state, player, threats);
+        return Math.max(-WIN + 1, Math.min(WIN - 1, streakBalance));
+    }
 
-        // top-right to bottom-left, moving down the rows
-        for (int rowBegin = maxRow-1; rowBegin >= 2; rowBegin--) {
-            for (int row = rowBegin, col = maxCol-1; row >= 0 && col >= 0; row--, col--) {
-                occupies = leaf.getState().getAt(col,row);
-                if (occupies == player) {
-                    playerStreak += 1;
-                    enemyStreak = 0;
-                }
-                else if (occupies == enemy) {
-                    enemyStreak += 1;
-                    playerStreak = 0;
-                }
-                else {
-                    ++playerStreak;
-                    ++enemyStreak;
-                }
-                if (playerStreak == totalStreak) {
-                    totalPlayerStreaks += 1;
-                }
-                if (enemyStreak == totalStreak) {
-                    totalEnemyStreaks += 1;
-                }
-            }
-            playerStreak = 0;
-            enemyStreak = 0;
+    /**
+     * Asks the network for its score of the leaf, which is for the player to
+     * move, and turns it into one for player. Kept short of WIN like
+     * determineOpenLines.
+     *
+     * @param state A state that keeps the network's first layer up to date
+     * @return The network's score from player's point of view
+     */
+    public int determineNetworkScore(NeuralEvaluator state) {
+        int score = Math.round(state.evaluate());
+        if (state.getActivePlayer() != player) {
+            score = -score;
         }
-        return (totalPlayerStreaks - totalEnemyStreaks);
+        return Math.max(-WIN + 1, Math.min(WIN - 1, score));
     }
 }
 /// A class that associates game states to nodes in a game tree.
@@ -377,6 +552,11 @@ class Node {
     private Integer col;
     private GameStateModule state;
     private ArrayList<Node> children;
+    private long key;
+    private long mirrorKey;
+    private int depth;
+    private int value;
+    private Node best;
 
     Node() {
         col = -1;
@@ -392,6 +572,21 @@ class Node {
         children = new ArrayList<Node>();
     }
 
+    /**
+     * Makes a node from an earlier tree a new one, keeping its child list's
+     * room but none of its children.
+     */
+    public void reset(Integer column, final GameStateModule newState) {
+        col = column;
+        state = newState;
+        children.clear();
+        key = 0;
+        mirrorKey = 0;
+        depth = 0;
+        value = 0;
+        best = null;
+    }
+
     public void addChild(Node child) {
         children.add(child);
     }
@@ -417,5 +612,33 @@ class Node {
     public void setState(GameStateModule stateIn) {
         this.state = stateIn;
     }
+    public long getKey() {
+        return key;
+    }
+    public long getMirrorKey() {
+        return mirrorKey;
+    }
+    public void setKeys(long keyIn, long mirrorKeyIn) {
+        this.key = keyIn;
+        this.mirrorKey = mirrorKeyIn;
+    }
+    public int getDepth() {
+        return depth;
+    }
+    public void setDepth(int depthIn) {
+        this.depth = depthIn;
+    }
+    public int getValue() {
+        return value;
+    }
+    public void setValue(int valueIn) {
+        this.value = valueIn;
+    }
+    public Node getBest() {
+        return best;
+    }
+    public void setBest(Node bestIn) {
+        this.best = bestIn;
+    }
 
 }
@@ -0,0 +1,217 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/// Read-only table of solved positions, memory mapped and probed by binary search.
+/**
+ * Holds the exact value of every position of a board that RetrogradeSolver could
+ * solve: win, draw or loss for the player to move, and how many plies the game lasts
+ * with best play (the winner hurrying, the loser holding out).  A search that probes
+ * the table at its leaves gets exact values instead of estimates.
+ *
+ * Positions are encoded exactly, not hashed: with each column taking height + 1 bits
+ * as in GameState_Opt7x6, a position's code is the coins of the player to move plus
+ * the mask of all coins plus the bottom row, which is unique to the position.  Its
+ * canonical code is the smaller of its code and its mirror image's.  Any board with
+ * width * (height + 1) of at most 64 can be encoded.
+ *
+ * File layout, all numbers big-endian: the magic bytes "C4RT", a version byte, width,
+ * height and win length bytes, then for each ply from 0 to width * height the number
+ * of positions with that many coins as an int.  Then, ply by ply, the sorted canonical
+ * codes of the positions as longs followed by their values as bytes.  A value of 0 is
+ * a draw, d > 0 a win in d plies and -d a loss in d plies.  Positions where the game
+ * is already over are not stored.
+ *
+ * Probing allocates nothing, and a table may be shared between threads.
+ *
+ * @see RetrogradeSolver
+ */
+public final class EndgameTable
+{
+	/// First bytes of every table.
+	static final byte[] MAGIC = {'C', '4', 'R', 'T'};
+	/// Version of the format.
+	static final int VERSION = 1;
+	/// Returned by probe for positions not in the table.
+	public static final int MISSING = Integer.MIN_VALUE;
+	/// System property naming the table file.
+	public static final String FILE_PROPERTY = "c4.endgame";
+	/// Table file used if the property is not set.
+	public static final String DEFAULT_FILE = "endgame.c4e";
+
+	/// Table loaded at startup, or null if there was none.
+	private static EndgameTable loaded = null;
+	private static boolean triedLoading = false;
+
+	private final MappedByteBuffer buffer;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	/// Number of positions with each number of coins.
+	private final int[] counts;
+	/// Offset of the codes of the positions with each number of coins.
+	private final long[] offsets;
+
+	/// Primary Constructor.
+	/**
+	 * @param file A table written by RetrogradeSolver.
+	 * @throws IOException If the file cannot be read or is not a table.
+	 */
+	public EndgameTable(final File file) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final byte[] magic = new byte[MAGIC.length];
+		if(buffer.limit() < MAGIC.length + 4)
+			throw new IOException(file + " is not an endgame table");
+		buffer.get(magic);
+		if(!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION)
+			throw new IOException(file + " is not an endgame table of this version");
+		width = buffer.get() & 0xFF;
+		height = buffer.get() & 0xFF;
+		winLength = buffer.get() & 0xFF;
+		counts = new int[width * height + 1];
+		offsets = new long[counts.length];
+		if(buffer.remaining() < 4 * counts.length)
+			throw new IOException(file + " is truncated");
+		long offset = buffer.position() + 4L * counts.length;
+		for(int ply = 0; ply < counts.length; ply++)
+		{
+			counts[ply] = buffer.getInt();
+			offsets[ply] = offset;
+			offset += 9L * counts[ply];
+		}
+		if(offset != buffer.limit())
+			throw new IOException(file + " is truncated");
+	}
+
+	/// Returns the table to play a game with, or null if there is none for its size.
+	/**
+	 * The table file is mapped on the first call, from the path in the c4.endgame
+	 * system property or endgame.c4e in the working directory.
+	 *
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public static synchronized EndgameTable forGame(final int width, final int height, final int winLength)
+	{
+		if(!triedLoading)
+		{
+			triedLoading = true;
+			final File file = new File(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+			if(file.exists())
+			{
+				try
+				{
+					loaded = new EndgameTable(file);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Cannot load endgame table: " + e.getMessage());
+				}
+			}
+		}
+		if(loaded == null || loaded.width != width || loaded.height != height || loaded.winLength != winLength)
+			return null;
+		return loaded;
+	}
+
+	/// Computes the code of a position.
+	/**
+	 * @param game A position on a board of the table's size.
+	 * @param mirror Whether to encode the position's mirror image instead.
+	 */
+	public static long code(final GameStateModule game, final boolean mirror)
+	{
+		final int h1 = game.getHeight() + 1;
+		final int last = game.getWidth() - 1;
+		final int mover = game.getActivePlayer();
+		long code = 0L;
+		for(int x = 0; x <= last; x++)
+		{
+			final int shift = (mirror ? last - x : x) * h1;
+			final int top = game.getHeightAt(x);
+			// The mask plus the bottom row leaves one bit just above the coins
+			code += 1L << (shift + top);
+			for(int y = 0; y < top; y++)
+				if(game.getAt(x, y) == mover)
+					code += 1L << (shift + y);
+		}
+		return code;
+	}
+
+	/// Looks up the value of a position.
+	/**
+	 * @param game A position on a board of the table's size.
+	 * @return 0 for a draw, d > 0 for a win by the player to move in d plies, -d for a
+	 *         loss in d plies, or MISSING if the position is not in the table.
+	 */
+	public int probe(final GameStateModule game)
+	{
+		final long code = code(game, false);
+		final long mirror = code(game, true);
+		return probe(Math.min(code, mirror), game.getCoins());
+	}
+
+	/// Looks up the value of a position by its canonical code.
+	/**
+	 * @param canonical The smaller of the position's code and its mirror image's.
+	 * @param coins The number of coins on the board.
+	 * @return As for probe(GameStateModule).
+	 */
+	public int probe(final long canonical, final int coins)
+	{
+		if(coins < 0 || coins >= counts.length)
+			return MISSING;
+		final int base = (int) offsets[coins];
+		int low = 0;
+		int high = counts[coins] - 1;
+		while(low <= high)
+		{
+			final int middle = (low + high) >>> 1;
+			final long found = buffer.getLong(base + 8 * middle);
+			if(found < canonical)
+				low = middle + 1;
+			else if(found > canonical)
+				high = middle - 1;
+			else
+				return buffer.get(base + 8 * counts[coins] + middle);
+		}
+		return MISSING;
+	}
+
+	/// Returns the number of positions in the table.
+	public long size()
+	{
+		long size = 0;
+		for(final int count : counts)
+			size += count;
+		return size;
+	}
+
+	/// Returns the width of the board.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the number of coins in a row needed to win.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+}
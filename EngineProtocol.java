@@ -0,0 +1,367 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Text protocol for driving one long-lived AI over stdin and stdout.
+/**
+ * Lets an outside program (a GUI, a match runner) use an AIModule the way chess
+ * programs are used over UCI: the JVM and the AI are started once and then play any
+ * number of games, so the JIT stays warm and the AI keeps its caches between games.
+ * Started by Main's -engine switch.
+ *
+ * Commands, one per line:
+ * - "newgame": Starts a new game on an empty board.
+ * - "position [columns...]": Sets up the position reached by playing the given
+ *   columns (numbered from 0) from an empty board.
+ * - "go movetime [ms]": Searches for the given time.
+ * - "go [wtime ms] [btime ms] [winc ms] [binc ms] [movestogo n]": Searches with a
+ *   clock; the player to move's time and increment are used.
+ * - "go" or "go infinite": Searches until "stop".
+ * - "stop": Ends the current search early.
+ * - "isready": Answered with "readyok", even while searching.
+ * - "quit": Exits.
+ *
+ * An AI that implements GameListener is told a game has ended whenever it is left
+ * for another one, by "newgame", by a "position" that does not follow on from the
+ * current game, or by "quit", so it can release what it holds for the game.  A game
+ * left before it is over is reported as a draw.
+ *
+ * While searching, "info depth [d] score [s] time [ms] pv [columns...]" is printed
+ * whenever the AI publishes a new SearchResult, and "bestmove [column]" once it is
+ * done.  Errors are reported as "info string [message]".
+ *
+ * @see Main
+ * @see SearchResult
+ */
+public final class EngineProtocol
+{
+	/// How often the published result is checked for info lines, in milliseconds.
+	private static final int REPORT_MILLIS = 20;
+	/// Search time for "go infinite", long enough to never run out.
+	private static final long FOREVER = Long.MAX_VALUE / 4;
+
+	private final AIModule ai;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final BufferedReader in;
+	private final PrintStream out;
+	/// Runs the AI.
+	private final ExecutorService searcher = Executors.newSingleThreadExecutor(daemon("Search"));
+	/// Stops searches that run out of time and prints info lines.
+	private final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(daemon("Clock"));
+	/// The current position.
+	private GameStateModule game;
+	/// Columns played to reach the current position.
+	private final List<Integer> moves = new ArrayList<Integer>();
+	/// The search in progress, or null.
+	private Future<?> search = null;
+
+	/// Primary Constructor.
+	/**
+	 * @param ai The AI to play with.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param in Where commands are read from.
+	 * @param out Where responses are written to.
+	 */
+	public EngineProtocol(final AIModule ai, final int width, final int height, final int winLength,
+						  final InputStream in, final PrintStream out)
+	{
+		this.ai = ai;
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		this.in = new BufferedReader(new InputStreamReader(in));
+		this.out = out;
+		newGame();
+	}
+
+	/// Creates daemon threads with the given name.
+	private static ThreadFactory daemon(final String name)
+	{
+		return new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				final Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/// Reads and answers commands until "quit" or the end of the input.
+	/**
+	 * @throws IOException If the input cannot be read.
+	 */
+	public void run() throws IOException
+	{
+		String line;
+		while((line = in.readLine()) != null)
+		{
+			final String[] words = line.trim().split("\\s+");
+			final String command = words[0];
+			try
+			{
+				if(command.isEmpty())
+					continue;
+				else if(command.equals("quit"))
+					break;
+				else if(command.equals("stop"))
+					stop();
+				else if(command.equals("isready"))
+					out.println("readyok");
+				else if(searching())
+					out.println("info string Still searching, send stop first");
+				else if(command.equals("newgame"))
+					newGame();
+				else if(command.equals("position"))
+					position(words);
+				else if(command.equals("go"))
+					go(words);
+				else
+					out.println("info string Unknown command: " + command);
+			}
+			catch(IllegalArgumentException e)
+			{
+				out.println("info string " + e.getMessage());
+			}
+			out.flush();
+		}
+		stop();
+		waitForSearch();
+		endGame();
+		searcher.shutdown();
+		clock.shutdown();
+	}
+
+	/// Returns whether a search is in progress.
+	private boolean searching()
+	{
+		return search != null && !search.isDone();
+	}
+
+	/// Tells the current search to finish.
+	private void stop()
+	{
+		ai.terminate = true;
+	}
+
+	/// Waits for the current search to print its best move.
+	private void waitForSearch()
+	{
+		if(search == null)
+			return;
+		try
+		{
+			search.get();
+		}
+		catch(Exception e)
+		{
+			out.println("info string " + e);
+		}
+	}
+
+	/// Tells an AI that follows the game that the current game is over.
+	private void endGame()
+	{
+		if(game != null && ai instanceof GameListener)
+			((GameListener) ai).onGameEnd(game.isGameOver() ? game.getWinner() : 0);
+	}
+
+	/// Starts a new game on an empty board, ending the current one.
+	private void newGame()
+	{
+		endGame();
+		game = Main.createGame(width, height, winLength);
+		moves.clear();
+		if(ai instanceof GameListener)
+			((GameListener) ai).onGameStart(game.copy());
+	}
+
+	/// Sets up the position after the given columns.
+	/**
+	 * If the new position follows on from the current one, an AI that follows the game
+	 * is only told about the new moves; otherwise it is told the current game has ended
+	 * and a new one has started.
+	 *
+	 * @param words The command, followed by the columns played.
+	 */
+	private void position(final String[] words)
+	{
+		final List<Integer> played = new ArrayList<Integer>();
+		final GameStateModule next = Main.createGame(width, height, winLength);
+		for(int i = 1; i < words.length; i++)
+		{
+			final int column;
+			try
+			{
+				column = Integer.parseInt(words[i]);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid column: " + words[i]);
+			}
+			if(next.isGameOver() || !next.canMakeMove(column))
+				throw new IllegalArgumentException("Illegal move: " + column);
+			next.makeMove(column);
+			played.add(column);
+		}
+
+		final boolean continues = played.size() >= moves.size() && played.subList(0, moves.size()).equals(moves);
+		if(!continues)
+			newGame();
+		for(int i = moves.size(); i < played.size(); i++)
+		{
+			final int column = played.get(i);
+			final int mover = game.getActivePlayer();
+			game.makeMove(column);
+			moves.add(column);
+			if(ai instanceof GameListener)
+				((GameListener) ai).onMovePlayed(column, mover);
+		}
+	}
+
+	/// Starts a search of the current position.
+	/**
+	 * @param words The command, followed by its time options.
+	 */
+	private void go(final String[] words)
+	{
+		if(game.isGameOver())
+		{
+			out.println("bestmove none");
+			return;
+		}
+
+		long movetime = -1;
+		final long[] times = {-1, -1};
+		final long[] increments = {0, 0};
+		int movesToGo = 0;
+		try
+		{
+			for(int i = 1; i < words.length; i++)
+			{
+				if(words[i].equals("infinite"))
+					continue;
+				final long value = Long.parseLong(words[i + 1]);
+				if(words[i].equals("movetime"))
+					movetime = value;
+				else if(words[i].equals("wtime"))
+					times[0] = value;
+				else if(words[i].equals("btime"))
+					times[1] = value;
+				else if(words[i].equals("winc"))
+					increments[0] = value;
+				else if(words[i].equals("binc"))
+					increments[1] = value;
+				else if(words[i].equals("movestogo"))
+					movesToGo = (int) value;
+				else
+					throw new IllegalArgumentException("Unknown option: " + words[i]);
+				i++;
+			}
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new IllegalArgumentException("Missing value for " + words[words.length - 1]);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+		}
+
+		// Work out how long to search for
+		final int us = game.getActivePlayer() - 1;
+		final long limit;
+		final long allocation;
+		final long increment = increments[us] * 1000000L;
+		final int movesLeft = (width * height - game.getCoins() + 1) / 2;
+		if(movetime > 0)
+		{
+			final TimeControl control = TimeControl.perMove(movetime);
+			limit = control.limit(control.start(), 0, movesLeft);
+			allocation = control.allocate(control.start(), 0, movesLeft);
+		}
+		else if(times[us] > 0)
+		{
+			final TimeControl control = TimeControl.clock(times[us], increments[us], movesToGo);
+			limit = control.limit(control.start(), 0, movesLeft);
+			allocation = control.allocate(control.start(), 0, movesLeft);
+		}
+		else
+			limit = allocation = FOREVER;
+
+		final GameStateModule state = game.copy();
+		ai.terminate = false;
+		ai.chosenMove = -1;
+		ai.startClock(limit, allocation, increment);
+		final long start = System.nanoTime();
+
+		final ScheduledFuture<?> stopper = limit == FOREVER ? null : clock.schedule(new Runnable()
+		{
+			public void run()
+			{
+				ai.terminate = true;
+			}
+		}, limit, TimeUnit.NANOSECONDS);
+		final Reporter reporter = new Reporter(start);
+		final ScheduledFuture<?> reports = clock.scheduleAtFixedRate(reporter, REPORT_MILLIS, REPORT_MILLIS,
+																	 TimeUnit.MILLISECONDS);
+
+		search = searcher.submit(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					ai.getNextMove(state);
+				}
+				catch(Throwable t)
+				{
+					out.println("info string Search failed: " + t);
+				}
+				if(stopper != null)
+					stopper.cancel(false);
+				reports.cancel(false);
+				reporter.run();
+
+				int move = ai.chosenMove;
+				for(int j = 0; j < state.getWidth() && !state.canMakeMove(move); j++)
+					move = j;
+				out.println("bestmove " + move);
+				out.flush();
+			}
+		});
+	}
+
+	/// Prints an info line whenever the AI publishes a new result.
+	private final class Reporter implements Runnable
+	{
+		private final long start;
+		private SearchResult last = null;
+
+		Reporter(final long start)
+		{
+			this.start = start;
+		}
+
+		public synchronized void run()
+		{
+			final SearchResult result = ai.getResult();
+			if(result == null || result == last)
+				return;
+			last = result;
+			final StringBuilder pv = new StringBuilder();
+			for(final int column : result.getPV())
+				pv.append(' ').append(column);
+			out.println("info depth " + result.getDepth() + " score " + result.getScore()
+						+ " time " + (System.nanoTime() - start) / 1000000 + " pv" + pv);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.util.Properties;
+
+/// Weights of the terms of DeepConnect's leaf evaluation.
+/**
+ * A leaf is scored as a weighted sum of features, each taken as the difference
+ * between the player to score for and their opponent:
+ * - lines1 .. lines(K-1): lines open to the player that hold 1 .. K-1 of their coins,
+ *   K being the win length (see EvaluatedGameState).
+ * - center: coins in the middle column, or the middle two on an even width.
+ * - parity: 1 if the player controls zugzwang (see ThreatAnalyzer), -1 if the
+ *   opponent does.  Only computed when its weight is not zero.
+ *
+ * The default weights are 1 for every lines term and 0 for the rest: every line still
+ * open to a player and holding one of their coins counts 1, the open lines count
+ * DeepConnect used before the weights could be tuned.  (The original DeepConnect
+ * counted runs of coins and blanks along each row, column and diagonal instead, and
+ * scored a win at 10.)  Tuner fits the weights to the outcomes of
+ * self-play games and saves them as a properties file; DeepConnect loads that file
+ * at startup from the path in the c4.weights system property, or from
+ * weights.properties in the working directory, if the board size and win length
+ * match those of the games it was tuned on.
+ * Weights are applied in fixed point, to 1/16.
+ *
+ * @see DeepConnect
+ * @see Tuner
+ */
+public final class EvalWeights
+{
+	/// System property naming the weights file.
+	public static final String FILE_PROPERTY = "c4.weights";
+	/// Weights file used if the property is not set.
+	public static final String DEFAULT_FILE = "weights.properties";
+	/// Number of fractional bits of the fixed point weights.
+	private static final int FRACTION_BITS = 4;
+
+	/// Weights loaded at startup, or null if there were none.
+	private static EvalWeights loaded = null;
+	private static boolean triedLoading = false;
+
+	/// The board size and win length the weights are for.
+	private final int width;
+	private final int height;
+	private final int winLength;
+	/// Weights in feature order: the lines terms, center, parity.
+	private final double[] values;
+	/// The weights in fixed point.
+	private final int[] fixed;
+
+	/// Primary Constructor.
+	/**
+	 * @param width The width of the board the weights are for.
+	 * @param height The height of the board the weights are for.
+	 * @param winLength The win length the weights are for.
+	 * @param values The weights in feature order: lines1 .. lines(K-1), center, parity.
+	 */
+	public EvalWeights(final int width, final int height, final int winLength, final double[] values)
+	{
+		if(values.length != getFeatureCount(winLength))
+			throw new IllegalArgumentException("Expected " + getFeatureCount(winLength) + " weights");
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		this.values = values.clone();
+		fixed = new int[values.length];
+		for(int i = 0; i < values.length; i++)
+			fixed[i] = (int) Math.round(values[i] * (1 << FRACTION_BITS));
+	}
+
+	/// Returns the default weights for a board size and win length.
+	public static EvalWeights defaults(final int width, final int height, final int winLength)
+	{
+		final double[] values = new double[getFeatureCount(winLength)];
+		for(int coins = 1; coins < winLength; coins++)
+			values[coins - 1] = 1;
+		return new EvalWeights(width, height, winLength, values);
+	}
+
+	/// Returns the weights to play a game with.
+	/**
+	 * The weights file is read on the first call.  If there is none, it cannot be read
+	 * or it is for another board size or win length, the default weights are returned.
+	 *
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The win length of the game.
+	 */
+	public static synchronized EvalWeights forGame(final int width, final int height, final int winLength)
+	{
+		if(!triedLoading)
+		{
+			triedLoading = true;
+			final File file = new File(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+			if(file.exists())
+			{
+				try
+				{
+					loaded = load(file);
+				}
+				catch(Exception e)
+				{
+					System.err.println("Cannot load evaluation weights: " + e.getMessage());
+				}
+			}
+		}
+		return loaded != null && loaded.isFor(width, height, winLength) ? loaded : defaults(width, height, winLength);
+	}
+
+	/// Returns the number of features for a win length.
+	public static int getFeatureCount(final int winLength)
+	{
+		return winLength + 1;
+	}
+
+	/// Returns the name of a feature, as used in the weights file.
+	public static String getFeatureName(final int feature, final int winLength)
+	{
+		if(feature < winLength - 1)
+			return "lines" + (feature + 1);
+		return feature == winLength - 1 ? "center" : "parity";
+	}
+
+	/// Index of the center feature.
+	public static int center(final int winLength)
+	{
+		return winLength - 1;
+	}
+
+	/// Index of the parity feature.
+	public static int parity(final int winLength)
+	{
+		return winLength;
+	}
+
+	/// Reads weights from a properties file.
+	/**
+	 * @param file A file written by save.
+	 * @throws IOException If the file cannot be read or lacks the board size or a weight.
+	 */
+	public static EvalWeights load(final File file) throws IOException
+	{
+		final Properties properties = new Properties();
+		try(Reader in = new BufferedReader(new FileReader(file)))
+		{
+			properties.load(in);
+		}
+		try
+		{
+			final String width = properties.getProperty("width");
+			final String height = properties.getProperty("height");
+			if(width == null || height == null)
+				throw new IOException(file + " does not give the board size it was tuned on");
+			final int winLength = Integer.parseInt(properties.getProperty("winLength", "4").trim());
+			final double[] values = new double[getFeatureCount(winLength)];
+			for(int i = 0; i < values.length; i++)
+			{
+				final String value = properties.getProperty(getFeatureName(i, winLength));
+				if(value == null)
+					throw new IOException(file + " has no weight for " + getFeatureName(i, winLength));
+				values[i] = Double.parseDouble(value.trim());
+			}
+			return new EvalWeights(Integer.parseInt(width.trim()), Integer.parseInt(height.trim()), winLength, values);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException(file + ": Invalid number: " + e.getMessage());
+		}
+	}
+
+	/// Writes the weights to a properties file.
+	/**
+	 * @param file The file to write.
+	 * @param comment A line to put at the top of the file, or null.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(final File file, final String comment) throws IOException
+	{
+		try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file))))
+		{
+			if(comment != null)
+				out.println("# " + comment);
+			out.println("width=" + width);
+			out.println("height=" + height);
+			out.println("winLength=" + winLength);
+			for(int i = 0; i < values.length; i++)
+				out.println(getFeatureName(i, winLength) + "=" + values[i]);
+		}
+	}
+
+	/// Returns the width of the board the weights are for.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board the weights are for.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the win length the weights are for.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+
+	/// Returns whether the weights are for the given board size and win length.
+	public boolean isFor(final int width, final int height, final int winLength)
+	{
+		return this.width == width && this.height == height && this.winLength == winLength;
+	}
+
+	/// Returns a weight.
+	/**
+	 * @param feature The index of the feature.
+	 */
+	public double get(final int feature)
+	{
+		return values[feature];
+	}
+
+	/// Returns whether the parity feature is used, so callers can skip computing it.
+	public boolean usesParity()
+	{
+		return fixed[parity(winLength)] != 0;
+	}
+
+	/// Scores a position from the point of view of a player.
+	/**
+	 * @param state The position.
+	 * @param player The player to score for, 1 or 2.
+	 * @param threats An analyzer for the board size, or null; only used if usesParity().
+	 * @return The weighted sum of the features.
+	 */
+	public int evaluate(final EvaluatedGameState state, final int player, final ThreatAnalyzer threats)
+	{
+		final int enemy = 3 - player;
+		int sum = 0;
+		for(int coins = 1; coins < winLength; coins++)
+			sum += fixed[coins - 1] * (state.getOpenLines(player, coins) - state.getOpenLines(enemy, coins));
+
+		if(fixed[center(winLength)] != 0)
+		{
+			final int width = state.getWidth();
+			int center = 0;
+			for(int x = (width - 1) / 2; x <= width / 2; x++)
+				for(int y = 0; y < state.getHeightAt(x); y++)
+					center += state.getAt(x, y) == player ? 1 : -1;
+			sum += fixed[center(winLength)] * center;
+		}
+
+		if(threats != null && usesParity())
+		{
+			threats.analyze(state);
+			final int owner = threats.getZugzwang();
+			if(owner != 0)
+				sum += owner == player ? fixed[parity(winLength)] : -fixed[parity(winLength)];
+		}
+		// Rounds toward zero, so that the score for one player is minus that for the other
+		return sum / (1 << FRACTION_BITS);
+	}
+
+	/// Returns a number that changes whenever the weights, the board size or the win length do.
+	public long fingerprint()
+	{
+		long fingerprint = (width * 31L + height) * 31 + winLength;
+		for(final double value : values)
+			fingerprint = fingerprint * 31 + Double.doubleToLongBits(value);
+		return fingerprint;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder text = new StringBuilder();
+		for(int i = 0; i < values.length; i++)
+			text.append(i == 0 ? "" : " ").append(getFeatureName(i, winLength)).append('=')
+				.append(String.format("%.3f", values[i]));
+		return text.toString();
+	}
+}
@@ -0,0 +1,340 @@
+// (c) Scott Madera, Cameron Lee
+
+
+import java.awt.Point;
+
+/// Game state layer that keeps line counts for evaluation up to date as moves are made.
+/**
+ * This class wraps any other GameStateModule (bitboard or general) and forwards every
+ * call to it.  On top of that it keeps track of every line of tiles on the board long
+ * enough to win (four in regular Connect Four) and, for each player, how many lines are
+ * still open to that player (contain none of the opponent's coins) and hold exactly
+ * 0, 1, 2, ... of that player's coins.
+ *
+ * makeMove only visits the lines through the tile that was filled, and unMakeMove
+ * undoes exactly that change, so reading the counts at a leaf costs O(1) instead of a
+ * scan of the whole board.
+ *
+ * @see GameStateModule
+ */
+public final class EvaluatedGameState implements GameStateLayer
+{
+	/// Directions that lines run in: horizontal, vertical and both diagonals.
+	private final static int[][] DIRECTIONS = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+
+	/// The underlying game.
+	private final GameStateModule game;
+	private final int WIDTH;
+	private final int HEIGHT;
+	/// Number of coins in a line, the win length of the game.
+	private final int LENGTH;
+	/// For every tile (x * HEIGHT + y), the lines passing through it.  Shared between copies.
+	private final int[][] cellLines;
+	/// The number of coins of each player in each line, indexed by line * 2 + player - 1.
+	private final byte[] lineCoins;
+	/// Open lines indexed by (player - 1) * (LENGTH + 1) + coins.
+	private final int[] open;
+	/// Columns played through this layer, so that unMakeMove knows which tile to clear.
+	private final int[] moves;
+	/// Number of moves made through this layer.
+	private int nplies = 0;
+
+	/// Primary Constructor.
+	/**
+	 * Wraps the given game.  The game may already contain coins; the line counts are
+	 * computed from its current contents.  From then on the game should only be
+	 * changed through this object.
+	 *
+	 * @param game The game to wrap.
+	 */
+	public EvaluatedGameState(final GameStateModule game)
+	{
+		this.game = game;
+		WIDTH = game.getWidth();
+		HEIGHT = game.getHeight();
+		LENGTH = game.getWinLength();
+		cellLines = buildLines(WIDTH, HEIGHT, LENGTH);
+		lineCoins = new byte[2 * countLines(WIDTH, HEIGHT, LENGTH)];
+		open = new int[2 * (LENGTH + 1)];
+		moves = new int[WIDTH * HEIGHT];
+
+		// Tally the coins already on the board
+		for(int x = 0; x < WIDTH; x++)
+			for(int y = 0; y < HEIGHT; y++)
+			{
+				final int player = game.getAt(x, y);
+				if(player != 0)
+					for(final int line : cellLines[x * HEIGHT + y])
+						lineCoins[2 * line + player - 1]++;
+			}
+		for(int line = 0; line < lineCoins.length / 2; line++)
+		{
+			final int first = lineCoins[2 * line];
+			final int second = lineCoins[2 * line + 1];
+			if(second == 0)
+				open[first]++;
+			if(first == 0)
+				open[LENGTH + 1 + second]++;
+		}
+	}
+
+	/// Copy Constructor.
+	/**
+	 * @param game A copy of source's underlying game.
+	 * @param source The layer to duplicate.
+	 */
+	private EvaluatedGameState(final GameStateModule game, final EvaluatedGameState source)
+	{
+		this.game = game;
+		WIDTH = source.WIDTH;
+		HEIGHT = source.HEIGHT;
+		LENGTH = source.LENGTH;
+		cellLines = source.cellLines;
+		open = new int[source.open.length];
+		lineCoins = new byte[source.lineCoins.length];
+		moves = new int[source.moves.length];
+		source.copyCounts(this);
+	}
+
+	/// Counts the lines of the given length that fit on a board.
+	private static int countLines(final int width, final int height, final int length)
+	{
+		int lines = 0;
+		for(final int[] d : DIRECTIONS)
+			lines += Math.max(0, width - (length - 1) * d[0]) * Math.max(0, height - (length - 1) * Math.abs(d[1]));
+		return lines;
+	}
+
+	/// Lists, for every tile of a board, the lines of the given length passing through it.
+	private static int[][] buildLines(final int width, final int height, final int length)
+	{
+		final int[] sizes = new int[width * height];
+		final int[][] cells = new int[width * height][];
+		// The first pass counts the lines through each tile, the second fills them in.
+		for(int pass = 0; pass < 2; pass++)
+		{
+			int line = 0;
+			for(final int[] d : DIRECTIONS)
+				for(int x = 0; x < width; x++)
+					for(int y = 0; y < height; y++)
+					{
+						final int endX = x + (length - 1) * d[0];
+						final int endY = y + (length - 1) * d[1];
+						if(endX >= width || endY < 0 || endY >= height)
+							continue;
+						for(int i = 0; i < length; i++)
+						{
+							final int cell = (x + i * d[0]) * height + y + i * d[1];
+							if(pass == 0)
+								sizes[cell]++;
+							else
+								cells[cell][--sizes[cell]] = line;
+						}
+						line++;
+					}
+			if(pass == 0)
+				for(int cell = 0; cell < cells.length; cell++)
+					cells[cell] = new int[sizes[cell]];
+		}
+		return cells;
+	}
+
+	/// Copies the line counts and history of this into target.
+	private void copyCounts(final EvaluatedGameState target)
+	{
+		System.arraycopy(lineCoins, 0, target.lineCoins, 0, lineCoins.length);
+		System.arraycopy(open, 0, target.open, 0, open.length);
+		System.arraycopy(moves, 0, target.moves, 0, nplies);
+		target.nplies = nplies;
+	}
+
+	/// Creates a deep copy of this, including the underlying game.
+	public EvaluatedGameState copy()
+	{
+		return new EvaluatedGameState(game.copy(), this);
+	}
+
+	/// Overwrites the given game with a deep copy of this.
+	/**
+	 * @param target An EvaluatedGameState of the same size wrapping the same kind of game.
+	 * @return The target.
+	 * @throws RuntimeException If target is not compatible.
+	 */
+	public EvaluatedGameState copyInto(final GameStateModule target)
+	{
+		if(!(target instanceof EvaluatedGameState) || target.getWidth() != WIDTH || target.getHeight() != HEIGHT
+		   || target.getWinLength() != LENGTH)
+			throw new RuntimeException("Cannot copy into " + target.getClass().getName());
+		final EvaluatedGameState other = (EvaluatedGameState) target;
+		game.copyInto(other.game);
+		copyCounts(other);
+		return other;
+	}
+
+	/// Returns the number of lines open to a player holding the given number of their coins.
+	/**
+	 * A line is open to a player if none of its tiles holds a coin of the opponent.
+	 *
+	 * @param player The player, 1 or 2.
+	 * @param coins The number of that player's coins in the line, 0 through getWinLength().
+	 * @return The number of such lines on the board.
+	 */
+	public int getOpenLines(final int player, final int coins)
+	{
+		return open[(player - 1) * (LENGTH + 1) + coins];
+	}
+
+	/// Adds or removes one coin of a player at a tile and updates the open line counts.
+	/**
+	 * @param cell The tile, x * HEIGHT + y.
+	 * @param player The player, 1 or 2.
+	 * @param delta +1 to place a coin, -1 to take it back.
+	 */
+	private void update(final int cell, final int player, final int delta)
+	{
+		final int own = player - 1;
+		final int other = 1 - own;
+		final int ownBase = own * (LENGTH + 1);
+		final int otherBase = other * (LENGTH + 1);
+		for(final int line : cellLines[cell])
+		{
+			final int ownCoins = lineCoins[2 * line + own];
+			final int otherCoins = lineCoins[2 * line + other];
+			if(delta > 0)
+			{
+				if(otherCoins == 0)
+				{
+					open[ownBase + ownCoins]--;
+					open[ownBase + ownCoins + 1]++;
+				}
+				// The opponent can no longer complete this line
+				if(ownCoins == 0)
+					open[otherBase + otherCoins]--;
+				lineCoins[2 * line + own]++;
+			}
+			else
+			{
+				if(otherCoins == 0)
+				{
+					open[ownBase + ownCoins]--;
+					open[ownBase + ownCoins - 1]++;
+				}
+				if(ownCoins == 1)
+					open[otherBase + otherCoins]++;
+				lineCoins[2 * line + own]--;
+			}
+		}
+	}
+
+	/// Makes the specified move for the active player and updates the line counts.
+	/**
+	 * @param x The move to be made.
+	 * @throws RuntimeException If the move is illegal.
+	 * @see unMakeMove
+	 */
+	public void makeMove(final int x) throws RuntimeException
+	{
+		if(!game.canMakeMove(x))
+			throw new RuntimeException("Illegal Move: " + x);
+		final int player = game.getActivePlayer();
+		final int y = game.getHeightAt(x);
+		game.makeMove(x);
+		update(x * HEIGHT + y, player, 1);
+		moves[nplies++] = x;
+	}
+
+	/// Undoes the most recent move made through this layer.
+	/**
+	 * @see makeMove
+	 */
+	public void unMakeMove()
+	{
+		final int x = moves[--nplies];
+		game.unMakeMove();
+		update(x * HEIGHT + game.getHeightAt(x), game.getActivePlayer(), -1);
+	}
+
+	/// Returns the underlying game.
+	public GameStateModule getGame()
+	{
+		return game;
+	}
+
+	/// Any two layers of the same board size can be copied into each other.
+	public boolean matches(final GameStateLayer other)
+	{
+		return true;
+	}
+
+	/// Forwarded to the underlying game.
+	public boolean canMakeMove(final int x)
+	{
+		return game.canMakeMove(x);
+	}
+
+	/// Forwarded to the underlying game.
+	public boolean isGameOver()
+	{
+		return game.isGameOver();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWinner() throws RuntimeException
+	{
+		return game.getWinner();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getActivePlayer()
+	{
+		return game.getActivePlayer();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getAt(final int x, final int y)
+	{
+		return game.getAt(x, y);
+	}
+
+	/// Forwarded to the underlying game.
+	public int getHeightAt(final int x)
+	{
+		return game.getHeightAt(x);
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWidth()
+	{
+		return WIDTH;
+	}
+
+	/// Forwarded to the underlying game.
+	public int getHeight()
+	{
+		return HEIGHT;
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWinLength()
+	{
+		return LENGTH;
+	}
+
+	/// Forwarded to the underlying game.
+	public int getCoins()
+	{
+		return game.getCoins();
+	}
+
+	/// Forwarded to the underlying game.
+	public Point getStartPt()
+	{
+		return game.getStartPt();
+	}
+
+	/// Forwarded to the underlying game.
+	public Point getEndPt()
+	{
+		return game.getEndPt();
+	}
+}
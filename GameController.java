@@ -1,5 +1,8 @@
 // (c) Ian Davidson, Leo Shamis U.C. Davis 2019
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 /// Coordinates the game classes and runs the game.
 /**
@@ -18,8 +21,132 @@ public final class GameController
 	private final IOModule io;
 	/// AI game-players.
 	private final AIModule[] players;
-	/// Time alloted to any AI per turn.
-	private final int AI_time;
+	/// Time alloted to the AIs.
+	private final TimeControl timeControl;
+	/// Time on each player's clock in nanoseconds.
+	private final long[] clocks = new long[2];
+	/// Number of moves made by each player.
+	private final int[] moves = new int[2];
+	/// Player that lost on time or by throwing an exception, or 0.
+	private int forfeited = 0;
+	/// Timing of each player's moves.
+	private final MoveStats[] stats = {new MoveStats(), new MoveStats()};
+	/// The AIs that implement GameListener and anything added with addListener.
+	private final List<GameListener> listeners = new ArrayList<GameListener>();
+	/// Copies of the game handed to each AI, reused from turn to turn.
+	private final GameStateModule[] duplicates = new GameStateModule[2];
+	/// Shared workers that run the AIs, or null to start a thread per player.
+	private final WorkerPool aiPool;
+	/// Long-lived thread for each AI when there is no aiPool, started on its first move.
+	private final AIWorker[] workers = new AIWorker[2];
+
+	/// Thread that runs one AI's moves for the whole game.
+	/**
+	 * Moves are handed over and results read back under the worker's monitor, so the
+	 * AI's writes to chosenMove and its own fields are visible to the controller once
+	 * the move is finished, and the copy of the game is visible to the AI.
+	 */
+	private static final class AIWorker extends Thread
+	{
+		private final AIModule ai;
+		/// State to move in, or null while idle.  Guarded by this.
+		private GameStateModule pending = null;
+		/// Whether a move has been handed over and has not finished.  Guarded by this.
+		private boolean busy = false;
+		/// Whether the thread should exit once idle.  Guarded by this.
+		private boolean stopped = false;
+		/// Exception thrown by the AI during the last move.  Guarded by this.
+		private Throwable failure = null;
+
+		AIWorker(final AIModule ai, final String name)
+		{
+			super(name);
+			this.ai = ai;
+			setDaemon(true);
+		}
+
+		/// Hands the AI a state to move in.
+		synchronized void begin(final GameStateModule state)
+		{
+			pending = state;
+			busy = true;
+			failure = null;
+			notifyAll();
+		}
+
+		/// Waits up to the given time for the current move to finish.
+		/**
+		 * @return Whether the move has finished.
+		 * @throws Exception If the AI threw an exception.
+		 */
+		synchronized boolean await(final long nanos) throws Exception
+		{
+			final long deadline = System.nanoTime() + nanos;
+			long left = nanos;
+			while(busy && left > 0)
+			{
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+				left = deadline - System.nanoTime();
+			}
+			if(failure != null)
+				throw new RuntimeException(failure);
+			return !busy;
+		}
+
+		/// Lets the thread exit once the current move has finished.
+		synchronized void finish()
+		{
+			stopped = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				final GameStateModule state;
+				synchronized(this)
+				{
+					while(pending == null && !stopped)
+					{
+						try
+						{
+							wait();
+						}
+						catch(InterruptedException e)
+						{
+							return;
+						}
+					}
+					if(pending == null)
+						return;
+					state = pending;
+					pending = null;
+				}
+
+				Throwable thrown = null;
+				final long cpu = MoveStats.cpuTime();
+				try
+				{
+					ai.getNextMove(state);
+				}
+				catch(Throwable t)
+				{
+					thrown = t;
+				}
+				ai.finished = System.nanoTime();
+				ai.cpuUsed = cpu < 0 ? -1 : MoveStats.cpuTime() - cpu;
+
+				synchronized(this)
+				{
+					failure = thrown;
+					busy = false;
+					notifyAll();
+				}
+			}
+		}
+	}
 
 	/// Primary Constructor.
 	/**
@@ -32,13 +159,61 @@ public final class GameController
 	 * @param AI_time Maximum amount of time alotted per AI move.
 	 */
 	public GameController(final GameStateModule game, final IOModule io, final AIModule[] players, final int AI_time)
+	{
+		this(game, io, players, TimeControl.perMove(AI_time));
+	}
+
+	/// Constructor for games played with a clock.
+	/**
+	 * @param game The game to arbitrate.
+	 * @param io An IO module to use for graphics output and human input.
+	 * @param players An array of two AIModules that will be pitted against each other.
+	 * @param timeControl Time alloted to the AIs.
+	 */
+	public GameController(final GameStateModule game, final IOModule io, final AIModule[] players,
+						  final TimeControl timeControl)
+	{
+		this(game, io, players, timeControl, null);
+	}
+
+	/// Constructor for running many games on shared workers.
+	/**
+	 * Instead of starting a thread per move, the AIs run on a shared pool of workers
+	 * and their deadlines are enforced by a timer wheel, so that the thread running
+	 * play never joins or sleeps on its own.
+	 *
+	 * @param game The game to arbitrate.
+	 * @param io An IO module to use for graphics output and human input.
+	 * @param players An array of two AIModules that will be pitted against each other.
+	 * @param timeControl Time alloted to the AIs.
+	 * @param aiPool Workers on which to run the AIs, or null to start a thread per player.
+	 * @see GameScheduler
+	 */
+	public GameController(final GameStateModule game, final IOModule io, final AIModule[] players,
+						  final TimeControl timeControl, final WorkerPool aiPool)
 	{
 		assert players.length == 2 : "Should only have two players.";
 
 		this.game = game;
 		this.io = io;
 		this.players = players;
-		this.AI_time = AI_time;
+		this.timeControl = timeControl;
+		this.aiPool = aiPool;
+		clocks[0] = clocks[1] = timeControl.start();
+		for(final AIModule player : players)
+			if(player instanceof GameListener)
+				listeners.add((GameListener) player);
+	}
+
+	/// Tells a listener about the game as it is played, such as a GameRecordWriter.
+	/**
+	 * Must be called before play.
+	 *
+	 * @param listener The listener to add.
+	 */
+	public void addListener(final GameListener listener)
+	{
+		listeners.add(listener);
 	}
 
 	/// Start the gameplay.
@@ -47,79 +222,231 @@ public final class GameController
 	 */
 	public void play()
 	{
-		// Draw the initial board
-		io.drawBoard(game);
-		// While not finished
-		while(!game.isGameOver())
-			// for both players
+		try
+		{
+			// Tell everyone that follows the game where it starts
+			for(final GameListener listener : listeners)
+				listener.onGameStart(game.copy());
+			// Draw the initial board
+			io.drawBoard(game);
+			// While not finished
+			while(!game.isGameOver() && forfeited == 0)
+				// for both players
+				for(int i = 0; i < 2; i++)
+				{
+					final AIModule player = players[i];
+					// If the player is human than make a move request
+					if(player == null)
+						tryMakeMove(io.getHumanMove());
+					else
+						callAI(player, i);
+
+					// Update graphics
+					io.drawBoard(game);
+					// Break if done
+					if(game.isGameOver() || forfeited != 0)
+						break;
+				}
+			for(final GameListener listener : listeners)
+				listener.onGameEnd(getWinner());
+		}
+		finally
+		{
+			// Let the AI threads go
 			for(int i = 0; i < 2; i++)
-			{
-				final AIModule player = players[i];
-				// If the player is human than make a move request
-				if(player == null)
-					tryMakeMove(io.getHumanMove());
-				else
-					callAI(player, "Player " + (i + 1));
-
-				// Update graphics
-				io.drawBoard(game);
-				// Break if done
-				if(game.isGameOver())
-					break;
-			}
+				if(workers[i] != null)
+				{
+					workers[i].finish();
+					workers[i] = null;
+				}
+		}
+	}
+
+	/// Returns the winner of the game, taking losses on time into account.
+	/**
+	 * @return 1 or 2 for the winning player, or 0 on a draw.
+	 */
+	public int getWinner()
+	{
+		if(forfeited != 0)
+			return 3 - forfeited;
+		return game.getWinner();
+	}
+
+	/// Returns the player that lost on time or by throwing an exception, or 0 if neither did.
+	public int getForfeited()
+	{
+		return forfeited;
+	}
+
+	/// Returns the timing of a player's moves so far.
+	/**
+	 * @param player 1 or 2.
+	 */
+	public MoveStats getStats(final int player)
+	{
+		return stats[player - 1];
+	}
+
+	/// Returns the time left on a player's clock in nanoseconds.
+	/**
+	 * @param player 1 or 2.
+	 */
+	public long getClock(final int player)
+	{
+		return clocks[player - 1];
 	}
 
 	/// Gets the next move from the AI.
 	/**
-	 * Given an AI module, extracts the move from that module.  The AI will have
-	 * a set period of time in which to choose a move.
+	 * Given an AI module, extracts the move from that module.  The AI is told to stop
+	 * once the time control's limit for the move has passed.  With a fixed time per
+	 * move it then has the grace period to return; under a clock it loses as soon as
+	 * its clock runs out, and the grace period only bounds how long the controller
+	 * waits for its thread.  An AI that throws an exception also loses the game.
 	 *
 	 * @param ai The AIModule to call.
-	 * @param AIName Label given to the AI.
+	 * @param index Index of the AI in the players array.
 	 * @see AIModule
 	 */
-	private void callAI(final AIModule ai, final String AIName)
+	private void callAI(final AIModule ai, final int index)
 	{
-		// Make a duplicate GameStateModule to avoid any unwanted changes to the board
-		final GameStateModule duplicate = game.copy();
+		final String AIName = "Player " + (index + 1);
+		// Make a duplicate GameStateModule to avoid any unwanted changes to the board.
+		// The previous turn's duplicate is overwritten rather than allocating a new one.
+		if(duplicates[index] == null)
+			duplicates[index] = game.copy();
+		else
+			game.copyInto(duplicates[index]);
+		final GameStateModule duplicate = duplicates[index];
+
+		final long clock = clocks[index];
+		final int movesLeft = (game.getWidth() * game.getHeight() - game.getCoins() + 1) / 2;
+		final long limit = timeControl.limit(clock, moves[index], movesLeft);
+		final long allocation = timeControl.allocate(clock, moves[index], movesLeft);
+		final long giveUp = (timeControl.isPerMove() ? limit : clock) + WorkerPool.GRACE_NANOS;
 		ai.terminate = false;
-		// Run the ai in another thread
-		final Thread t = new Thread()
-		{
-			@Override
-			public void run()
-			{
-				ai.getNextMove(duplicate);
-			}
-		};
-		t.start();
 		int move = -1;
 		try
 		{
-			// Wait until the ai has finished or has timed out
-			t.join(AI_time);
-			// Set the terminate flag so that the AI knows it should wrap up its computations
-			ai.terminate = true;
-			if(t.isAlive())
-			{
-				// Allow 100ms margin before throwing the exception
-				t.join(100);
-				if(t.isAlive())
-					throw new RuntimeException(AIName + " did not terminate when told to do so.");
-			}
-			// Get the selected move
-			move = ai.chosenMove;
+			if(aiPool == null)
+				move = runOnWorker(ai, index, duplicate, AIName, limit, allocation, giveUp);
+			else
+				move = runOnPool(ai, duplicate, AIName, limit, allocation, giveUp);
+		}
+		catch(TimeoutException e)
+		{
+			stats[index].recordOverrun();
+			System.err.println(e.getMessage() + "  " + AIName + " loses on time.");
+			forfeited = index + 1;
+			return;
 		}
 		catch(Exception e)
 		{
 			e.printStackTrace();
-			System.exit(-1);
+			System.err.println(AIName + " forfeits the game.");
+			forfeited = index + 1;
+			return;
 		}
+		final long remaining = clock - (ai.finished - ai.started);
+		if(!timeControl.isPerMove() && remaining < 0)
+		{
+			stats[index].recordOverrun();
+			System.err.println(AIName + " returned after its clock ran out and loses on time.");
+			forfeited = index + 1;
+			return;
+		}
+		clocks[index] = timeControl.afterMove(remaining, ++moves[index]);
+		final long stoppedAt = ai.stoppedAt;
+		stats[index].record(ai.finished - ai.started, ai.cpuUsed,
+							stoppedAt != 0 && ai.finished >= stoppedAt ? ai.finished - stoppedAt : -1);
 
 		// Try to make the move. If it fails then arbitrarily assign the move
 		tryMakeMove(move);
 	}
 
+	/// Runs the AI on its long-lived worker thread and waits for it to finish or time out.
+	/**
+	 * @param ai The AIModule to call.
+	 * @param index Index of the AI in the players array.
+	 * @param duplicate The copy of the game to hand to the AI.
+	 * @param AIName Label given to the AI.
+	 * @param limit Time until the terminate flag is set in nanoseconds.
+	 * @param allocation Time the AI should plan to use in nanoseconds.
+	 * @param giveUp Time after which the AI is left behind in nanoseconds.
+	 * @return The move chosen by the AI.
+	 * @throws TimeoutException If the AI does not terminate in time.
+	 * @throws Exception If the AI throws.
+	 */
+	private int runOnWorker(final AIModule ai, final int index, final GameStateModule duplicate, final String AIName,
+							final long limit, final long allocation, final long giveUp) throws Exception
+	{
+		if(workers[index] == null)
+		{
+			workers[index] = new AIWorker(ai, AIName);
+			workers[index].start();
+		}
+		final AIWorker worker = workers[index];
+		ai.startClock(limit, allocation, timeControl.getIncrement());
+		worker.begin(duplicate);
+		// Wait until the ai has finished or has timed out
+		boolean done = worker.await(limit);
+		// Set the terminate flag so that the AI knows it should wrap up its computations
+		if(!done)
+			ai.stoppedAt = System.nanoTime();
+		ai.terminate = true;
+		if(!done)
+		{
+			// Allow some margin before throwing the exception
+			done = worker.await(ai.started + giveUp - System.nanoTime());
+			if(!done)
+			{
+				// The thread is stuck in the AI; leave it and start another next move
+				workers[index] = null;
+				worker.finish();
+				throw new TimeoutException(AIName + " did not terminate when told to do so.");
+			}
+		}
+		// Get the selected move
+		return ai.chosenMove;
+	}
+
+	/// Runs the AI on the shared workers, with its deadlines kept by the timer wheel.
+	/**
+	 * The AI's time starts when a worker picks it up, not while it waits in the queue.
+	 *
+	 * @param ai The AIModule to call.
+	 * @param duplicate The copy of the game to hand to the AI.
+	 * @param AIName Label given to the AI.
+	 * @param limit Time until the terminate flag is set in nanoseconds.
+	 * @param allocation Time the AI should plan to use in nanoseconds.
+	 * @param giveUp Time after which the AI is left behind in nanoseconds.
+	 * @return The move chosen by the AI.
+	 * @throws TimeoutException If the AI does not terminate in time.
+	 * @throws Exception If the AI throws.
+	 * @see WorkerPool
+	 */
+	private int runOnPool(final AIModule ai, final GameStateModule duplicate, final String AIName,
+						  final long limit, final long allocation, final long giveUp) throws Exception
+	{
+		final CompletableFuture<Integer> result = aiPool.move(ai, duplicate, limit, allocation,
+															  timeControl.getIncrement(), giveUp, AIName);
+		try
+		{
+			return result.get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof TimeoutException)
+				throw (TimeoutException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			ai.terminate = true;
+		}
+	}
+
 	/// Attempts to make the given move, defaulting to an arbitrary move otherwise.
 	/**
 	 * Given a move, attempts to play that move.  If the move is illegal, the GameController
@@ -129,6 +456,7 @@ public final class GameController
 	 */
 	private void tryMakeMove(final int move)
 	{
+		final int mover = game.getActivePlayer();
 		// If the move is illegal, make some valid move and write to System.err
 		if(!game.canMakeMove(move))
 		{
@@ -139,10 +467,26 @@ public final class GameController
 					System.err.println("Attempted to play illegal move " + move +
 									   ".  Computer automatically played legal move " + j +
 									   " instead.");
+					notifyMove(j, mover);
 					break;
 				}
 		}
 		else
+		{
 			game.makeMove(move);
+			notifyMove(move, mover);
+		}
+	}
+
+	/// Tells everyone that follows the game about a move.
+	/**
+	 * @param column The column the coin was dropped in.
+	 * @param player The player that moved.
+	 * @see GameListener
+	 */
+	private void notifyMove(final int column, final int player)
+	{
+		for(final GameListener listener : listeners)
+			listener.onMovePlayed(column, player);
 	}
 }
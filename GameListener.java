@@ -0,0 +1,39 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// Optional interface for AIs that want to follow the game as it is played.
+/**
+ * An AIModule that also implements GameListener is told by the GameController when
+ * the game starts, after every move by either player and when the game ends.  Such an
+ * AI can keep its own copy of the position, its search tree, caches or incremental
+ * evaluation from one turn to the next and advance them move by move, instead of
+ * rebuilding them from the state passed to getNextMove.
+ *
+ * The calls are made from the controller's thread while the AI is not thinking, and
+ * are ordered before the next call to getNextMove.  Other code can follow a game the
+ * same way through GameController.addListener.
+ *
+ * @see AIModule
+ * @see GameController
+ */
+public interface GameListener
+{
+    /// Called once before the first move.
+    /**
+     * @param game A copy of the starting position, which the listener may keep.
+     */
+    public void onGameStart(final GameStateModule game);
+
+    /// Called after every move by either player, including moves the controller picked.
+    /**
+     * @param column The column the coin was dropped in.
+     * @param player The player that moved, 1 or 2.
+     */
+    public void onMovePlayed(final int column, final int player);
+
+    /// Called once the game is over.
+    /**
+     * @param winner The winning player, or 0 on a draw.
+     */
+    public void onGameEnd(final int winner);
+}
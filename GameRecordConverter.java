@@ -0,0 +1,198 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Converts text dumps of games to the binary game record format.
+/**
+ * Reads the boards printed by TextDisplay: one line per row from the top down, using
+ * '.' for an empty cell, 'x' for player 1 and 'o' for player 2, with boards separated
+ * by blank lines.  Each board must add one coin to the one before it, and an empty
+ * board starts a new game.  A record holds one board size, so every game must be on
+ * the size of the first.  Other lines, such as prompts, are skipped.  The result of
+ * each game is found by replaying it, and the players are recorded as "Unknown".
+ *
+ * Usage: java GameRecordConverter [-k winLength] input... output
+ *
+ * @see GameRecordWriter
+ */
+public final class GameRecordConverter
+{
+	/// Name recorded for both players.
+	private static final String UNKNOWN = "Unknown";
+
+	private final int winLength;
+	private GameRecordWriter writer = null;
+	private final File output;
+	private GameStateModule game = null;
+	/// Rows of the previous board, from the top down.
+	private String[] board = null;
+	private final int[] moves = new int[255];
+	private int count = 0;
+	private int games = 0;
+
+	/// Primary Constructor.
+	/**
+	 * @param output The record file to append to.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public GameRecordConverter(final File output, final int winLength)
+	{
+		this.output = output;
+		this.winLength = winLength;
+	}
+
+	/// Converts the games in a text dump.
+	/**
+	 * @param input The text dump.
+	 * @throws IOException If a file cannot be read or written, or the dump is not a sequence of games.
+	 */
+	public void convert(final File input) throws IOException
+	{
+		try(BufferedReader in = new BufferedReader(new FileReader(input)))
+		{
+			final List<String> rows = new ArrayList<String>();
+			String line;
+			int number = 0;
+			while((line = in.readLine()) != null)
+			{
+				number++;
+				line = line.trim();
+				if(line.matches("[.xo]+"))
+					rows.add(line);
+				else if(!rows.isEmpty())
+				{
+					addBoard(rows.toArray(new String[rows.size()]), input + ":" + number);
+					rows.clear();
+				}
+			}
+			if(!rows.isEmpty())
+				addBoard(rows.toArray(new String[rows.size()]), input + ":" + number);
+		}
+		endGame();
+	}
+
+	/// Adds the next board of the dump.
+	/**
+	 * @param rows The rows of the board, from the top down.
+	 * @param where The file and line, for error messages.
+	 */
+	private void addBoard(final String[] rows, final String where) throws IOException
+	{
+		final int width = rows[0].length();
+		for(final String row : rows)
+			if(row.length() != width)
+				throw new IOException(where + ": Rows of different lengths");
+
+		if(isEmpty(rows))
+		{
+			endGame();
+			if(writer == null)
+				writer = new GameRecordWriter(output, width, rows.length, winLength, new String[] {UNKNOWN});
+			else if(width != writer.getWidth() || rows.length != writer.getHeight())
+				throw new IOException(where + ": Game is on a " + width + "x" + rows.length + " board, but the record is "
+									  + writer.getWidth() + "x" + writer.getHeight());
+			game = Main.createGame(width, rows.length, winLength);
+			board = rows;
+			return;
+		}
+		if(game == null)
+			throw new IOException(where + ": Game does not start from an empty board");
+		if(width != game.getWidth() || rows.length != game.getHeight())
+			throw new IOException(where + ": Board size changed within a game");
+
+		// Find the coin that was added
+		int column = -1;
+		for(int y = 0; y < rows.length; y++)
+			for(int x = 0; x < width; x++)
+				if(rows[y].charAt(x) != board[y].charAt(x))
+				{
+					if(column >= 0 || board[y].charAt(x) != '.')
+						throw new IOException(where + ": Board is not one move after the last");
+					column = x;
+				}
+		if(column < 0)
+			return;
+		final int y = game.getHeight() - 1 - game.getHeightAt(column);
+		final char coin = game.getActivePlayer() == 1 ? 'x' : 'o';
+		if(game.isGameOver() || !game.canMakeMove(column) || rows[y].charAt(column) != coin)
+			throw new IOException(where + ": Illegal move in column " + column);
+		game.makeMove(column);
+		moves[count++] = column;
+		board = rows;
+	}
+
+	/// Returns whether a board has no coins.
+	private static boolean isEmpty(final String[] rows)
+	{
+		for(final String row : rows)
+			if(row.indexOf('x') >= 0 || row.indexOf('o') >= 0)
+				return false;
+		return true;
+	}
+
+	/// Writes out the game in progress, if it has any moves.
+	private void endGame() throws IOException
+	{
+		if(count > 0)
+		{
+			writer.write(0, 0, game.isGameOver() ? game.getWinner() : GameRecordWriter.UNFINISHED, moves, count);
+			games++;
+		}
+		count = 0;
+		game = null;
+	}
+
+	/// Returns the number of games converted so far.
+	public int getGames()
+	{
+		return games;
+	}
+
+	/// Finishes the record file.
+	public void close() throws IOException
+	{
+		if(writer != null)
+			writer.close();
+	}
+
+	/// Program startup function.
+	public static void main(final String[] args)
+	{
+		int winLength = 4;
+		int first = 0;
+		if(args.length > 1 && args[0].equalsIgnoreCase("-k"))
+		{
+			try
+			{
+				winLength = Integer.parseInt(args[1]);
+			}
+			catch(NumberFormatException e)
+			{
+				System.err.println("Invalid Integer: " + e.getMessage());
+				System.exit(3);
+			}
+			first = 2;
+		}
+		if(args.length - first < 2)
+		{
+			System.err.println("Usage: java GameRecordConverter [-k winLength] input... output");
+			System.exit(2);
+		}
+
+		final GameRecordConverter converter = new GameRecordConverter(new File(args[args.length - 1]), winLength);
+		try
+		{
+			for(int i = first; i < args.length - 1; i++)
+				converter.convert(new File(args[i]));
+			converter.close();
+		}
+		catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.out.println("Converted " + converter.getGames() + " games");
+	}
+}
@@ -0,0 +1,216 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/// Reads the games in a binary game record file.
+/**
+ * The file is memory mapped and read with a cursor: next() moves to the following
+ * game, whose players, result and moves are then read straight from the mapping.
+ * Nothing is allocated per game, so millions of games can be scanned without any
+ * garbage.  Files are limited to 2GB, around 80 million 7x6 games.
+ *
+ * Typical use:
+ * <pre>
+ * GameRecordReader reader = new GameRecordReader(new File("games.c4r"));
+ * while(reader.next())
+ *     if(reader.getResult() == 1)
+ *         ...
+ * </pre>
+ *
+ * A reader is not thread safe, but separate readers may share a file.
+ *
+ * @see GameRecordWriter
+ */
+public final class GameRecordReader
+{
+	private final MappedByteBuffer buffer;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final String[] players;
+	/// Offset of the first game.
+	private final int first;
+	/// Offset of the current game, or -1 before the first call to next().
+	private int game = -1;
+	/// Offset of the game after the current one.
+	private int following;
+
+	/// Primary Constructor.
+	/**
+	 * @param file The record file.
+	 * @throws IOException If the file cannot be read or is not a game record.
+	 */
+	public GameRecordReader(final File file) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try
+		{
+			final byte[] magic = new byte[GameRecordWriter.MAGIC.length];
+			buffer.get(magic);
+			if(!Arrays.equals(magic, GameRecordWriter.MAGIC))
+				throw new IOException(file + " is not a game record");
+			final int version = buffer.get() & 0xFF;
+			if(version != GameRecordWriter.VERSION)
+				throw new IOException(file + " has unsupported version " + version);
+			width = buffer.get() & 0xFF;
+			height = buffer.get() & 0xFF;
+			winLength = buffer.get() & 0xFF;
+			players = new String[buffer.get() & 0xFF];
+			for(int i = 0; i < players.length; i++)
+			{
+				final byte[] utf = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(utf);
+				players[i] = new String(utf, StandardCharsets.UTF_8);
+			}
+		}
+		catch(java.nio.BufferUnderflowException e)
+		{
+			throw new IOException(file + " has a truncated header");
+		}
+		first = following = buffer.position();
+	}
+
+	/// Moves to the next game.
+	/**
+	 * @return Whether there was another game; false at the end of the file.  A game cut
+	 *         short by a writer that did not finish is treated as the end.
+	 * @throws IllegalStateException If the game's players, result or move count are out of
+	 *                               range, as when the file is corrupt.
+	 */
+	public boolean next()
+	{
+		if(following + 4 > buffer.limit())
+			return false;
+		final int count = buffer.get(following + 3) & 0xFF;
+		if(!isValid(buffer.get(following) & 0xFF, buffer.get(following + 1) & 0xFF, buffer.get(following + 2) & 0xFF,
+					count, players.length, width * height))
+			throw new IllegalStateException("Corrupt game in record at offset " + following);
+		final int end = following + 4 + (count + 1) / 2;
+		if(end > buffer.limit())
+			return false;
+		game = following;
+		following = end;
+		return true;
+	}
+
+	/// Returns whether the four bytes that start a game are in range.
+	/**
+	 * @param player1 The index of the player that moved first.
+	 * @param player2 The index of the player that moved second.
+	 * @param result The winner byte.
+	 * @param count The number of moves.
+	 * @param players The number of player names in the header.
+	 * @param cells The number of cells on the board.
+	 */
+	static boolean isValid(final int player1, final int player2, final int result, final int count,
+						   final int players, final int cells)
+	{
+		return player1 < players && player2 < players && result <= GameRecordWriter.UNFINISHED && count <= cells;
+	}
+
+	/// Goes back to before the first game.
+	public void reset()
+	{
+		game = -1;
+		following = first;
+	}
+
+	/// Returns the index in getPlayers() of the player that moved first in the current game.
+	public int getPlayer1()
+	{
+		return buffer.get(current()) & 0xFF;
+	}
+
+	/// Returns the index in getPlayers() of the player that moved second in the current game.
+	public int getPlayer2()
+	{
+		return buffer.get(current() + 1) & 0xFF;
+	}
+
+	/// Returns the winner of the current game: 1 or 2, 0 on a draw or GameRecordWriter.UNFINISHED.
+	public int getResult()
+	{
+		return buffer.get(current() + 2) & 0xFF;
+	}
+
+	/// Returns the number of moves in the current game.
+	public int getMoveCount()
+	{
+		return buffer.get(current() + 3) & 0xFF;
+	}
+
+	/// Returns a move of the current game.
+	/**
+	 * @param i The number of the move, from 0.
+	 * @return The column played.
+	 */
+	public int getMove(final int i)
+	{
+		if(i < 0 || i >= getMoveCount())
+			throw new IndexOutOfBoundsException("Move " + i + " of " + getMoveCount());
+		final int packed = buffer.get(game + 4 + i / 2);
+		return (i & 1) == 0 ? packed & 0xF : (packed >> 4) & 0xF;
+	}
+
+	/// Plays the first moves of the current game.
+	/**
+	 * @param state A game state, normally empty, of the record's board size.
+	 * @param moves The number of moves to play, at most getMoveCount().
+	 */
+	public void replay(final GameStateModule state, final int moves)
+	{
+		for(int i = 0; i < moves; i++)
+			state.makeMove(getMove(i));
+	}
+
+	/// Returns the offset of the current game.
+	private int current()
+	{
+		if(game < 0)
+			throw new IllegalStateException("next() has not been called");
+		return game;
+	}
+
+	/// Returns the width of the board.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the number of coins in a row needed to win.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+
+	/// Returns a copy of the names of the players.
+	public String[] getPlayers()
+	{
+		return players.clone();
+	}
+
+	/// Returns the name of a player.
+	/**
+	 * @param index The index of the player, as returned by getPlayer1 or getPlayer2.
+	 */
+	public String getPlayer(final int index)
+	{
+		return players[index];
+	}
+}
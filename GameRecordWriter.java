@@ -0,0 +1,231 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/// Appends games to a compact binary game record file.
+/**
+ * A record file starts with a header giving the board size, the win length and the
+ * names of the players that appear in it.  Every game after that takes four bytes
+ * (the two players' indexes into the names, the winner and the number of moves)
+ * followed by its moves at four bits each, two to a byte with the first move in the
+ * low bits.  A 7x6 game thus takes at most 25 bytes, where a text dump of its boards
+ * takes around 2KB.
+ *
+ * Header layout: the magic bytes "C4GR", a version byte, width, height and win length
+ * bytes, a byte giving the number of players, then each name as a two-byte length
+ * followed by its UTF-8 bytes.
+ *
+ * Games are only ever appended, so a file can be written by one run and added to by
+ * the next as long as the header matches.  A game cut short at the end of the file by
+ * a run that was killed is dropped before appending.  Writing is synchronized, so one
+ * writer can record the games of many controllers at once.
+ *
+ * @see GameRecordReader
+ * @see GameRecordConverter
+ */
+public final class GameRecordWriter implements Closeable
+{
+	/// First bytes of every record file.
+	static final byte[] MAGIC = {'C', '4', 'G', 'R'};
+	/// Version of the format written.
+	static final int VERSION = 1;
+	/// Result of a game that stopped before it was won or drawn.
+	public static final int UNFINISHED = 3;
+	/// Widest board whose columns fit in four bits.
+	static final int MAX_WIDTH = 16;
+
+	private final DataOutputStream out;
+	private final int width;
+	private final int height;
+	private final String[] players;
+
+	/// Primary Constructor.
+	/**
+	 * Creates the file with a header, or opens it for appending if it already exists
+	 * with the same header.
+	 *
+	 * @param file The record file.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param players Names of the players that may appear in the games.
+	 * @throws IOException If the file cannot be written, has a different header or holds a
+	 *                     corrupt game.
+	 */
+	public GameRecordWriter(final File file, final int width, final int height, final int winLength,
+							final String[] players) throws IOException
+	{
+		if(width > MAX_WIDTH || width * height > 255 || players.length > 255)
+			throw new IOException("Board or player list too large for a game record");
+		this.width = width;
+		this.height = height;
+		this.players = players.clone();
+
+		final byte[] header = header(width, height, winLength, players);
+		final boolean exists = file.length() > 0;
+		if(exists)
+		{
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				final byte[] existing = new byte[header.length];
+				try
+				{
+					raf.readFully(existing);
+				}
+				catch(EOFException e)
+				{
+					throw new IOException(file + " is not a matching game record");
+				}
+				if(!Arrays.equals(header, existing))
+					throw new IOException(file + " has a different board size or players");
+				// Drop a game left half written by a run that was killed
+				final long complete = completeLength(raf, header.length);
+				if(complete < raf.length())
+					raf.setLength(complete);
+			}
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		if(!exists)
+			out.write(header);
+	}
+
+	/// Walks the games of a record the way GameRecordReader.next does.
+	/**
+	 * @param raf The record file.
+	 * @param offset The offset of the first game.
+	 * @return The offset just past the last complete game.
+	 * @throws IOException If the file cannot be read or holds a game that is not valid.
+	 */
+	private long completeLength(final RandomAccessFile raf, long offset) throws IOException
+	{
+		final long length = raf.length();
+		final byte[] game = new byte[4];
+		while(offset + 4 <= length)
+		{
+			raf.seek(offset);
+			raf.readFully(game);
+			final int count = game[3] & 0xFF;
+			if(!GameRecordReader.isValid(game[0] & 0xFF, game[1] & 0xFF, game[2] & 0xFF, count, players.length,
+										 width * height))
+				throw new IOException("Corrupt game in record at offset " + offset);
+			final long end = offset + 4 + (count + 1) / 2;
+			if(end > length)
+				break;
+			offset = end;
+		}
+		return offset;
+	}
+
+	/// Returns the width of the board of every game in the record.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board of every game in the record.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Builds the header of a record file.
+	private static byte[] header(final int width, final int height, final int winLength, final String[] players)
+		throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream(bytes);
+		header.write(MAGIC);
+		header.writeByte(VERSION);
+		header.writeByte(width);
+		header.writeByte(height);
+		header.writeByte(winLength);
+		header.writeByte(players.length);
+		for(final String name : players)
+		{
+			final byte[] utf = name.getBytes(StandardCharsets.UTF_8);
+			header.writeShort(utf.length);
+			header.write(utf);
+		}
+		return bytes.toByteArray();
+	}
+
+	/// Appends a game.
+	/**
+	 * @param first Index in the player names of the player that moved first.
+	 * @param second Index in the player names of the player that moved second.
+	 * @param winner 1 or 2 for the winning player, 0 on a draw or UNFINISHED.
+	 * @param moves The columns played.
+	 * @param count The number of moves.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized void write(final int first, final int second, final int winner, final int[] moves,
+								   final int count) throws IOException
+	{
+		if(!GameRecordReader.isValid(first, second, winner, count, players.length, width * height))
+			throw new IllegalArgumentException("Invalid game");
+		out.writeByte(first);
+		out.writeByte(second);
+		out.writeByte(winner);
+		out.writeByte(count);
+		for(int i = 0; i < count; i += 2)
+			out.writeByte(moves[i] | (i + 1 < count ? moves[i + 1] << 4 : 0));
+	}
+
+	/// Returns a listener that appends the game it follows once it ends.
+	/**
+	 * Add it to a GameController with addListener.  A game that ends before it is won
+	 * or drawn, because a player forfeited or lost on time, is recorded as UNFINISHED
+	 * rather than as a win, since its moves do not show who would have won.
+	 *
+	 * @param first Index in the player names of the player that moves first.
+	 * @param second Index in the player names of the player that moves second.
+	 */
+	public GameListener recorder(final int first, final int second)
+	{
+		return new GameListener()
+		{
+			private final int[] moves = new int[width * height];
+			private int count = 0;
+			/// The position reached, to tell a game that was played out from one that was abandoned.
+			private GameStateModule game;
+
+			public void onGameStart(final GameStateModule game)
+			{
+				this.game = game;
+				count = 0;
+			}
+
+			public void onMovePlayed(final int column, final int player)
+			{
+				moves[count++] = column;
+				game.makeMove(column);
+			}
+
+			public void onGameEnd(final int winner)
+			{
+				try
+				{
+					write(first, second, game.isGameOver() ? winner : UNFINISHED, moves, count);
+				}
+				catch(IOException e)
+				{
+					throw new RuntimeException("Could not record game", e);
+				}
+			}
+		};
+	}
+
+	/// Writes out any buffered games.
+	public synchronized void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	/// Writes out any buffered games and closes the file.
+	public synchronized void close() throws IOException
+	{
+		out.close();
+	}
+}
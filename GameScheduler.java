@@ -0,0 +1,155 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Runs large numbers of games at once on a small, fixed set of AI workers.
+/**
+ * Each game's controller loop runs on a thread of its own, which spends nearly all its
+ * time waiting for an AI to move.  On Java 21 and later those are virtual threads, so
+ * tens of thousands of games can be in flight at once; on older runtimes they come from
+ * a bounded pool of platform threads instead.  The AIs themselves run on a fixed pool
+ * of worker threads (one per core by default), and their move deadlines are enforced
+ * by a single TimerWheel instead of a thread and join per move.  A worker left stuck
+ * in an AI that ignores its deadline is replaced, so such AIs lose their games
+ * without stalling the others.
+ *
+ * @see GameController
+ * @see TimerWheel
+ */
+public final class GameScheduler
+{
+	/// Runs the controller loops.
+	private final ExecutorService games;
+	/// Runs the AIs.
+	private final WorkerPool workers;
+	/// Enforces the AIs' deadlines.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+	/// Limits the number of games in flight.
+	private final Semaphore slots;
+	/// Number of games submitted and not yet finished.
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/// Whether the controller loops run on virtual threads.
+	private final boolean virtual;
+
+	/// Primary Constructor.
+	/**
+	 * @param workerThreads Number of threads on which AIs may compute at once.
+	 * @param maxInFlight Maximum number of games in progress at once; submit blocks
+	 * while this many are running.
+	 */
+	public GameScheduler(final int workerThreads, final int maxInFlight)
+	{
+		workers = new WorkerPool(workerThreads, "AIWorker", timer);
+		slots = new Semaphore(maxInFlight);
+
+		ExecutorService perGame = null;
+		try
+		{
+			// Java 21: one virtual thread per game.  Looked up reflectively so that
+			// the project still builds and runs on older runtimes.
+			perGame = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			// Platform threads are expensive, so don't keep more than needed to
+			// keep the workers busy.
+			perGame = Executors.newFixedThreadPool(Math.min(maxInFlight, 4 * workerThreads), daemonThreads("Game"));
+		}
+		games = perGame;
+		virtual = !(perGame instanceof ThreadPoolExecutor);
+	}
+
+	/// Creates daemon threads with the given name prefix.
+	static ThreadFactory daemonThreads(final String name)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/// Creates a controller whose AIs run on this scheduler's workers.
+	/**
+	 * @param game The game to arbitrate.
+	 * @param io An IO module to use for graphics output.
+	 * @param players The two AIs.
+	 * @param timeControl Time alloted to the AIs.
+	 * @return A controller to be played from inside a task passed to submit.
+	 */
+	public GameController newController(final GameStateModule game, final IOModule io, final AIModule[] players,
+										final TimeControl timeControl)
+	{
+		return new GameController(game, io, players, timeControl, workers);
+	}
+
+	/// Plays a game on a controller thread of its own.
+	/**
+	 * The task should set up its game and players itself and play it with a controller
+	 * from newController, so that nothing is allocated for games that have not started.
+	 * Blocks while the maximum number of games is already in flight.
+	 *
+	 * @param task Sets up and plays one game, returning its outcome.
+	 * @return The outcome of the game once it has finished.
+	 * @throws InterruptedException If interrupted while waiting for a free slot.
+	 */
+	public <T> Future<T> submit(final Callable<T> task) throws InterruptedException
+	{
+		slots.acquire();
+		inFlight.incrementAndGet();
+		try
+		{
+			return games.submit(new Callable<T>()
+			{
+				public T call() throws Exception
+				{
+					try
+					{
+						return task.call();
+					}
+					finally
+					{
+						inFlight.decrementAndGet();
+						slots.release();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			inFlight.decrementAndGet();
+			slots.release();
+			throw e;
+		}
+	}
+
+	/// Returns the number of games submitted and not yet finished.
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+	/// Returns whether games run on virtual threads.
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	/// Stops accepting games, waits for the running ones to finish and releases the threads.
+	/**
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		games.shutdown();
+		games.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		workers.shutdown();
+		timer.stop();
+	}
+}
@@ -0,0 +1,26 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// A game state that wraps another one and keeps something extra up to date on top of it.
+/**
+ * Layers such as EvaluatedGameState and NeuralEvaluator forward the game itself to the
+ * state they wrap.  Code that needs the plain game underneath, or has to know whether
+ * two layered states are built the same way, goes through this interface instead of
+ * testing for each layer.
+ *
+ * @see GameStatePool
+ */
+public interface GameStateLayer extends GameStateModule
+{
+	/// Returns the wrapped game.
+	public GameStateModule getGame();
+
+	/// Returns whether this layer can be copied into another of the same class.
+	/**
+	 * Only the layer's own settings are compared; the wrapped games are checked
+	 * separately by the caller.
+	 *
+	 * @param other A layer of the same class as this one.
+	 */
+	public boolean matches(final GameStateLayer other);
+}
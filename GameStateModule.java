@@ -22,6 +22,18 @@ public interface GameStateModule
 {
 	/// Creates a deep copy of the GameState.
     public GameStateModule copy();
+	/// Overwrites another GameState with a deep copy of this one.
+	/**
+	 * Unlike copy, this does not allocate a new state; the target is reused.  The
+	 * target must be of the same class and board size as this state, typically an
+	 * earlier result of copy.
+	 *
+	 * @param target The state to overwrite.
+	 * @return The target, now equal to this state.
+	 * @throws java.lang.RuntimeException If the target is not compatible.
+	 * @see GameStatePool
+	 */
+    public GameStateModule copyInto(final GameStateModule target) throws RuntimeException;
 	/// Verifies that a move in column x is legal.
 	/**
 	 * @param x Column to check.
@@ -64,14 +76,16 @@ public interface GameStateModule
     public int getWidth();
 	/// The height of the board.
     public int getHeight();
+	/// The number of coins in a row needed to win (four in regular Connect Four).
+    public int getWinLength();
 	/// The number of coins that have been dropped so far.
     public int getCoins();
-	/// The start point of the winning four tiles.
+	/// The start point of the winning line of tiles.
 	/**
 	 * Note: This is for graphical purposes only. Do not call this function.
 	 */
     public Point getStartPt();
-	/// The end point of the winning four tiles.
+	/// The end point of the winning line of tiles.
 	/**
 	 * Note: This is for graphical purposes only. Do not call this function.
 	 */
@@ -0,0 +1,166 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.Arrays;
+
+/// Per-thread pool of reusable game states.
+/**
+ * AIs that need scratch copies of a game (for rollouts, search trees, and so on)
+ * can borrow them from here instead of calling copy.  A borrowed state is filled in
+ * with copyInto, so once the pool has warmed up no further states are allocated.
+ *
+ * Released states are kept apart by kind (class, board size, win length and any
+ * wrapped game), so a thread that serves games of several kinds only ever reuses a
+ * state that copyInto accepts.  Each thread has its own pool, so no locking is
+ * needed; a state must be released by the same thread that borrowed it.
+ *
+ * An AI that builds large trees can instead own a pool sized to its node limit, and
+ * clear it once a game ends so that the states do not outlive the game.  Such a pool
+ * must only be used by one thread at a time.
+ *
+ * @see GameStateModule#copyInto
+ */
+public final class GameStatePool
+{
+	/// The pool belonging to each thread.
+	private static final ThreadLocal<GameStatePool> LOCAL = new ThreadLocal<GameStatePool>()
+	{
+		@Override
+		protected GameStatePool initialValue()
+		{
+			return new GameStatePool(THREAD_CAPACITY);
+		}
+	};
+
+	/// Most states kept by the pool of each thread.
+	/**
+	 * Beyond this, released states are left to the garbage collector, so that one very
+	 * large search does not keep its whole tree alive for the rest of the run.
+	 */
+	private static final int THREAD_CAPACITY = 1 << 12;
+
+	/// Most states kept.
+	private final int capacity;
+
+	/// One representative state of each kind the pool has seen.
+	private GameStateModule[] kinds = new GameStateModule[4];
+	/// Released states waiting to be borrowed again, one stack per kind.
+	private GameStateModule[][] free = new GameStateModule[4][];
+	/// Number of states in each stack of free.
+	private int[] sizes = new int[4];
+	/// Number of kinds seen.
+	private int count = 0;
+	/// Number of states in all stacks.
+	private int size = 0;
+	/// The kind matched last, which is almost always the next one asked for.
+	private int last = 0;
+
+	/// Primary Constructor.
+	/**
+	 * @param capacity The most states to keep, normally the most a search has alive at once.
+	 */
+	public GameStatePool(final int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/// Returns the pool for the calling thread.
+	public static GameStatePool get()
+	{
+		return LOCAL.get();
+	}
+
+	/// Returns whether one state can be copied into the other.
+	/**
+	 * copyInto needs the same class, board size and win length, and for the layers that
+	 * wrap another game matching layers and the same on every level underneath.
+	 */
+	private static boolean sameKind(GameStateModule a, GameStateModule b)
+	{
+		while(true)
+		{
+			if(a.getClass() != b.getClass() || a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()
+			   || a.getWinLength() != b.getWinLength())
+				return false;
+			if(!(a instanceof GameStateLayer))
+				return true;
+			if(!((GameStateLayer) a).matches((GameStateLayer) b))
+				return false;
+			a = ((GameStateLayer) a).getGame();
+			b = ((GameStateLayer) b).getGame();
+		}
+	}
+
+	/// Returns the index of the kind of the given state, or -1 if the pool has not seen it.
+	private int kindOf(final GameStateModule state)
+	{
+		if(last < count && sameKind(kinds[last], state))
+			return last;
+		for(int k = 0; k < count; k++)
+			if(sameKind(kinds[k], state))
+				return last = k;
+		return -1;
+	}
+
+	/// Borrows a copy of the given state.
+	/**
+	 * Returns a state equal to source, reusing a released state that source can be
+	 * copied into if one is available.
+	 *
+	 * @param source The state to copy.
+	 * @return A deep copy of source that should later be handed to release.
+	 */
+	public GameStateModule borrow(final GameStateModule source)
+	{
+		final int k = kindOf(source);
+		if(k < 0 || sizes[k] == 0)
+			return source.copy();
+		final GameStateModule state = free[k][--sizes[k]];
+		free[k][sizes[k]] = null;
+		size--;
+		return source.copyInto(state);
+	}
+
+	/// Returns a borrowed state to the pool.
+	/**
+	 * @param state A state obtained from borrow which is no longer used.
+	 */
+	public void release(final GameStateModule state)
+	{
+		if(size == capacity)
+			return;
+		int k = kindOf(state);
+		if(k < 0)
+		{
+			if(count == kinds.length)
+			{
+				kinds = Arrays.copyOf(kinds, count * 2);
+				free = Arrays.copyOf(free, count * 2);
+				sizes = Arrays.copyOf(sizes, count * 2);
+			}
+			k = last = count++;
+			kinds[k] = state;
+			free[k] = new GameStateModule[16];
+		}
+		if(sizes[k] == free[k].length)
+			free[k] = Arrays.copyOf(free[k], sizes[k] * 2);
+		free[k][sizes[k]++] = state;
+		size++;
+	}
+
+	/// Lets go of every state in the pool.
+	public void clear()
+	{
+		kinds = new GameStateModule[4];
+		free = new GameStateModule[4][];
+		sizes = new int[4];
+		count = 0;
+		size = 0;
+		last = 0;
+	}
+
+	/// Returns the number of states currently waiting in the pool.
+	public int available()
+	{
+		return size;
+	}
+}
@@ -34,6 +34,8 @@ public final class GameState_General implements GameStateModule
 	private final Stack<Integer> history = new Stack<Integer>();
 	/// The number of coins on the board.
 	private int Coins;
+	/// Number of coins in a row needed to win.
+	private final int LENGTH;
 
 	/// Primary Constructor.
 	/**
@@ -45,6 +47,21 @@ public final class GameState_General implements GameStateModule
 	 */
 	public GameState_General(final int w, final int h)
 	{
+		this(w, h, 4);
+	}
+
+	/// Constructor for Connect-K.
+	/**
+	 * Creates a new, empty game board of the specified width and height on which k
+	 * coins in a row are needed to win instead of four.
+	 *
+	 * @param w The width of the board.
+	 * @param h The height of the board.
+	 * @param k The number of coins in a row needed to win.
+	 */
+	public GameState_General(final int w, final int h, final int k)
+	{
+		LENGTH = k;
 		ActivePlayer = 1;
 		Winner = -1;
 		WIDTH = w;
@@ -60,13 +77,33 @@ public final class GameState_General implements GameStateModule
 	/// Creates a deep copy of this.
 	public GameState_General copy()
 	{
-		final GameState_General game = new GameState_General(WIDTH, HEIGHT);
+		return copyInto(new GameState_General(WIDTH, HEIGHT, LENGTH));
+	}
+
+	/// Overwrites the given game with a deep copy of this.
+	/**
+	 * @param target A GameState_General of the same width, height and win length to overwrite.
+	 * @return The target.
+	 * @throws RuntimeException If target is not a GameState_General of the same size.
+	 */
+	public GameState_General copyInto(final GameStateModule target) throws RuntimeException
+	{
+		if(!(target instanceof GameState_General) || target.getWidth() != WIDTH || target.getHeight() != HEIGHT
+		   || target.getWinLength() != LENGTH)
+			throw new RuntimeException("Cannot copy into " + target.getClass().getName());
+		final GameState_General game = (GameState_General) target;
 		game.ActivePlayer = ActivePlayer;
 		game.Winner = Winner;
 		game.Coins = Coins;
+		game.startPt = startPt;
+		game.endPt = endPt;
 		for(int i = 0; i < WIDTH; i++)
 			System.arraycopy(Board[i], 0, game.Board[i], 0, Board[i].length);
 		System.arraycopy(Heights, 0, game.Heights, 0, Heights.length);
+		// Keep the history so that the copy can be unwound like the original
+		game.history.clear();
+		for(int i = 0; i < history.size(); i++)
+			game.history.push(history.get(i));
 		return game;
 	}
 
@@ -110,7 +147,7 @@ public final class GameState_General implements GameStateModule
 		// Keep track of the history of this move.
 		history.push(x);
 
-		computeVictory();
+		computeVictory(x, Heights[x] - 1);
 	}
 
 	/// Undoes the most recent action.
@@ -163,42 +200,41 @@ public final class GameState_General implements GameStateModule
 
 	/// Used internally to check for victory.
 	/**
-	 * Determines if a player has won the game and updates the state accordingly.
+	 * Determines if the coin just dropped at (x, y) has won the game and updates the
+	 * state accordingly.  Any earlier win would already have ended the game, so only
+	 * the lines through this coin need to be checked.
+	 *
+	 * @param x The column of the last coin.
+	 * @param y The row of the last coin.
 	 */
-	private void computeVictory()
+	private void computeVictory(final int x, final int y)
 	{
-		// for each column
-		for(int i = 0; i < WIDTH; i++)
-			// for each row
-			for(int j = 0; j < HEIGHT; j++)
-				// if not empty
-				if(Board[i][j] != 0)
-					for(int dx = -1; dx <= 1; dx++)
-						for(int dy = -1; dy <= 1; dy++)
-						{
-							if(dx == 0 && dy == 0)
-								continue;
+		final int player = Board[x][y];
+		for(int dx = 0; dx <= 1; dx++)
+			for(int dy = -1; dy <= 1; dy++)
+			{
+				// Visit each of the four directions once
+				if(dx == 0 && dy != 1)
+					continue;
 
-							// If extent is out of bounds, abort.
-							if(i + 3 * dx < 0 || i + 3 * dx >= WIDTH || j + 3 * dy < 0 || j + 3 * dy >= HEIGHT)
-								continue;
+				// Extend the line as far as it goes both ways.
+				int back = 0;
+				while(inBounds(x - (back + 1) * dx, y - (back + 1) * dy)
+					  && Board[x - (back + 1) * dx][y - (back + 1) * dy] == player)
+					back++;
+				int forward = 0;
+				while(inBounds(x + (forward + 1) * dx, y + (forward + 1) * dy)
+					  && Board[x + (forward + 1) * dx][y + (forward + 1) * dy] == player)
+					forward++;
 
-							boolean victory = true;
-							for(int step = 1; step <= 3; step++)
-								if(Board[i][j] != Board[i + step * dx][j + step * dy])
-								{
-									victory = false;
-									break;
-								}
-
-							if(victory)
-							{
-								startPt = new Point(i, j);
-								endPt = new Point(i + 3 * dx, j + 3 * dy);
-								Winner = Board[i][j];
-								return;
-							}
-						}
+				if(back + forward + 1 >= LENGTH)
+				{
+					startPt = new Point(x - back * dx, y - back * dy);
+					endPt = new Point(x + forward * dx, y + forward * dy);
+					Winner = player;
+					return;
+				}
+			}
 
 		if(Coins == WIDTH * HEIGHT)
 		{
@@ -207,6 +243,12 @@ public final class GameState_General implements GameStateModule
 		}
 	}
 
+	/// Checks whether (x, y) lies on the board.
+	private boolean inBounds(final int x, final int y)
+	{
+		return x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT;
+	}
+
 	/// Returns the index of the active player.
 	/**
 	 * @return The 1-based index of the active player.
@@ -262,6 +304,15 @@ public final class GameState_General implements GameStateModule
 		return HEIGHT;
 	}
 
+	/// Returns the number of coins in a row needed to win.
+	/**
+	 * @return The win length.
+	 */
+	public int getWinLength()
+	{
+		return LENGTH;
+	}
+
 	/// Returns the number of filled slots
 	/**
 	 * @return The number of filled slots
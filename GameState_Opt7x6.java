@@ -46,6 +46,8 @@ public final class GameState_Opt7x6 implements GameStateModule
 	private boolean pointsComputed = false;
 	private Point startPt;
 	private Point endPt;
+	/// Number of coins in a row needed to win.
+	private final int LENGTH;
 
 	/// Primary Constructor.
 	/**
@@ -55,22 +57,63 @@ public final class GameState_Opt7x6 implements GameStateModule
 	 */
 	public GameState_Opt7x6()
 	{
+		this(4);
+	}
+
+	/// Constructor for Connect-K.
+	/**
+	 * Creates a new, empty game board on which winLength coins in a row are needed to
+	 * win instead of four.
+	 *
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public GameState_Opt7x6(final int winLength)
+	{
+		LENGTH = winLength;
 		color[0] = color[1] = 0L;
 		for(int i = 0; i < WIDTH; i++)
 			height[i] = (byte) (H1 * i);
 	}
 
+	/// Copy Constructor.
+	/**
+	 * Used by copy so that the column heights are not initialized only to be
+	 * overwritten straight away.
+	 *
+	 * @param source The game to duplicate.
+	 */
+	private GameState_Opt7x6(final GameState_Opt7x6 source)
+	{
+		LENGTH = source.LENGTH;
+		source.copyInto(this);
+	}
+
 	/// Creates a deep copy of this.
 	public GameState_Opt7x6 copy()
 	{
-		final GameState_Opt7x6 game = new GameState_Opt7x6();
-		System.arraycopy(color, 0, game.color, 0, 2);
-		System.arraycopy(moves, 0, game.moves, 0, SIZE);
+		return new GameState_Opt7x6(this);
+	}
+
+	/// Overwrites the given game with a deep copy of this.
+	/**
+	 * @param target A GameState_Opt7x6 to overwrite.
+	 * @return The target.
+	 * @throws RuntimeException If target is not a GameState_Opt7x6 with the same win length.
+	 */
+	public GameState_Opt7x6 copyInto(final GameStateModule target)
+	{
+		if(!(target instanceof GameState_Opt7x6) || target.getWinLength() != LENGTH)
+			throw new RuntimeException("Cannot copy into " + target.getClass().getName());
+		final GameState_Opt7x6 game = (GameState_Opt7x6) target;
+		game.color[0] = color[0];
+		game.color[1] = color[1];
+		System.arraycopy(moves, 0, game.moves, 0, nplies);
 		System.arraycopy(height, 0, game.height, 0, WIDTH);
 		game.nplies = nplies;
 		game.coins = coins;
 		game.gameOver = gameOver;
 		game.Winner = Winner;
+		game.pointsComputed = false;
 		return game;
 	}
 
@@ -96,17 +139,43 @@ public final class GameState_Opt7x6 implements GameStateModule
 	 */
 	private boolean computeVictory(final long board)
 	{
-		long temp = board & (board >> HEIGHT);
-		if((temp & (temp >> 2 * HEIGHT)) != 0) // check diagonal \
+		if(hasRun(board, HEIGHT)) // check diagonal \
 			return true;
-		temp = board & (board >> H1);
-		if((temp & (temp >> 2 * H1)) != 0) // check horizontal -
+		if(hasRun(board, H1)) // check horizontal -
 			return true;
-		temp = board & (board >> H2); // check diagonal /
-		if((temp & (temp >> 2 * H2)) != 0)
+		if(hasRun(board, H2)) // check diagonal /
 			return true;
-		temp = board & (board >> 1); // check vertical |
-		return (temp & (temp >> 2)) != 0;
+		return hasRun(board, 1); // check vertical |
+	}
+
+	/// Checks for LENGTH coins in a row along one direction.
+	/**
+	 * After each step, a bit stays set only if it starts a run of len coins, and the
+	 * run length doubles with each shift, so only O(log LENGTH) steps are needed.  The
+	 * empty row above the top of the board keeps runs from wrapping between columns.
+	 *
+	 * @param board Bitboard from one of the players.
+	 * @param shift Distance between neighboring tiles in this direction.
+	 * @return Whether the board holds LENGTH coins in a row in this direction.
+	 */
+	private boolean hasRun(final long board, final int shift)
+	{
+		long temp = board;
+		int len = 1;
+		while(2 * len <= LENGTH)
+		{
+			temp &= shiftDown(temp, shift * len);
+			len *= 2;
+		}
+		if(len < LENGTH)
+			temp &= shiftDown(temp, shift * (LENGTH - len));
+		return temp != 0;
+	}
+
+	/// Shifts a bitboard towards bit 0, allowing shifts of 64 or more.
+	private static long shiftDown(final long board, final int amount)
+	{
+		return amount >= 64 ? 0L : board >>> amount;
 	}
 
 	/// Undoes the most recent action.
@@ -212,6 +281,20 @@ public final class GameState_Opt7x6 implements GameStateModule
 		return 0;
 	}
 
+	/// Returns the coins of a player as a bitboard.
+	/**
+	 * The bits are laid out as described at the top of this class, with the row above
+	 * the top of the board always empty.
+	 *
+	 * @param player The 1-based index of the player.
+	 * @return The bitboard holding that player's coins.
+	 * @see ThreatAnalyzer
+	 */
+	public long getBitboard(final int player)
+	{
+		return color[player - 1];
+	}
+
 	/// Returns the height of the given column.
 	/**
 	 * @param x The x-index of the column to look up.
@@ -240,6 +323,15 @@ public final class GameState_Opt7x6 implements GameStateModule
 		return HEIGHT;
 	}
 
+	/// Returns the number of coins in a row needed to win.
+	/**
+	 * @return The win length.
+	 */
+	public int getWinLength()
+	{
+		return LENGTH;
+	}
+
 	/// Returns the number of filled slots
 	/**
 	 * @return The number of filled slots
@@ -305,19 +397,19 @@ public final class GameState_Opt7x6 implements GameStateModule
 					{
 						if(dx == dy && dy == 0)
 							continue;
-						if(x + (3 * dx) >= WIDTH)
+						if(x + ((LENGTH - 1) * dx) >= WIDTH)
 							continue;
-						if(y + (3 * dy) >= HEIGHT)
+						if(y + ((LENGTH - 1) * dy) >= HEIGHT)
 							continue;
-						if(x + (3 * dx) < 0)
+						if(x + ((LENGTH - 1) * dx) < 0)
 							continue;
-						if(y + (3 * dy) < 0)
+						if(y + ((LENGTH - 1) * dy) < 0)
 							continue;
-						for(int i = 0; i < 4; i++)
+						for(int i = 0; i < LENGTH; i++)
 							if(getAt(x + (i * dx), y + (i * dy)) != Winner)
 								continue next;
 						startPt = new Point(x, y);
-						endPt = new Point(x + (3 * dx), y + (3 * dy));
+						endPt = new Point(x + ((LENGTH - 1) * dx), y + ((LENGTH - 1) * dy));
 						return;
 					}
 			}
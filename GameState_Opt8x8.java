@@ -32,8 +32,6 @@ public class GameState_Opt8x8 implements GameStateModule
 	/// Amount to shift the bitboard to move back one column and up one row.
 	private final static int BD = HEIGHT - 1;
 	private final static int SIZE = HEIGHT * WIDTH;
-	/// Bitboard completely filled minus the top row.
-	private final static long BUT_TOP = 0x7F7F7F7F7F7F7F7FL;
 	/// Player bitboards.
 	private final long color[] = new long[2];
 	/// History of plays.
@@ -48,6 +46,8 @@ public class GameState_Opt8x8 implements GameStateModule
 	private boolean pointsComputed = false;
 	private Point startPoint;
 	private Point endPoint;
+	/// Number of coins in a row needed to win.
+	private final int LENGTH;
 
 	/// Primary Constructor.
 	/**
@@ -57,6 +57,19 @@ public class GameState_Opt8x8 implements GameStateModule
 	 */
 	public GameState_Opt8x8()
 	{
+		this(4);
+	}
+
+	/// Constructor for Connect-K.
+	/**
+	 * Creates a new, empty game board on which winLength coins in a row are needed to
+	 * win instead of four.
+	 *
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public GameState_Opt8x8(final int winLength)
+	{
+		LENGTH = winLength;
 		Arrays.fill(color, 0L);
 		Arrays.fill(moves, (byte)0);
 		Arrays.fill(Heights, (byte)0);
@@ -65,14 +78,29 @@ public class GameState_Opt8x8 implements GameStateModule
 	/// Creates a deep copy of this.
 	public GameState_Opt8x8 copy()
 	{
-		final GameState_Opt8x8 game = new GameState_Opt8x8();
-		System.arraycopy(color, 0, game.color, 0, 2);
-		System.arraycopy(moves, 0, game.moves, 0, SIZE);
+		return copyInto(new GameState_Opt8x8(LENGTH));
+	}
+
+	/// Overwrites the given game with a deep copy of this.
+	/**
+	 * @param target A GameState_Opt8x8 to overwrite.
+	 * @return The target.
+	 * @throws RuntimeException If target is not a GameState_Opt8x8 with the same win length.
+	 */
+	public GameState_Opt8x8 copyInto(final GameStateModule target)
+	{
+		if(!(target instanceof GameState_Opt8x8) || target.getWinLength() != LENGTH)
+			throw new RuntimeException("Cannot copy into " + target.getClass().getName());
+		final GameState_Opt8x8 game = (GameState_Opt8x8) target;
+		game.color[0] = color[0];
+		game.color[1] = color[1];
+		System.arraycopy(moves, 0, game.moves, 0, nplies);
 		System.arraycopy(Heights, 0, game.Heights, 0, WIDTH);
 		game.nplies = nplies;
 		game.coins = coins;
 		game.gameOver = gameOver;
 		game.Winner = Winner;
+		game.pointsComputed = false;
 		return game;
 	}
 
@@ -84,35 +112,64 @@ public class GameState_Opt8x8 implements GameStateModule
 	private boolean computeVictory(final long board)
 	{
 		// VERTICAL |
-		long temp = board;
-		temp &= (temp & BUT_TOP) << 1;
-		temp &= (temp & BUT_TOP) << 1;
-		temp &= (temp & BUT_TOP) << 1;
-		if(temp != 0)
+		if(hasRun(board, 1, true, true))
 			return true;
 
 		// HORIZONTAL --
-		temp = board;
-		temp &= temp << HEIGHT;
-		temp &= temp << HEIGHT;
-		temp &= temp << HEIGHT;
-		if(temp != 0)
+		if(hasRun(board, HEIGHT, false, true))
 			return true;
 
 		// DIAGONAL /
-		temp = board;
-		temp &= (temp & BUT_TOP) << FD;
-		temp &= (temp & BUT_TOP) << FD;
-		temp &= (temp & BUT_TOP) << FD;
-		if(temp != 0)
+		if(hasRun(board, FD, true, true))
 			return true;
 
 		// DIAGONAL \
-		temp = board;
-		temp &= (temp & BUT_TOP) >> BD;
-		temp &= (temp & BUT_TOP) >> BD;
-		temp &= (temp & BUT_TOP) >> BD;
-		return (temp != 0);
+		return hasRun(board, BD, true, false);
+	}
+
+	/// Checks for LENGTH coins in a row along one direction.
+	/**
+	 * After each step, a bit stays set only if it ends a run of len coins, and the
+	 * run length doubles with each shift, so only O(log LENGTH) steps are needed.
+	 *
+	 * @param board Bitboard from one of the players.
+	 * @param shift Distance between neighboring tiles in this direction.
+	 * @param climbs Whether the direction moves up a row, so that runs must be kept from
+	 * wrapping over the top of a column.
+	 * @param left Whether neighbors are found by shifting left rather than right.
+	 * @return Whether the board holds LENGTH coins in a row in this direction.
+	 */
+	private boolean hasRun(final long board, final int shift, final boolean climbs, final boolean left)
+	{
+		long temp = board;
+		int len = 1;
+		while(2 * len <= LENGTH)
+		{
+			temp &= step(temp, shift, len, climbs, left);
+			len *= 2;
+		}
+		if(len < LENGTH)
+			temp &= step(temp, shift, LENGTH - len, climbs, left);
+		return temp != 0;
+	}
+
+	/// Moves every bit of a bitboard the given number of tiles along a direction.
+	private static long step(final long board, final int shift, final int tiles, final boolean climbs, final boolean left)
+	{
+		// Only tiles at least this far below the top can move up that many rows.
+		final long source = climbs ? board & belowTop(tiles) : board;
+		final int amount = shift * tiles;
+		if(amount >= 64)
+			return 0L;
+		return left ? source << amount : source >>> amount;
+	}
+
+	/// Bitboard of all tiles at least the given number of rows below the top of the board.
+	private static long belowTop(final int rows)
+	{
+		if(rows >= HEIGHT)
+			return 0L;
+		return 0x0101010101010101L * (0xFFL >>> rows);
 	}
 
 	/// Returns whether a move is legal.
@@ -260,6 +317,15 @@ public class GameState_Opt8x8 implements GameStateModule
 		return HEIGHT;
 	}
 
+	/// Returns the number of coins in a row needed to win.
+	/**
+	 * @return The win length.
+	 */
+	public int getWinLength()
+	{
+		return LENGTH;
+	}
+
 	/// Returns the number of filled slots
 	/**
 	 * @return The number of filled slots
@@ -325,19 +391,19 @@ public class GameState_Opt8x8 implements GameStateModule
 					{
 						if(dx == dy && dy == 0)
 							continue;
-						if(x + (3 * dx) >= WIDTH)
+						if(x + ((LENGTH - 1) * dx) >= WIDTH)
 							continue;
-						if(y + (3 * dy) >= HEIGHT)
+						if(y + ((LENGTH - 1) * dy) >= HEIGHT)
 							continue;
-						if(x + (3 * dx) < 0)
+						if(x + ((LENGTH - 1) * dx) < 0)
 							continue;
-						if(y + (3 * dy) < 0)
+						if(y + ((LENGTH - 1) * dy) < 0)
 							continue;
-						for(int i = 0; i < 4; i++)
+						for(int i = 0; i < LENGTH; i++)
 							if(getAt(x + (i * dx), y + (i * dy)) != Winner)
 								continue next;
 						startPoint = new Point(x, y);
-						endPoint = new Point(x + (3 * dx), y + (3 * dy));
+						endPoint = new Point(x + ((LENGTH - 1) * dx), y + ((LENGTH - 1) * dy));
 						return;
 					}
 			}
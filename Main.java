@@ -24,28 +24,66 @@ public class Main
 		System.out.println("      Example: -p2 RandomAI");
 		System.out.println("    \"-t [Time in ms]\" : Set the maximum amount of time alloted per AI move");
 		System.out.println("      Example: -t 500");
+		System.out.println("    \"-tc [Time control]\" : Give each AI a clock instead, in ms: [moves/]base+increment");
+		System.out.println("      Example: -tc 60000+1000 or -tc 40/60000+0");
 		System.out.println("    \"-w [int]\" : Set the width of the game board");
 		System.out.println("      Example: -w 7");
 		System.out.println("    \"-h [int]\" : Set the height of the game board");
 		System.out.println("      Example: -h 6");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 5");
 		System.out.println("    \"-seed [int]\" : Set the random seed of hte game");
 		System.out.println("      Example: -s 1");
 		System.out.println("    \"-text\" : Prints using a text-based I/O");
+		System.out.println("    \"-stats\" : Prints the timing of the AIs' moves at the end of the game");
+		System.out.println("    \"-record [file]\" : Appends the game to a binary game record");
+		System.out.println("      Example: -record games.c4r");
+		System.out.println("    \"-engine\" : Runs the -p1 AI as an engine taking commands on stdin (see EngineProtocol)");
 		System.out.println("Note: Later command-line options override earlier ones if they are incompatable\n");
 	}
 
+	/// Creates an empty game of the given size.
+	/**
+	 * Uses an optimized bitboard game representation if there is one for this board size,
+	 * and falls back on GameState_General otherwise.
+	 *
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @return A new, empty game.
+	 */
+	public static GameStateModule createGame(final int width, final int height, final int winLength)
+	{
+		try
+		{
+			// Load an optimized game representation if possible
+			return (GameStateModule) Class.forName("GameState_Opt" + Integer.toString(width) + "x" + Integer.toString(height))
+				.getConstructor(int.class).newInstance(winLength);
+		}
+		catch(Exception e)
+		{
+			// Otherwise use a generic game representation
+			return new GameState_General(width, height, winLength);
+		}
+	}
+
 	/// Program startup function.
 	public static void main(String[] args)
 	{
 		final AIModule[] players = new AIModule[2];
 
 		// Default max ai time is 500 ms
-		int AI_time = 500;
+		TimeControl timeControl = TimeControl.perMove(500);
 		// Default width to 7
 		int width = 7;
 		// Default height to 6
 		int height = 6;
+		// Default to four in a row
+		int winLength = 4;
 		boolean text = false;
+		boolean stats = false;
+		boolean engine = false;
+		String record = null;
 		long seed = System.currentTimeMillis();
 
 		// Parse through the command line arguements
@@ -60,10 +98,13 @@ public class Main
 					players[1] = (AIModule) Class.forName(args[i + 1]).newInstance();
 				else if(args[i].equalsIgnoreCase("-t"))
 				{
-					AI_time = Integer.parseInt(args[i + 1]);
+					final int AI_time = Integer.parseInt(args[i + 1]);
 					if(AI_time <= 0)
 						throw new IllegalArgumentException("AI think time must be positive");
+					timeControl = TimeControl.perMove(AI_time);
 				}
+				else if(args[i].equalsIgnoreCase("-tc"))
+					timeControl = TimeControl.parse(args[i + 1]);
 				else if(args[i].equalsIgnoreCase("-w"))
 				{
 					width = Integer.parseInt(args[i + 1]);
@@ -76,12 +117,32 @@ public class Main
 					if(width < 4)
 						throw new IllegalArgumentException("Heights must be at least four.");
 				}
+				else if(args[i].equalsIgnoreCase("-k"))
+				{
+					winLength = Integer.parseInt(args[i + 1]);
+					if(winLength < 2)
+						throw new IllegalArgumentException("Win length must be at least two.");
+				}
 				else if(args[i].equalsIgnoreCase("-text"))
 				{
 					text = true;
 					// Compensate for i += 2
 					i--;
 				}
+				else if(args[i].equalsIgnoreCase("-engine"))
+				{
+					engine = true;
+					// Compensate for i += 2
+					i--;
+				}
+				else if(args[i].equalsIgnoreCase("-stats"))
+				{
+					stats = true;
+					// Compensate for i += 2
+					i--;
+				}
+				else if(args[i].equalsIgnoreCase("-record"))
+					record = args[i + 1];
 				else if(args[i].equalsIgnoreCase("--help"))
 				{
 					helpPrinter();
@@ -126,19 +187,35 @@ public class Main
 			System.exit(5);
 		}
 
-		// Create a new game
-		GameStateModule game;
-		try
+		if(winLength > Math.max(width, height))
 		{
-			// Load an optimized game representation if possible
-			game = (GameStateModule) Class.forName("GameState_Opt" + Integer.toString(width) + "x" + Integer.toString(height)).newInstance();
+			System.err.println("Invalid Arguments: Win length cannot exceed both the width and the height.");
+			System.exit(4);
 		}
-		catch(Exception e)
+
+		// Serve moves from one AI for as long as the input lasts
+		if(engine)
 		{
-			// Otherwise use a generic game representation
-			game = new GameState_General(width, height);
+			if(players[0] == null)
+			{
+				System.err.println("Invalid Arguments: -engine needs an AI given with -p1.");
+				System.exit(4);
+			}
+			try
+			{
+				new EngineProtocol(players[0], width, height, winLength, System.in, System.out).run();
+			}
+			catch(java.io.IOException e)
+			{
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			return;
 		}
 
+		// Create a new game
+		final GameStateModule game = createGame(width, height, winLength);
+
 		IOModule io;
 
 		// If told so then make a graphical version of the action
@@ -156,13 +233,51 @@ public class Main
 		}
 
 		// Turn on the turn based system
-		GameController controller = new GameController(game, io, players, AI_time);
+		GameController controller = new GameController(game, io, players, timeControl);
+		GameRecordWriter writer = null;
+		if(record != null)
+		{
+			final String[] names = new String[2];
+			for(int i = 0; i < 2; i++)
+				names[i] = players[i] == null ? "Human" : players[i].getClass().getName();
+			try
+			{
+				writer = new GameRecordWriter(new java.io.File(record), width, height, winLength, names);
+			}
+			catch(java.io.IOException e)
+			{
+				System.err.println("Cannot record game: " + e.getMessage());
+				System.exit(1);
+			}
+			controller.addListener(writer.recorder(0, 1));
+		}
 		controller.play();
+		if(writer != null)
+		{
+			try
+			{
+				writer.close();
+			}
+			catch(java.io.IOException e)
+			{
+				System.err.println("Cannot record game: " + e.getMessage());
+			}
+		}
 		// Print out the results of the match
-		if(game.getWinner() == 0)
+		if(controller.getWinner() == 0)
 			System.out.println("Draw Game");
+		else if(controller.getForfeited() != 0)
+			System.out.println("Player " + controller.getWinner() + " won by forfeit");
 		else
-			System.out.println("Player " + game.getWinner() + " won");
+			System.out.println("Player " + controller.getWinner() + " won");
+
+		if(stats)
+		{
+			System.out.printf("%-9s %s%n", "Player", MoveStats.header());
+			for(int i = 0; i < 2; i++)
+				if(players[i] != null)
+					System.out.printf("%-9s %s%n", "Player " + (i + 1), controller.getStats(i + 1).summary());
+		}
 	}
 }
 /**
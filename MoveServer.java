@@ -0,0 +1,624 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+
+/// Socket server that answers move requests from many clients in one warm process.
+/**
+ * One thread runs a non-blocking selector over every connection; moves are computed on
+ * a fixed pool of workers, each of which keeps its own instance of every engine so
+ * that their caches stay warm from request to request.  Requests with a short time
+ * budget are queued together and run back to back in batches, so that a flood of
+ * them keeps every core busy without paying a task handoff for each one; longer ones
+ * get a task of their own.
+ *
+ * The protocol is line based, and any number of requests may be in flight on one
+ * connection.  Answers carry the id of their request and come in the order they
+ * finish:
+ * - "move [id] [engine] [width] [height] [winLength] [budget ms] [columns...]"
+ *   is answered with "[id] bestmove [column] time [us]", timed from when the
+ *   request was read, or "[id] error [message]".  Boards may be at most
+ *   MAX_WIDTH by MAX_HEIGHT and budgets at most MAX_BUDGET_MILLIS.
+ * - "stats" is answered with "stats queued [n] running [n] served [n] p50 [ms]
+ *   p99 [ms] max [ms]", the percentiles being over the latest requests.
+ * - "quit" closes the connection.
+ *
+ * Run with --help for the command line options.
+ *
+ * @see AIModule
+ */
+public final class MoveServer
+{
+	/// Most short requests one worker runs before letting other tasks in.
+	private static final int BATCH_SIZE = 16;
+	/// Number of latest requests the percentiles cover.
+	private static final int LATENCY_WINDOW = 4096;
+	/// Longest request line accepted.
+	private static final int MAX_LINE = 1 << 16;
+	/// Widest board accepted, the widest a game record can hold.
+	private static final int MAX_WIDTH = GameRecordWriter.MAX_WIDTH;
+	/// Tallest board accepted.
+	private static final int MAX_HEIGHT = 16;
+	/// Largest time budget accepted, in milliseconds.
+	private static final long MAX_BUDGET_MILLIS = 60000;
+
+	/// A client connection, owned by the selector thread except for output.
+	private static final class Connection
+	{
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer input = ByteBuffer.allocate(4096);
+		final StringBuilder line = new StringBuilder();
+		/// Answers waiting to be written, added to by the workers.
+		final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		Connection(final SocketChannel channel, final SelectionKey key)
+		{
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	/// A parsed move request.
+	private static final class Request
+	{
+		final Connection connection;
+		final String id;
+		final String engine;
+		final int width;
+		final int height;
+		final int winLength;
+		/// Time budget in nanoseconds.
+		final long budget;
+		final int[] moves;
+		/// When the request was read, in System.nanoTime terms.
+		final long received = System.nanoTime();
+
+		Request(final Connection connection, final String[] words)
+		{
+			this.connection = connection;
+			id = words[1];
+			engine = words[2];
+			width = Integer.parseInt(words[3]);
+			height = Integer.parseInt(words[4]);
+			winLength = Integer.parseInt(words[5]);
+			if(width < 4 || height < 4 || winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Invalid board");
+			if(width > MAX_WIDTH || height > MAX_HEIGHT)
+				throw new IllegalArgumentException("Board larger than " + MAX_WIDTH + "x" + MAX_HEIGHT);
+			final long millis = Long.parseLong(words[6]);
+			if(millis <= 0 || millis > MAX_BUDGET_MILLIS)
+				throw new IllegalArgumentException("Budget must be between 1 and " + MAX_BUDGET_MILLIS + " ms");
+			budget = millis * 1000000L;
+			if(words.length - 7 > width * height)
+				throw new IllegalArgumentException("More moves than the board holds");
+			moves = new int[words.length - 7];
+			for(int i = 0; i < moves.length; i++)
+				moves[i] = Integer.parseInt(words[i + 7]);
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final WorkerPool workers;
+	private final int threads;
+	/// Requests with at most this budget are batched, in nanoseconds.
+	private final long batchBudget;
+	/// Names of the AIModule classes clients may ask for.
+	private final Set<String> engines;
+	/// Sets the AIs' terminate flags when their budgets run out.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+	/// Short requests waiting to be run.
+	private final ConcurrentLinkedQueue<Request> batch = new ConcurrentLinkedQueue<Request>();
+	private final AtomicInteger batched = new AtomicInteger();
+	/// Workers currently draining batch.
+	private final AtomicInteger drainers = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong served = new AtomicLong();
+	/// Latencies of the latest requests in nanoseconds.  Guarded by itself.
+	private final long[] latencies = new long[LATENCY_WINDOW];
+	private long latencyCount = 0;
+	/// Connections with answers to write, for the selector thread to pick up.
+	private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+	/// Each worker's instance of each engine.
+	private final ThreadLocal<Map<String, AIModule>> instances = new ThreadLocal<Map<String, AIModule>>()
+	{
+		@Override
+		protected Map<String, AIModule> initialValue()
+		{
+			return new HashMap<String, AIModule>();
+		}
+	};
+	private volatile boolean open = true;
+
+	/// Primary Constructor.
+	/**
+	 * Binds to the port on the loopback interface.  Call run to start serving.
+	 *
+	 * @param port Port to listen on, or 0 for any free port.
+	 * @param threads Number of worker threads.
+	 * @param batchMillis Requests with at most this budget are batched.
+	 * @param engines Names of the AIModule classes clients may ask for.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public MoveServer(final int port, final int threads, final int batchMillis, final Collection<String> engines)
+		throws IOException
+	{
+		this.threads = threads;
+		this.batchBudget = batchMillis * 1000000L;
+		this.engines = new HashSet<String>(engines);
+		workers = new WorkerPool(threads, "MoveServer", timer);
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/// Returns the port the server listens on.
+	public int getPort() throws IOException
+	{
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	/// Serves connections until close is called.
+	/**
+	 * @throws IOException If the selector fails.
+	 */
+	public void run() throws IOException
+	{
+		while(open)
+		{
+			selector.select();
+			Connection pending;
+			while((pending = writable.poll()) != null)
+				if(pending.key.isValid())
+					pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+			final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext())
+			{
+				final SelectionKey key = keys.next();
+				keys.remove();
+				try
+				{
+					if(!key.isValid())
+						continue;
+					if(key.isAcceptable())
+						accept();
+					else
+					{
+						final Connection connection = (Connection) key.attachment();
+						if(key.isReadable())
+							read(connection);
+						if(key.isValid() && key.isWritable())
+							write(connection);
+					}
+				}
+				catch(IOException e)
+				{
+					key.cancel();
+					key.channel().close();
+				}
+			}
+		}
+		selector.close();
+		server.close();
+		workers.shutdown();
+		timer.stop();
+	}
+
+	/// Stops the server.  Answers to requests still being computed are dropped.
+	public void close()
+	{
+		open = false;
+		selector.wakeup();
+	}
+
+	/// Returns the number of requests waiting for a worker.
+	public int getQueued()
+	{
+		return batched.get() + workers.getQueued();
+	}
+
+	/// Returns the number of requests being computed.
+	public int getRunning()
+	{
+		return running.get();
+	}
+
+	/// Returns the number of requests answered.
+	public long getServed()
+	{
+		return served.get();
+	}
+
+	/// Returns the given percentile of the latest latencies in nanoseconds, or 0 if there are none.
+	public long getLatency(final int percentile)
+	{
+		final long[] sorted;
+		synchronized(latencies)
+		{
+			sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, latencies.length));
+		}
+		if(sorted.length == 0)
+			return 0;
+		Arrays.sort(sorted);
+		final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	/// Accepts a new connection.  A failure only drops that client; the server keeps listening.
+	private void accept()
+	{
+		final SocketChannel channel;
+		try
+		{
+			channel = server.accept();
+		}
+		catch(IOException e)
+		{
+			// Out of file descriptors and the like; the next select tries again
+			System.err.println("Accept failed: " + e.getMessage());
+			return;
+		}
+		if(channel == null)
+			return;
+		try
+		{
+			channel.configureBlocking(false);
+			final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not register client: " + e.getMessage());
+			try
+			{
+				channel.close();
+			}
+			catch(IOException closing)
+			{
+				// The client is dropped either way
+			}
+		}
+	}
+
+	/// Reads what a client has sent and handles every complete line.
+	private void read(final Connection connection) throws IOException
+	{
+		final int count = connection.channel.read(connection.input);
+		if(count < 0)
+		{
+			connection.key.cancel();
+			connection.channel.close();
+			return;
+		}
+		connection.input.flip();
+		while(connection.input.hasRemaining())
+		{
+			final char c = (char) (connection.input.get() & 0xFF);
+			if(c == '\n')
+			{
+				final String line = connection.line.toString().trim();
+				connection.line.setLength(0);
+				if(!line.isEmpty() && !handle(connection, line))
+					return;
+			}
+			else if(connection.line.length() < MAX_LINE)
+				connection.line.append(c);
+			else
+				throw new IOException("Line too long");
+		}
+		connection.input.clear();
+	}
+
+	/// Writes as much of a client's answers as the socket will take.
+	private void write(final Connection connection) throws IOException
+	{
+		ByteBuffer buffer;
+		while((buffer = connection.output.peek()) != null)
+		{
+			connection.channel.write(buffer);
+			if(buffer.hasRemaining())
+				return;
+			connection.output.poll();
+		}
+		connection.key.interestOps(SelectionKey.OP_READ);
+		// An answer may have been added since the queue was found empty
+		if(!connection.output.isEmpty())
+			connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/// Queues an answer to a client.  May be called from any thread.
+	private void send(final Connection connection, final String text)
+	{
+		connection.output.add(ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.US_ASCII)));
+		writable.add(connection);
+		selector.wakeup();
+	}
+
+	/// Handles one request line.
+	/**
+	 * @return False if the connection has been closed.
+	 */
+	private boolean handle(final Connection connection, final String line) throws IOException
+	{
+		final String[] words = line.split("\\s+");
+		if(words[0].equals("quit"))
+		{
+			connection.key.cancel();
+			connection.channel.close();
+			return false;
+		}
+		else if(words[0].equals("stats"))
+			send(connection, "stats queued " + getQueued() + " running " + getRunning() + " served " + getServed()
+				 + String.format(" p50 %.2f p99 %.2f max %.2f", getLatency(50) / 1e6, getLatency(99) / 1e6,
+								 getLatency(100) / 1e6));
+		else if(words[0].equals("move"))
+		{
+			final Request request;
+			try
+			{
+				if(words.length < 7)
+					throw new IllegalArgumentException("Expected: move id engine width height winLength budget columns...");
+				request = new Request(connection, words);
+				if(!engines.contains(request.engine))
+					throw new IllegalArgumentException("Unknown engine " + request.engine);
+			}
+			catch(IllegalArgumentException e)
+			{
+				send(connection, (words.length > 1 ? words[1] : "?") + " error " + e.getMessage());
+				return true;
+			}
+			dispatch(request);
+		}
+		else
+			send(connection, "error Unknown command " + words[0]);
+		return true;
+	}
+
+	/// Hands a request to the workers, batching it if its budget is short.
+	private void dispatch(final Request request)
+	{
+		if(request.budget > batchBudget)
+		{
+			workers.execute(new Runnable()
+			{
+				public void run()
+				{
+					serve(request);
+				}
+			});
+			return;
+		}
+		batch.add(request);
+		batched.incrementAndGet();
+		startDrainer();
+	}
+
+	/// Sets another worker draining the batch queue, unless all of them already are.
+	private void startDrainer()
+	{
+		while(true)
+		{
+			// A drainer stuck in an AI has been replaced by another thread
+			final int current = drainers.get();
+			if(current >= threads + workers.getStuck())
+				return;
+			if(drainers.compareAndSet(current, current + 1))
+				break;
+		}
+		workers.execute(new Runnable()
+		{
+			public void run()
+			{
+				for(int n = 0; n < BATCH_SIZE; n++)
+				{
+					final Request request = batch.poll();
+					if(request == null)
+						break;
+					batched.decrementAndGet();
+					serve(request);
+				}
+				drainers.decrementAndGet();
+				// Requests that arrived while all workers were draining
+				if(!batch.isEmpty())
+					startDrainer();
+			}
+		});
+	}
+
+	/// Computes and sends the answer to a request, on a worker thread.
+	/**
+	 * The AI is told to stop when the request's budget runs out.  If it has not returned
+	 * WorkerPool.GRACE_NANOS later, the client gets an error at once and the worker is
+	 * replaced until the AI returns.
+	 */
+	private void serve(final Request request)
+	{
+		running.incrementAndGet();
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		final GameStateModule game;
+		final AIModule ai;
+		try
+		{
+			game = Main.createGame(request.width, request.height, request.winLength);
+			for(final int column : request.moves)
+			{
+				if(game.isGameOver() || !game.canMakeMove(column))
+					throw new IllegalArgumentException("Illegal move " + column);
+				game.makeMove(column);
+			}
+			if(game.isGameOver())
+				throw new IllegalArgumentException("Game is over");
+
+			ai = instance(request.engine);
+			if(ai instanceof GameListener)
+			{
+				// Replay the game so the AI's own copy of the position matches
+				final GameListener listener = (GameListener) ai;
+				final GameStateModule replay = Main.createGame(request.width, request.height, request.winLength);
+				listener.onGameStart(replay.copy());
+				for(final int column : request.moves)
+				{
+					final int mover = replay.getActivePlayer();
+					replay.makeMove(column);
+					listener.onMovePlayed(column, mover);
+				}
+			}
+		}
+		catch(Throwable t)
+		{
+			running.decrementAndGet();
+			send(request.connection, request.id + " error " + t.getMessage());
+			return;
+		}
+
+		// Answered from here, or from the timer thread if the AI overruns
+		result.whenComplete(new BiConsumer<Integer, Throwable>()
+		{
+			public void accept(final Integer chosen, final Throwable failure)
+			{
+				running.decrementAndGet();
+				if(failure != null)
+				{
+					send(request.connection, request.id + " error " + failure.getMessage());
+					// This worker may be stuck; let another one take over the batch
+					if(!batch.isEmpty())
+						startDrainer();
+					return;
+				}
+				int move = chosen;
+				for(int j = 0; j < game.getWidth() && !game.canMakeMove(move); j++)
+					move = j;
+				final long latency = System.nanoTime() - request.received;
+				synchronized(latencies)
+				{
+					latencies[(int) (latencyCount++ % latencies.length)] = latency;
+				}
+				served.incrementAndGet();
+				send(request.connection, request.id + " bestmove " + move + " time " + latency / 1000);
+			}
+		});
+		ai.terminate = false;
+		ai.chosenMove = -1;
+		// Plan for half the budget, as TimeControl does for a fixed time per move
+		workers.moveHere(ai, game, request.budget, request.budget / 2, 0, request.budget + WorkerPool.GRACE_NANOS,
+						 request.engine, result);
+		ai.terminate = true;
+	}
+
+	/// Returns this worker's instance of an engine, creating it on first use.
+	private AIModule instance(final String engine) throws Exception
+	{
+		final Map<String, AIModule> mine = instances.get();
+		AIModule ai = mine.get(engine);
+		if(ai == null)
+		{
+			final java.lang.reflect.Constructor<?> constructor = Class.forName(engine).getDeclaredConstructor();
+			constructor.setAccessible(true);
+			ai = (AIModule) constructor.newInstance();
+			mine.put(engine, ai);
+		}
+		return ai;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-ai [AI Class Names]\" : Comma separated list of the AIs clients may use");
+		System.out.println("      Example: -ai DeepConnect,MonteCarloAI");
+		System.out.println("    \"-port [int]\" : Port to listen on, on the loopback interface (default: 4040)");
+		System.out.println("      Example: -port 4040");
+		System.out.println("    \"-threads [int]\" : Number of worker threads (default: all cores)");
+		System.out.println("      Example: -threads 4");
+		System.out.println("    \"-batch [Time in ms]\" : Requests with at most this budget are batched (default: 50)");
+		System.out.println("      Example: -batch 20");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		List<String> engines = null;
+		int port = 4040;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int batchMillis = 50;
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-ai"))
+				{
+					engines = Arrays.asList(args[i + 1].split(","));
+					for(final String name : engines)
+						Class.forName(name);
+				}
+				else if(args[i].equalsIgnoreCase("-port"))
+					port = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-batch"))
+					batchMillis = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(engines == null)
+				throw new IllegalArgumentException("At least one AI is needed.");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final MoveServer moveServer = new MoveServer(port, threads, batchMillis, engines);
+			System.out.println("Listening on port " + moveServer.getPort());
+			moveServer.run();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
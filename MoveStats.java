@@ -0,0 +1,148 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/// Timing of an AI's moves, for finding out how close it comes to its time limits.
+/**
+ * For every move the GameController records the wall-clock time the AI thought, the
+ * CPU time its thread used and, if the AI was still running when its terminate flag
+ * was set, how long it took to return after that.  Moves on which the AI never
+ * returned are counted as overruns.  summary prints the median, 99th percentile and
+ * maximum of each.
+ *
+ * Safe to share between games running on different threads.
+ *
+ * @see GameController#getStats
+ */
+public final class MoveStats
+{
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/// Wall-clock think times in nanoseconds.
+	private long[] think = new long[64];
+	/// CPU times in nanoseconds.
+	private long[] cpu = new long[64];
+	/// Delays between terminate being set and the AI returning, in nanoseconds.
+	private long[] latency = new long[64];
+	private int moves = 0;
+	private int stops = 0;
+	/// Moves on which the AI never returned.
+	private int overruns = 0;
+
+	/// Returns the CPU time used by the calling thread in nanoseconds, or -1 if unavailable.
+	public static long cpuTime()
+	{
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	/// Records a move.
+	/**
+	 * @param thinkNanos Time from the start of the move until the AI returned.
+	 * @param cpuNanos CPU time used by the AI's thread during the move, or -1 if unknown.
+	 * @param latencyNanos Time from terminate being set until the AI returned, or -1 if
+	 * the AI returned before it was set.
+	 */
+	public synchronized void record(final long thinkNanos, final long cpuNanos, final long latencyNanos)
+	{
+		think = append(think, moves, thinkNanos);
+		cpu = append(cpu, moves, cpuNanos);
+		moves++;
+		if(latencyNanos >= 0)
+			latency = append(latency, stops++, latencyNanos);
+	}
+
+	/// Records a move on which the AI never returned.
+	public synchronized void recordOverrun()
+	{
+		overruns++;
+	}
+
+	/// Adds all of another AI's moves to these.
+	public void add(final MoveStats other)
+	{
+		final long[] otherThink;
+		final long[] otherCpu;
+		final long[] otherLatency;
+		final int otherMoves;
+		final int otherStops;
+		final int otherOverruns;
+		synchronized(other)
+		{
+			otherMoves = other.moves;
+			otherStops = other.stops;
+			otherOverruns = other.overruns;
+			otherThink = Arrays.copyOf(other.think, otherMoves);
+			otherCpu = Arrays.copyOf(other.cpu, otherMoves);
+			otherLatency = Arrays.copyOf(other.latency, otherStops);
+		}
+		synchronized(this)
+		{
+			for(int i = 0; i < otherMoves; i++)
+			{
+				think = append(think, moves, otherThink[i]);
+				cpu = append(cpu, moves, otherCpu[i]);
+				moves++;
+			}
+			for(int i = 0; i < otherStops; i++)
+				latency = append(latency, stops++, otherLatency[i]);
+			overruns += otherOverruns;
+		}
+	}
+
+	/// Returns the number of moves recorded.
+	public synchronized int getMoves()
+	{
+		return moves;
+	}
+
+	/// Returns the number of moves on which the AI never returned.
+	public synchronized int getOverruns()
+	{
+		return overruns;
+	}
+
+	/// Returns the column headings matching summary.
+	public static String header()
+	{
+		return String.format("%6s  %-20s %-20s %-20s %5s", "Moves", "Think p50/p99/max", "CPU p50/p99/max",
+							 "Stop p50/p99/max", "Over");
+	}
+
+	/// Returns the percentiles of every measurement in milliseconds, in the columns of header.
+	public synchronized String summary()
+	{
+		return String.format("%6d  %-20s %-20s %-20s %5d", moves, percentiles(think, moves),
+							 percentiles(cpu, moves), percentiles(latency, stops), overruns);
+	}
+
+	/// Formats the median, 99th percentile and maximum of some samples in milliseconds.
+	private static String percentiles(final long[] samples, final int n)
+	{
+		if(n == 0)
+			return "-";
+		final long[] sorted = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+		if(sorted[0] < 0)
+			return "?";
+		return String.format("%.1f/%.1f/%.1f", percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6,
+							 sorted[n - 1] / 1e6);
+	}
+
+	/// Returns the nearest-rank percentile of sorted samples.
+	private static long percentile(final long[] sorted, final int p)
+	{
+		final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	/// Stores value at index, growing the array if needed.
+	private static long[] append(long[] array, final int index, final long value)
+	{
+		if(index == array.length)
+			array = Arrays.copyOf(array, array.length * 2);
+		array[index] = value;
+		return array;
+	}
+}
@@ -0,0 +1,273 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.awt.Point;
+
+/// Game state layer that keeps a NeuralNetwork's first layer up to date as moves are made.
+/**
+ * This class wraps any other GameStateModule and forwards every call to it, like
+ * EvaluatedGameState.  On top of that it keeps the network's first layer sums, one
+ * accumulator from each player's point of view.  makeMove adds the weights of the new
+ * coin to both accumulators and unMakeMove subtracts them again, so that evaluate
+ * only has to run the small layers after the first.
+ *
+ * The accumulators are plain short arrays and the loops over them are simple enough
+ * for the JIT to compile to vector instructions.
+ *
+ * @see NeuralNetwork
+ * @see EvaluatedGameState
+ */
+public final class NeuralEvaluator implements GameStateLayer
+{
+	/// The underlying game.
+	private final GameStateModule game;
+	private final NeuralNetwork network;
+	private final int WIDTH;
+	private final int HEIGHT;
+	/// Size of each accumulator.
+	private final int HIDDEN;
+	/// Player 1's accumulator, then player 2's.
+	private final short[] accumulator;
+	/// Room for the clipped accumulators during evaluate.
+	private final float[] scratch;
+	/// Columns played through this layer, so that unMakeMove knows which tile to clear.
+	private final int[] moves;
+	/// Number of moves made through this layer.
+	private int nplies = 0;
+
+	/// Primary Constructor.
+	/**
+	 * Wraps the given game.  The game may already contain coins; the accumulators are
+	 * computed from its current contents.  From then on the game should only be
+	 * changed through this object.
+	 *
+	 * @param game The game to wrap.
+	 * @param network The network to evaluate with, for the game's board size and win length.
+	 * @throws IllegalArgumentException If the network is for another board size or win length.
+	 */
+	public NeuralEvaluator(final GameStateModule game, final NeuralNetwork network)
+	{
+		if(!network.isFor(game.getWidth(), game.getHeight(), game.getWinLength()))
+			throw new IllegalArgumentException("Network is for a " + network.getWidth() + "x" + network.getHeight()
+											   + " board with " + network.getWinLength() + " in a row");
+		this.game = game;
+		this.network = network;
+		WIDTH = game.getWidth();
+		HEIGHT = game.getHeight();
+		HIDDEN = network.getHidden();
+		accumulator = new short[2 * HIDDEN];
+		scratch = new float[network.getScratchSize()];
+		moves = new int[WIDTH * HEIGHT];
+
+		network.reset(accumulator, 0);
+		network.reset(accumulator, HIDDEN);
+		for(int x = 0; x < WIDTH; x++)
+			for(int y = 0; y < game.getHeightAt(x); y++)
+				update(x * HEIGHT + y, game.getAt(x, y), true);
+	}
+
+	/// Copy Constructor.
+	/**
+	 * @param game A copy of source's underlying game.
+	 * @param source The layer to duplicate.
+	 */
+	private NeuralEvaluator(final GameStateModule game, final NeuralEvaluator source)
+	{
+		this.game = game;
+		network = source.network;
+		WIDTH = source.WIDTH;
+		HEIGHT = source.HEIGHT;
+		HIDDEN = source.HIDDEN;
+		accumulator = new short[source.accumulator.length];
+		scratch = new float[source.scratch.length];
+		moves = new int[source.moves.length];
+		source.copyAccumulators(this);
+	}
+
+	/// Copies the accumulators and history of this into target.
+	private void copyAccumulators(final NeuralEvaluator target)
+	{
+		System.arraycopy(accumulator, 0, target.accumulator, 0, accumulator.length);
+		System.arraycopy(moves, 0, target.moves, 0, nplies);
+		target.nplies = nplies;
+	}
+
+	/// Creates a deep copy of this, including the underlying game.
+	public NeuralEvaluator copy()
+	{
+		return new NeuralEvaluator(game.copy(), this);
+	}
+
+	/// Overwrites the given game with a deep copy of this.
+	/**
+	 * @param target A NeuralEvaluator with the same network wrapping the same kind of game.
+	 * @return The target.
+	 * @throws RuntimeException If target is not compatible.
+	 */
+	public NeuralEvaluator copyInto(final GameStateModule target)
+	{
+		if(!(target instanceof NeuralEvaluator) || ((NeuralEvaluator) target).network != network)
+			throw new RuntimeException("Cannot copy into " + target.getClass().getName());
+		final NeuralEvaluator other = (NeuralEvaluator) target;
+		game.copyInto(other.game);
+		copyAccumulators(other);
+		return other;
+	}
+
+	/// Returns the network's score for the player to move.
+	public float evaluate()
+	{
+		final boolean first = game.getActivePlayer() == 1;
+		return network.evaluate(accumulator, first ? 0 : HIDDEN, first ? HIDDEN : 0, scratch);
+	}
+
+	/// Copies the accumulators for a batched NeuralNetwork.evaluate.
+	/**
+	 * @param target Room for both accumulators, player 1's first.
+	 * @return Where the accumulator of the player to move starts in target.
+	 */
+	int exportAccumulators(final short[] target)
+	{
+		System.arraycopy(accumulator, 0, target, 0, accumulator.length);
+		return game.getActivePlayer() == 1 ? 0 : HIDDEN;
+	}
+
+	/// Returns the network this evaluates with.
+	public NeuralNetwork getNetwork()
+	{
+		return network;
+	}
+
+	/// Adds or removes one coin of a player at a tile in both accumulators.
+	/**
+	 * @param cell The tile, x * HEIGHT + y.
+	 * @param player The player, 1 or 2.
+	 * @param add True to place a coin, false to take it back.
+	 */
+	private void update(final int cell, final int player, final boolean add)
+	{
+		final int first = network.feature(cell, player == 1);
+		final int second = network.feature(cell, player == 2);
+		if(add)
+		{
+			network.add(accumulator, 0, first);
+			network.add(accumulator, HIDDEN, second);
+		}
+		else
+		{
+			network.subtract(accumulator, 0, first);
+			network.subtract(accumulator, HIDDEN, second);
+		}
+	}
+
+	/// Makes a move and adds the new coin to the accumulators.
+	/**
+	 * @param x The move to be made.
+	 * @throws RuntimeException If the move is illegal.
+	 * @see unMakeMove
+	 */
+	public void makeMove(final int x) throws RuntimeException
+	{
+		if(!game.canMakeMove(x))
+			throw new RuntimeException("Illegal Move: " + x);
+		final int player = game.getActivePlayer();
+		final int y = game.getHeightAt(x);
+		game.makeMove(x);
+		update(x * HEIGHT + y, player, true);
+		moves[nplies++] = x;
+	}
+
+	/// Undoes the most recent move made through this layer.
+	/**
+	 * @see makeMove
+	 */
+	public void unMakeMove()
+	{
+		final int x = moves[--nplies];
+		game.unMakeMove();
+		update(x * HEIGHT + game.getHeightAt(x), game.getActivePlayer(), false);
+	}
+
+	/// Returns the underlying game.
+	public GameStateModule getGame()
+	{
+		return game;
+	}
+
+	/// Layers can only be copied into each other if they use the same network.
+	public boolean matches(final GameStateLayer other)
+	{
+		return ((NeuralEvaluator) other).network == network;
+	}
+
+	/// Forwarded to the underlying game.
+	public boolean canMakeMove(final int x)
+	{
+		return game.canMakeMove(x);
+	}
+
+	/// Forwarded to the underlying game.
+	public boolean isGameOver()
+	{
+		return game.isGameOver();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWinner() throws RuntimeException
+	{
+		return game.getWinner();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getActivePlayer()
+	{
+		return game.getActivePlayer();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getAt(final int x, final int y)
+	{
+		return game.getAt(x, y);
+	}
+
+	/// Forwarded to the underlying game.
+	public int getHeightAt(final int x)
+	{
+		return game.getHeightAt(x);
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWidth()
+	{
+		return WIDTH;
+	}
+
+	/// Forwarded to the underlying game.
+	public int getHeight()
+	{
+		return HEIGHT;
+	}
+
+	/// Forwarded to the underlying game.
+	public int getWinLength()
+	{
+		return game.getWinLength();
+	}
+
+	/// Forwarded to the underlying game.
+	public int getCoins()
+	{
+		return game.getCoins();
+	}
+
+	/// Forwarded to the underlying game.
+	public Point getStartPt()
+	{
+		return game.getStartPt();
+	}
+
+	/// Forwarded to the underlying game.
+	public Point getEndPt()
+	{
+		return game.getEndPt();
+	}
+}
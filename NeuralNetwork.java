@@ -0,0 +1,647 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/// Weights of a small fully connected network that scores Connect Four positions.
+/**
+ * The network sees a position from the point of view of one player: one input per
+ * tile holding a coin of that player, then one per tile holding a coin of the
+ * other.  Its first layer is kept as an accumulator of 16 bit fixed point sums (see
+ * NeuralEvaluator), one for each player's point of view, so that a move only adds
+ * one column of first layer weights to each instead of redoing the whole layer.
+ * The two accumulators, the mover's first, are clipped to [0, 1] and fed to an
+ * optional second layer of clipped units and then a single linear output: the
+ * score for the player to move, in the same units as DeepConnect's evaluation.
+ * Searches that score many positions at a time can run these layers over a whole
+ * batch of accumulators in one call.
+ *
+ * File layout, all numbers big-endian: the magic bytes "C4NN", a version byte,
+ * width, height and win length bytes, the size of the first layer and of the second
+ * layer (0 if there is none) as shorts.  Then:
+ * - The first layer weights as shorts in units of 1/ONE, hidden of them for each
+ *   input: first the inputs of the player's own coins, tile x * height + y, then
+ *   those of the other player's.  Then the hidden first layer biases as shorts.
+ * - If there is a second layer, its weights as floats, hidden2 for each of its 2 *
+ *   hidden inputs, then its biases.  Input-major order lets evaluate add up the
+ *   second layer one input at a time, skipping the inputs that clipped to zero.
+ * - The output weights as floats, one per unit of the last layer, then the output
+ *   bias.
+ * The weights must be small enough that no accumulator sum overflows a short; files
+ * whose weights could overflow one are rejected when loaded.  A network is only used
+ * for games of the board size and win length it was written for, since the same
+ * coins are worth something else when a different number of them in a row wins.
+ *
+ * A network is immutable once loaded and may be shared between threads.  Run with
+ * --help for the command line options, which write a randomly initialised network
+ * or measure how fast one evaluates.
+ *
+ * @see NeuralEvaluator
+ */
+public final class NeuralNetwork
+{
+	/// First bytes of every network file.
+	static final byte[] MAGIC = {'C', '4', 'N', 'N'};
+	/// Version of the format.
+	static final int VERSION = 2;
+	/// Bytes before the first weight.
+	static final int HEADER_SIZE = 12;
+	/// First layer value that stands for 1.0.
+	public static final int ONE = 64;
+	/// System property naming the network file.
+	public static final String FILE_PROPERTY = "c4.net";
+	/// Network file used if the property is not set.
+	public static final String DEFAULT_FILE = "network.c4n";
+
+	/// Network loaded at startup, or null if there was none.
+	private static NeuralNetwork loaded = null;
+	private static boolean triedLoading = false;
+
+	private final int width;
+	private final int height;
+	/// Number of coins in a row needed to win in the games the network scores.
+	private final int winLength;
+	/// Size of the first layer, per point of view.
+	private final int hidden;
+	/// Size of the second layer, or 0 if there is none.
+	private final int hidden2;
+	/// First layer weights, hidden per input.
+	private final short[] inputWeights;
+	private final short[] inputBiases;
+	/// Second layer weights, hidden2 per input.
+	private final float[] hiddenWeights;
+	private final float[] hiddenBiases;
+	/// Output weights, one per unit of the last layer.
+	private final float[] outputWeights;
+	private final float outputBias;
+	/// Changes whenever any weight does.
+	private final long fingerprint;
+
+	/// Primary Constructor.
+	/**
+	 * @param file A network in the format described above.
+	 * @throws IOException If the file cannot be read, is not a network or has weights
+	 *                     that could overflow an accumulator.
+	 */
+	public NeuralNetwork(final File file) throws IOException
+	{
+		final MappedByteBuffer buffer;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final byte[] magic = new byte[MAGIC.length];
+		if(buffer.limit() < HEADER_SIZE)
+			throw new IOException(file + " is not a network");
+		buffer.get(magic);
+		if(!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION)
+			throw new IOException(file + " is not a network of this version");
+		width = buffer.get() & 0xFF;
+		height = buffer.get() & 0xFF;
+		winLength = buffer.get() & 0xFF;
+		hidden = buffer.getShort() & 0xFFFF;
+		hidden2 = buffer.getShort() & 0xFFFF;
+		if(hidden == 0)
+			throw new IOException(file + " has an empty first layer");
+		inputWeights = new short[2 * width * height * hidden];
+		inputBiases = new short[hidden];
+		hiddenWeights = new float[hidden2 * 2 * hidden];
+		hiddenBiases = new float[hidden2];
+		outputWeights = new float[hidden2 > 0 ? hidden2 : 2 * hidden];
+		if(buffer.remaining() != 2L * (inputWeights.length + inputBiases.length)
+		   + 4L * (hiddenWeights.length + hiddenBiases.length + outputWeights.length + 1))
+			throw new IOException(file + " is truncated");
+		buffer.asShortBuffer().get(inputWeights).get(inputBiases);
+		buffer.position(buffer.position() + 2 * (inputWeights.length + inputBiases.length));
+		buffer.asFloatBuffer().get(hiddenWeights).get(hiddenBiases).get(outputWeights);
+		buffer.position(buffer.limit() - 4);
+		outputBias = buffer.getFloat();
+		if(!fitsAccumulator())
+			throw new IOException(file + " has first layer weights large enough to overflow an accumulator");
+		fingerprint = fingerprint();
+	}
+
+	/// Constructor for a network with the given weights.
+	private NeuralNetwork(final int width, final int height, final int winLength, final int hidden,
+						  final int hidden2, final short[] inputWeights, final short[] inputBiases,
+						  final float[] hiddenWeights, final float[] hiddenBiases, final float[] outputWeights,
+						  final float outputBias)
+	{
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		this.hidden = hidden;
+		this.hidden2 = hidden2;
+		this.inputWeights = inputWeights;
+		this.inputBiases = inputBiases;
+		this.hiddenWeights = hiddenWeights;
+		this.hiddenBiases = hiddenBiases;
+		this.outputWeights = outputWeights;
+		this.outputBias = outputBias;
+		fingerprint = fingerprint();
+	}
+
+	/// Creates a network with small random weights, as a starting point for training.
+	/**
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param hidden Size of the first layer.
+	 * @param hidden2 Size of the second layer, or 0 for none.
+	 * @param random Source of the weights.
+	 */
+	public static NeuralNetwork random(final int width, final int height, final int winLength, final int hidden,
+									   final int hidden2, final Random random)
+	{
+		final short[] inputWeights = new short[2 * width * height * hidden];
+		for(int i = 0; i < inputWeights.length; i++)
+			inputWeights[i] = (short) (random.nextInt(ONE / 4 + 1) - ONE / 8);
+		final short[] inputBiases = new short[hidden];
+		Arrays.fill(inputBiases, (short) (ONE / 2));
+		final float[] hiddenWeights = new float[hidden2 * 2 * hidden];
+		for(int i = 0; i < hiddenWeights.length; i++)
+			hiddenWeights[i] = (float) (random.nextGaussian() / Math.sqrt(2 * hidden));
+		final float[] outputWeights = new float[hidden2 > 0 ? hidden2 : 2 * hidden];
+		for(int i = 0; i < outputWeights.length; i++)
+			outputWeights[i] = (float) random.nextGaussian();
+		return new NeuralNetwork(width, height, winLength, hidden, hidden2, inputWeights, inputBiases,
+								 hiddenWeights, new float[hidden2], outputWeights, 0f);
+	}
+
+	/// Returns the network to play a game with, or null if there is none for its size and win length.
+	/**
+	 * The network file is read on the first call, from the path in the c4.net system
+	 * property or network.c4n in the working directory.
+	 *
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public static synchronized NeuralNetwork forGame(final int width, final int height, final int winLength)
+	{
+		if(!triedLoading)
+		{
+			triedLoading = true;
+			final File file = new File(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+			if(file.exists())
+			{
+				try
+				{
+					loaded = new NeuralNetwork(file);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Cannot load network: " + e.getMessage());
+				}
+			}
+		}
+		if(loaded == null || !loaded.isFor(width, height, winLength))
+			return null;
+		return loaded;
+	}
+
+	/// Writes the network in the format described above.
+	/**
+	 * @param file The file to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(final File file) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * (inputWeights.length + inputBiases.length)
+													  + 4 * (hiddenWeights.length + hiddenBiases.length
+															 + outputWeights.length + 1));
+		buffer.put(MAGIC).put((byte) VERSION).put((byte) width).put((byte) height).put((byte) winLength)
+			.putShort((short) hidden).putShort((short) hidden2);
+		buffer.asShortBuffer().put(inputWeights).put(inputBiases);
+		buffer.position(buffer.position() + 2 * (inputWeights.length + inputBiases.length));
+		buffer.asFloatBuffer().put(hiddenWeights).put(hiddenBiases).put(outputWeights).put(outputBias);
+		buffer.rewind();
+		try(FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+											   StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while(buffer.hasRemaining())
+				out.write(buffer);
+		}
+	}
+
+	/// Returns whether no accumulator can overflow a short, whatever the position.
+	/**
+	 * A tile holds at most one coin, so each tile adds either its own or its other
+	 * weight to a unit, never both.  The largest of the two in size, added up over the
+	 * tiles and the bias, bounds the unit's sum.
+	 */
+	private boolean fitsAccumulator()
+	{
+		final int cells = width * height;
+		for(int i = 0; i < hidden; i++)
+		{
+			long bound = Math.abs(inputBiases[i]);
+			for(int cell = 0; cell < cells; cell++)
+				bound += Math.max(Math.abs(inputWeights[feature(cell, true) * hidden + i]),
+								  Math.abs(inputWeights[feature(cell, false) * hidden + i]));
+			if(bound > Short.MAX_VALUE)
+				return false;
+		}
+		return true;
+	}
+
+	/// Computes a hash of every weight.
+	private long fingerprint()
+	{
+		long hash = ((width * 31L + height) * 31 + winLength) * 31 + hidden;
+		hash = hash * 31 + hidden2;
+		hash = hash * 31 + Arrays.hashCode(inputWeights);
+		hash = hash * 31 + Arrays.hashCode(inputBiases);
+		hash = hash * 31 + Arrays.hashCode(hiddenWeights);
+		hash = hash * 31 + Arrays.hashCode(hiddenBiases);
+		hash = hash * 31 + Arrays.hashCode(outputWeights);
+		return hash * 31 + Float.floatToIntBits(outputBias);
+	}
+
+	/// Returns the input one player's point of view gives a coin.
+	/**
+	 * @param cell The tile of the coin, x * height + y.
+	 * @param own Whether the coin belongs to the player whose point of view it is.
+	 */
+	int feature(final int cell, final boolean own)
+	{
+		return own ? cell : width * height + cell;
+	}
+
+	/// Sets an accumulator to the first layer biases.
+	/**
+	 * @param accumulator The accumulators.
+	 * @param offset Where the one to set starts.
+	 */
+	void reset(final short[] accumulator, final int offset)
+	{
+		System.arraycopy(inputBiases, 0, accumulator, offset, hidden);
+	}
+
+	/// Adds the first layer weights of one input to an accumulator.
+	/**
+	 * @param accumulator The accumulators.
+	 * @param offset Where the one to change starts.
+	 * @param feature The input, as returned by feature.
+	 */
+	void add(final short[] accumulator, final int offset, final int feature)
+	{
+		final int base = feature * hidden;
+		for(int i = 0; i < hidden; i++)
+			accumulator[offset + i] += inputWeights[base + i];
+	}
+
+	/// Subtracts the first layer weights of one input from an accumulator.
+	/**
+	 * @param accumulator The accumulators.
+	 * @param offset Where the one to change starts.
+	 * @param feature The input, as returned by feature.
+	 */
+	void subtract(final short[] accumulator, final int offset, final int feature)
+	{
+		final int base = feature * hidden;
+		for(int i = 0; i < hidden; i++)
+			accumulator[offset + i] -= inputWeights[base + i];
+	}
+
+	/// Runs the layers after the first.
+	/**
+	 * @param accumulator The accumulators.
+	 * @param own Where the accumulator of the player to move starts.
+	 * @param other Where the other player's starts.
+	 * @param scratch Room for getScratchSize() floats, overwritten.
+	 * @return The score for the player to move.
+	 */
+	float evaluate(final short[] accumulator, final int own, final int other, final float[] scratch)
+	{
+		// Clip both accumulators to [0, ONE], the mover's first
+		for(int i = 0; i < hidden; i++)
+		{
+			scratch[i] = Math.min(Math.max(accumulator[own + i], 0), ONE);
+			scratch[hidden + i] = Math.min(Math.max(accumulator[other + i], 0), ONE);
+		}
+		final int inputs = 2 * hidden;
+		if(hidden2 == 0)
+		{
+			// Four sums so that the additions don't all wait on one another
+			float sum0 = 0f;
+			float sum1 = 0f;
+			float sum2 = 0f;
+			float sum3 = 0f;
+			int i = 0;
+			for(; i + 3 < inputs; i += 4)
+			{
+				sum0 += outputWeights[i] * scratch[i];
+				sum1 += outputWeights[i + 1] * scratch[i + 1];
+				sum2 += outputWeights[i + 2] * scratch[i + 2];
+				sum3 += outputWeights[i + 3] * scratch[i + 3];
+			}
+			for(; i < inputs; i++)
+				sum0 += outputWeights[i] * scratch[i];
+			return outputBias + (sum0 + sum1 + sum2 + sum3) * (1f / ONE);
+		}
+		// The second layer sums go after the clipped accumulators
+		for(int j = 0; j < hidden2; j++)
+			scratch[inputs + j] = 0f;
+		for(int i = 0; i < inputs; i++)
+		{
+			final float input = scratch[i];
+			if(input == 0f)
+				continue;
+			final int base = i * hidden2;
+			for(int j = 0; j < hidden2; j++)
+				scratch[inputs + j] += hiddenWeights[base + j] * input;
+		}
+		float output = outputBias;
+		for(int j = 0; j < hidden2; j++)
+			output += outputWeights[j] * Math.min(Math.max(hiddenBiases[j] + scratch[inputs + j] * (1f / ONE), 0f), 1f);
+		return output;
+	}
+
+	/// Runs the layers after the first for many positions at once.
+	/**
+	 * Gives the scores evaluate would give each position, but goes through the weights
+	 * once for the whole batch instead of once per position, so that each weight is
+	 * read from memory once and then used for every position.
+	 *
+	 * @param accumulators The accumulators of each position, both players' in one array
+	 *                     as NeuralEvaluator keeps them.
+	 * @param own Where the accumulator of the player to move starts in each, 0 or
+	 *            getHidden(); the other player's is the other half.
+	 * @param count The number of positions.
+	 * @param scratch Room for getBatchScratchSize(count) floats, overwritten.
+	 * @param out Receives the score of each position for its player to move.
+	 */
+	void evaluate(final short[][] accumulators, final int[] own, final int count, final float[] scratch,
+				  final float[] out)
+	{
+		if(hidden2 == 0)
+		{
+			Arrays.fill(out, 0, count, 0f);
+			for(int i = 0; i < hidden; i++)
+			{
+				final float ownWeight = outputWeights[i];
+				final float otherWeight = outputWeights[hidden + i];
+				for(int p = 0; p < count; p++)
+				{
+					final short[] accumulator = accumulators[p];
+					out[p] += ownWeight * clip(accumulator[own[p] + i])
+						+ otherWeight * clip(accumulator[hidden - own[p] + i]);
+				}
+			}
+			for(int p = 0; p < count; p++)
+				out[p] = outputBias + out[p] * (1f / ONE);
+			return;
+		}
+		// The second layer sums of position p start at p * hidden2
+		Arrays.fill(scratch, 0, count * hidden2, 0f);
+		for(int i = 0; i < hidden; i++)
+		{
+			final int ownBase = i * hidden2;
+			final int otherBase = (hidden + i) * hidden2;
+			for(int p = 0; p < count; p++)
+			{
+				final short[] accumulator = accumulators[p];
+				final int sums = p * hidden2;
+				final int ownInput = clip(accumulator[own[p] + i]);
+				if(ownInput != 0)
+					for(int j = 0; j < hidden2; j++)
+						scratch[sums + j] += hiddenWeights[ownBase + j] * ownInput;
+				final int otherInput = clip(accumulator[hidden - own[p] + i]);
+				if(otherInput != 0)
+					for(int j = 0; j < hidden2; j++)
+						scratch[sums + j] += hiddenWeights[otherBase + j] * otherInput;
+			}
+		}
+		for(int p = 0; p < count; p++)
+		{
+			final int sums = p * hidden2;
+			float output = outputBias;
+			for(int j = 0; j < hidden2; j++)
+				output += outputWeights[j] * Math.min(Math.max(hiddenBiases[j] + scratch[sums + j] * (1f / ONE), 0f), 1f);
+			out[p] = output;
+		}
+	}
+
+	/// Clips a first layer sum to [0, ONE].
+	private static int clip(final short sum)
+	{
+		return Math.min(Math.max(sum, 0), ONE);
+	}
+
+	/// Returns the width of the board.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the number of coins in a row needed to win in the games the network scores.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+
+	/// Returns whether the network scores games of the given size and win length.
+	public boolean isFor(final int width, final int height, final int winLength)
+	{
+		return this.width == width && this.height == height && this.winLength == winLength;
+	}
+
+	/// Returns the size of the first layer, per point of view.
+	public int getHidden()
+	{
+		return hidden;
+	}
+
+	/// Returns the size of the second layer, or 0 if there is none.
+	public int getHidden2()
+	{
+		return hidden2;
+	}
+
+	/// Returns the number of floats evaluate needs for scratch.
+	int getScratchSize()
+	{
+		return 2 * hidden + hidden2;
+	}
+
+	/// Returns the number of floats the batched evaluate needs for scratch.
+	/**
+	 * @param count The number of positions in the batch.
+	 */
+	int getBatchScratchSize(final int count)
+	{
+		return count * hidden2;
+	}
+
+	/// Returns a number that changes whenever any weight does.
+	public long getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-o [file]\" : Write a randomly initialised network to this file");
+		System.out.println("      Example: -o network.c4n");
+		System.out.println("    \"-bench [file]\" : Measure how fast this network evaluates");
+		System.out.println("      Example: -bench network.c4n");
+		System.out.println("    \"-w [int]\" : Set the width of the game board");
+		System.out.println("      Example: -w 7");
+		System.out.println("    \"-h [int]\" : Set the height of the game board");
+		System.out.println("      Example: -h 6");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-hidden [int]\" : Size of the first layer (default: 128)");
+		System.out.println("      Example: -hidden 256");
+		System.out.println("    \"-hidden2 [int]\" : Size of the second layer, 0 for none (default: 0)");
+		System.out.println("      Example: -hidden2 16");
+		System.out.println("    \"-seed [int]\" : Seed for the random weights");
+		System.out.println("      Example: -seed 1");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String output = null;
+		String bench = null;
+		int width = 7;
+		int height = 6;
+		int winLength = 4;
+		int hidden = 128;
+		int hidden2 = 0;
+		long seed = System.currentTimeMillis();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-bench"))
+					bench = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-w"))
+					width = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-h"))
+					height = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-k"))
+					winLength = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-hidden"))
+				{
+					hidden = Integer.parseInt(args[i + 1]);
+					if(hidden <= 0 || hidden > 0xFFFF)
+						throw new IllegalArgumentException("First layer size must be from 1 to 65535");
+				}
+				else if(args[i].equalsIgnoreCase("-hidden2"))
+				{
+					hidden2 = Integer.parseInt(args[i + 1]);
+					if(hidden2 < 0 || hidden2 > 0xFFFF)
+						throw new IllegalArgumentException("Second layer size must be from 0 to 65535");
+				}
+				else if(args[i].equalsIgnoreCase("-seed"))
+					seed = Long.parseLong(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if((output == null) == (bench == null))
+				throw new IllegalArgumentException("Give either -o or -bench.");
+			if(width < 4 || height < 4)
+				throw new IllegalArgumentException("Widths and heights must be at least four.");
+			if(winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Win length must be from two to the longer side of the board.");
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			if(output != null)
+			{
+				random(width, height, winLength, hidden, hidden2, new Random(seed)).save(new File(output));
+				System.out.println("Wrote " + output);
+			}
+			else
+				benchmark(new NeuralNetwork(new File(bench)), seed);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/// Plays random games through a NeuralEvaluator, evaluating after every move and unmove.
+	private static void benchmark(final NeuralNetwork network, final long seed)
+	{
+		final Random random = new Random(seed);
+		final NeuralEvaluator state = new NeuralEvaluator(Main.createGame(network.width, network.height,
+																		  network.winLength), network);
+		for(int round = 0; round < 5; round++)
+		{
+			long evaluations = 0;
+			long moves = 0;
+			float sink = 0f;
+			final long start = System.nanoTime();
+			while(System.nanoTime() - start < 1000000000L)
+			{
+				for(int n = 0; n < 1000; n++)
+				{
+					if(state.isGameOver() || state.getCoins() == network.width * network.height
+					   || (state.getCoins() > 0 && random.nextInt(3) == 0))
+						state.unMakeMove();
+					else
+					{
+						int column;
+						do
+							column = random.nextInt(network.width);
+						while(!state.canMakeMove(column));
+						state.makeMove(column);
+					}
+					moves++;
+					sink += state.evaluate();
+					evaluations++;
+				}
+			}
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%.2f million evaluations per second, %.2f million moves per second (%.0f)%n",
+							  evaluations / seconds / 1e6, moves / seconds / 1e6, sink);
+		}
+	}
+}
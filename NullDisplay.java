@@ -0,0 +1,25 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// IO module that draws nothing, for games between AIs that nobody watches.
+/**
+ * Used by the tournament and other batch modes so that games are not slowed down by
+ * rendering.  There is no human player to ask for moves; if asked anyway it returns
+ * an illegal move, which makes the GameController play an arbitrary legal one.
+ */
+public final class NullDisplay implements IOModule
+{
+    /// There is no human player; always returns an illegal move.
+    public int getHumanMove()
+    {
+        return -1;
+    }
+
+    /// Does nothing.
+    /**
+     * @param game State of the game to draw.
+     */
+    public void drawBoard(final GameStateModule game)
+    {
+    }
+}
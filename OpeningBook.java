@@ -0,0 +1,202 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/// Read-only opening book, memory mapped and probed by binary search.
+/**
+ * Holds the best move found by a deep offline search (see BookBuilder) for every
+ * position up to some number of plies.  Positions are keyed by their canonical
+ * PositionKey, so a position and its mirror image share one entry, and the stored
+ * move is for whichever of the two has the canonical key.
+ *
+ * File layout, all numbers big-endian: the magic bytes "C4OB", a version byte, width,
+ * height, win length and ply count bytes, the number of entries as an int, then one
+ * 12 byte entry per position sorted by key:
+ * - The canonical key as a long.
+ * - The move as a byte.
+ * - The search depth as a byte, with the top bit set if the result is proven.
+ * - The score as a short, from the point of view of the player to move.
+ *
+ * Probing allocates nothing and only touches the pages of the entries it compares,
+ * so a book may be far larger than memory.  A book may be shared between threads.
+ *
+ * @see BookBuilder
+ * @see PositionKey
+ */
+public final class OpeningBook
+{
+	/// First bytes of every book.
+	static final byte[] MAGIC = {'C', '4', 'O', 'B'};
+	/// Version of the format.
+	static final int VERSION = 1;
+	/// Bytes before the first entry.
+	static final int HEADER_SIZE = 13;
+	/// Bytes per entry.
+	static final int ENTRY_SIZE = 12;
+	/// Bit of the depth byte marking a proven result.
+	static final int PROVEN = 0x80;
+	/// System property naming the book file.
+	public static final String FILE_PROPERTY = "c4.book";
+	/// Book file used if the property is not set.
+	public static final String DEFAULT_FILE = "book.c4b";
+
+	/// Book loaded at startup, or null if there was none.
+	private static OpeningBook loaded = null;
+	private static boolean triedLoading = false;
+
+	private final MappedByteBuffer buffer;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final int plies;
+	private final int size;
+
+	/// Primary Constructor.
+	/**
+	 * @param file A book written by BookBuilder.
+	 * @throws IOException If the file cannot be read or is not a book.
+	 */
+	public OpeningBook(final File file) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final byte[] magic = new byte[MAGIC.length];
+		if(buffer.limit() < HEADER_SIZE)
+			throw new IOException(file + " is not an opening book");
+		buffer.get(magic);
+		if(!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION)
+			throw new IOException(file + " is not an opening book of this version");
+		width = buffer.get() & 0xFF;
+		height = buffer.get() & 0xFF;
+		winLength = buffer.get() & 0xFF;
+		plies = buffer.get() & 0xFF;
+		size = buffer.getInt();
+		if((long) HEADER_SIZE + (long) size * ENTRY_SIZE != buffer.limit())
+			throw new IOException(file + " is truncated");
+	}
+
+	/// Returns the book to play a game with, or null if there is none for its size.
+	/**
+	 * The book file is mapped on the first call, from the path in the c4.book system
+	 * property or book.c4b in the working directory.
+	 *
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 */
+	public static synchronized OpeningBook forGame(final int width, final int height, final int winLength)
+	{
+		if(!triedLoading)
+		{
+			triedLoading = true;
+			final File file = new File(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+			if(file.exists())
+			{
+				try
+				{
+					loaded = new OpeningBook(file);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Cannot load opening book: " + e.getMessage());
+				}
+			}
+		}
+		if(loaded == null || loaded.width != width || loaded.height != height || loaded.winLength != winLength)
+			return null;
+		return loaded;
+	}
+
+	/// Finds the entry of a position.
+	/**
+	 * @param key The PositionKey of the position.
+	 * @param mirrorKey The mirror key of the position.
+	 * @return The index of the entry, or -1 if the position is not in the book.
+	 */
+	public int find(final long key, final long mirrorKey)
+	{
+		final long canonical = PositionKey.canonical(key, mirrorKey);
+		int low = 0;
+		int high = size - 1;
+		while(low <= high)
+		{
+			final int middle = (low + high) >>> 1;
+			final long found = buffer.getLong(HEADER_SIZE + middle * ENTRY_SIZE);
+			if(found < canonical)
+				low = middle + 1;
+			else if(found > canonical)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/// Returns the move of an entry for a position.
+	/**
+	 * @param entry An index returned by find.
+	 * @param key The PositionKey of the position find was called with.
+	 * @param mirrorKey The mirror key of the position.
+	 * @return The column to play in that position.
+	 */
+	public int getMove(final int entry, final long key, final long mirrorKey)
+	{
+		final int move = buffer.get(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+		return key == PositionKey.canonical(key, mirrorKey) ? move : PositionKey.mirror(move, width);
+	}
+
+	/// Returns the depth the move of an entry was searched to.
+	public int getDepth(final int entry)
+	{
+		return buffer.get(HEADER_SIZE + entry * ENTRY_SIZE + 9) & ~PROVEN & 0xFF;
+	}
+
+	/// Returns whether the score of an entry is a proven win or loss.
+	public boolean isProven(final int entry)
+	{
+		return (buffer.get(HEADER_SIZE + entry * ENTRY_SIZE + 9) & PROVEN) != 0;
+	}
+
+	/// Returns the score of an entry, from the point of view of the player to move.
+	public int getScore(final int entry)
+	{
+		return buffer.getShort(HEADER_SIZE + entry * ENTRY_SIZE + 10);
+	}
+
+	/// Returns the number of positions in the book.
+	public int size()
+	{
+		return size;
+	}
+
+	/// Returns the number of plies the book covers.
+	public int getPlies()
+	{
+		return plies;
+	}
+
+	/// Returns the width of the board.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the number of coins in a row needed to win.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+}
@@ -0,0 +1,110 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// Hash keys for board positions and their left-right mirror images.
+/**
+ * Each (player, column, row) triple has a fixed pseudo-random 64 bit value, and the
+ * key of a position is the XOR of the values of all its coins.  Keys are therefore
+ * cheap to update as moves are made (XOR in the value of the new coin) and the same
+ * on every run, so they can be stored in files.  The values come from a hash of the
+ * triple rather than a table, so any board size is supported.
+ *
+ * The mirror key of a position is the key its left-right mirror image would have.
+ * Mirrored positions have the same game-theoretic value, so caches should be
+ * indexed by the canonical key, the smaller of the two.  A position whose key equals
+ * its mirror key is (almost certainly; see isSymmetric) its own mirror image, and a
+ * search only needs to look at the left half of its moves.
+ */
+public final class PositionKey
+{
+	private PositionKey()
+	{
+	}
+
+	/// The key contribution of one coin.
+	/**
+	 * @param player The 1-based index of the player owning the coin.
+	 * @param x The column of the coin.
+	 * @param y The row of the coin.
+	 * @return The value to XOR into a key for this coin.
+	 */
+	public static long tile(final int player, final int x, final int y)
+	{
+		// SplitMix64 finalizer over the packed triple
+		long z = ((long) player << 40 | (long) x << 20 | y) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/// Computes the key of a position from scratch.
+	public static long key(final GameStateModule game)
+	{
+		long key = 0L;
+		for(int x = 0; x < game.getWidth(); x++)
+			for(int y = 0; y < game.getHeightAt(x); y++)
+				key ^= tile(game.getAt(x, y), x, y);
+		return key;
+	}
+
+	/// Computes the key of the mirror image of a position from scratch.
+	public static long mirrorKey(final GameStateModule game)
+	{
+		final int last = game.getWidth() - 1;
+		long key = 0L;
+		for(int x = 0; x <= last; x++)
+			for(int y = 0; y < game.getHeightAt(x); y++)
+				key ^= tile(game.getAt(x, y), last - x, y);
+		return key;
+	}
+
+	/// Returns the key under which a position and its mirror image share cache entries.
+	/**
+	 * @param key The key of a position.
+	 * @param mirrorKey The mirror key of the same position.
+	 * @return The smaller of the two keys.
+	 */
+	public static long canonical(final long key, final long mirrorKey)
+	{
+		return Math.min(key, mirrorKey);
+	}
+
+	/// Returns the column a move in column x becomes in the mirror image.
+	public static int mirror(final int x, final int width)
+	{
+		return width - 1 - x;
+	}
+
+	/// Returns the rightmost column worth searching in a position.
+	/**
+	 * In a position that is its own mirror image, every move right of the middle
+	 * leads to the mirror image of a move left of it, so only columns up to and
+	 * including the middle need to be searched.
+	 *
+	 * @param game The position.
+	 * @param key The key of the position.
+	 * @param mirrorKey The mirror key of the position.
+	 * @return The last column that needs to be searched.
+	 */
+	public static int lastColumn(final GameStateModule game, final long key, final long mirrorKey)
+	{
+		if(key == mirrorKey && isSymmetric(game))
+			return (game.getWidth() - 1) / 2;
+		return game.getWidth() - 1;
+	}
+
+	/// Checks tile by tile whether a position is its own mirror image.
+	public static boolean isSymmetric(final GameStateModule game)
+	{
+		final int last = game.getWidth() - 1;
+		for(int x = 0; x < last - x; x++)
+		{
+			if(game.getHeightAt(x) != game.getHeightAt(last - x))
+				return false;
+			for(int y = 0; y < game.getHeightAt(x); y++)
+				if(game.getAt(x, y) != game.getAt(last - x, y))
+					return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,578 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.Arrays;
+
+/// Monte Carlo tree search AI guided by an evaluator instead of random games.
+/**
+ * Searches like AlphaZero: every descent from the root picks the child with the best
+ * PUCT score, its mean value plus an exploration bonus that grows with the child's
+ * prior probability and shrinks as the child is visited.  The leaf it reaches is not
+ * played out at random but scored by an evaluator: the NeuralNetwork for the board if
+ * one was loaded (see NeuralNetwork.forGame), or DeepConnect's open lines evaluation
+ * (see EvalWeights) otherwise.  The evaluator also gives the priors: each child's is
+ * a softmax over minus the child's score, so moves that leave the opponent badly off
+ * are tried first.
+ *
+ * Leaves are scored in batches.  Several descents are made one after another, each
+ * adding a virtual loss to the nodes it passes so that the next one tends to take a
+ * different path; then all their leaves are evaluated in one call, and only then are
+ * the values backed up and the virtual losses taken off.  The positions after each
+ * move from a leaf, whose scores give the new children's priors, go into the same
+ * call.  With a network, that call runs its layers over the whole batch while reading
+ * each weight once (see NeuralNetwork.evaluate).  Larger batches spread the cost of
+ * an evaluator call over more positions but let the tree see less before choosing
+ * each leaf.  The batch size is read from the c4.puct.batch system property
+ * (default 8).  If c4.puct.stats is set, the batch size reached, the evaluator
+ * latency and the search speed are printed to standard error after every move.
+ *
+ * The tree lives in flat arrays, allocated on the first move and grown as far as the
+ * time per move needs (up to 2^19 nodes), and is rebuilt for every move.  The
+ * move played is the most visited child of the root, or a move that wins at once;
+ * the search stops early when there is such a move or when every move ends the game.
+ * Published scores are in DeepConnect's units: the move's mean value mapped back
+ * through VALUE_SCALE to an evaluator score, always below DeepConnect's win score of
+ * 1000, or exactly 1000 (and proven) for a move that wins at once.
+ *
+ * @see MonteCarloAI
+ * @see NeuralEvaluator
+ */
+public class PuctAI extends AIModule
+{
+	/// System property holding the number of leaves evaluated together.
+	public static final String BATCH_PROPERTY = "c4.puct.batch";
+	/// System property that turns on the statistics printed after every move.
+	public static final String STATS_PROPERTY = "c4.puct.stats";
+	/// Most nodes in the tree; the search stops early once it is full.
+	private static final int MAX_NODES = 1 << 19;
+	/// Nodes room is first made for; the tree grows by doubling as the time per move needs.
+	private static final int INITIAL_NODES = 1 << 12;
+	/// Weight of the exploration bonus.
+	private static final float EXPLORATION = 1.5f;
+	/// Evaluator score that maps to a value of tanh(1), about 0.76.
+	private static final float VALUE_SCALE = 16f;
+	/// Evaluator score difference that makes one prior e times another.
+	private static final float PRIOR_TEMPERATURE = 8f;
+	/// Score given to a lost position when computing priors, so wins are always tried first.
+	private static final float LOST_SCORE = 1000f;
+	/// Reported score of a move that wins at once: DeepConnect's score for a win found one ply ahead.
+	private static final int WIN_SCORE = 1000;
+	/// Values of outcome.
+	private static final byte UNKNOWN = 0;
+	private static final byte WON = 1;
+	private static final byte DRAWN = 2;
+
+	/// Number of leaves evaluated together.
+	private final int batchSize;
+	private final boolean printStats;
+
+	/// The tree, allocated by grow.  Values are from the point of view of the player who moved into the node.
+	private int[] firstChild;
+	private short[] childCount;
+	private short[] column;
+	private float[] prior;
+	private int[] visits;
+	private float[] valueSum;
+	/// Descents through the node whose leaves are waiting to be evaluated.
+	private int[] virtual;
+	/// Whether the move into the node ended the game, and how.
+	private byte[] outcome;
+	private int nodeCount;
+
+	/// The position being searched, wrapped in the layer the evaluator reads.
+	private GameStateModule root;
+	private EvalWeights weights;
+	/// The leaves of the current batch and the nodes on the path to each.
+	private GameStateModule[] leaves;
+	private int[][] paths;
+	private int[] pathLengths;
+	/// Values of the leaves of the current batch.
+	private float[] values;
+	/// Softmax inputs while expanding a node.
+	private float[] logits;
+	/// The network being searched with, or null to score with weights.
+	private NeuralNetwork network;
+	/// Positions waiting for the evaluator: each one's accumulators and the offset of the mover's.
+	private short[][] accumulators;
+	private int[] own;
+	/// Evaluator scores of the waiting positions, for the player to move in each.
+	private float[] scores;
+	private float[] networkScratch;
+
+	/// Counters for the statistics, over the current move.
+	private long batches;
+	private long batchedLeaves;
+	private long descents;
+	/// Descents given up because their leaf was already in the batch.
+	private long collisions;
+	private long evaluatorNanos;
+	private long searchNanos;
+	private int deepest;
+
+	/// Primary Constructor.
+	public PuctAI()
+	{
+		int size = 8;
+		try
+		{
+			size = Integer.parseInt(System.getProperty(BATCH_PROPERTY, "8"));
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid " + BATCH_PROPERTY + ": " + e.getMessage());
+		}
+		batchSize = Math.max(1, size);
+		printStats = System.getProperty(STATS_PROPERTY) != null;
+	}
+
+	/// Searches until time is up and plays the most visited move.
+	@Override
+	public void getNextMove(final GameStateModule game)
+	{
+		final long start = System.nanoTime();
+		batches = 0;
+		batchedLeaves = 0;
+		descents = 0;
+		collisions = 0;
+		evaluatorNanos = 0;
+		deepest = 0;
+
+		final int width = game.getWidth();
+		final int cells = width * game.getHeight();
+		if(weights == null || !weights.isFor(width, game.getHeight(), game.getWinLength()))
+			weights = EvalWeights.forGame(width, game.getHeight(), game.getWinLength());
+		// Room for the root's children and at least one batch
+		final int needed = Math.max(INITIAL_NODES, (batchSize + 1) * width + 1);
+		if(firstChild == null || firstChild.length < needed)
+			grow(needed);
+		final NeuralNetwork loaded = NeuralNetwork.forGame(width, game.getHeight(), game.getWinLength());
+		root = loaded != null ? new NeuralEvaluator(game, loaded) : new EvaluatedGameState(game);
+		if(paths == null || paths[0].length != cells + 1 || logits.length != width)
+		{
+			leaves = new GameStateModule[batchSize];
+			paths = new int[batchSize][cells + 1];
+			pathLengths = new int[batchSize];
+			values = new float[batchSize];
+			logits = new float[width];
+			// Each leaf and the position after each of its moves
+			scores = new float[batchSize * (width + 1)];
+			own = new int[scores.length];
+			network = null;
+		}
+		if(loaded != network)
+		{
+			network = loaded;
+			accumulators = loaded == null ? null : new short[scores.length][2 * loaded.getHidden()];
+			networkScratch = loaded == null ? null : new float[loaded.getBatchScratchSize(scores.length)];
+		}
+
+		final GameStatePool pool = GameStatePool.get();
+		final GameStateModule scratch = pool.borrow(root);
+		for(int b = 0; b < batchSize; b++)
+			leaves[b] = pool.borrow(root);
+		try
+		{
+			nodeCount = 1;
+			clearNode(0, -1);
+			score(addChildren(0, scratch, 0));
+			setPriors(0, 0);
+			int best = -1;
+			while(!terminate && timeLeft() > 0 && !isRootDecided())
+			{
+				// A batch can add up to width nodes for each leaf
+				if(nodeCount + batchSize * width > firstChild.length)
+				{
+					if(firstChild.length == MAX_NODES)
+						break;
+					grow(Math.min(MAX_NODES, 2 * firstChild.length));
+				}
+				// Gather leaves until the batch is full, giving up after a few descents
+				// that end in finished games or in leaves already in the batch
+				int count = 0;
+				for(int attempt = 0; attempt < 2 * batchSize && count < batchSize; attempt++)
+					count += descend(scratch, count);
+
+				if(count > 0)
+				{
+					final long evaluated = System.nanoTime();
+					evaluate(count);
+					evaluatorNanos += System.nanoTime() - evaluated;
+					batches++;
+					batchedLeaves += count;
+					// Values are for the player to move at the leaf, backUp wants the one who moved there
+					for(int b = 0; b < count; b++)
+						backUp(paths[b], pathLengths[b], -values[b]);
+				}
+
+				final int move = bestChild();
+				if(move != best)
+				{
+					best = move;
+					publish(result());
+				}
+			}
+			publish(result());
+		}
+		finally
+		{
+			pool.release(scratch);
+			for(int b = 0; b < batchSize; b++)
+				pool.release(leaves[b]);
+			root = null;
+		}
+
+		searchNanos = System.nanoTime() - start;
+		if(printStats)
+			System.err.println("PuctAI: " + getStats());
+	}
+
+	/// Makes one descent from the root.
+	/**
+	 * A descent that ends in a finished game backs up its result at once.  One that
+	 * ends at a new leaf copies the leaf into leaves[slot] for evaluation.
+	 *
+	 * @param scratch A state to play the descent out on.
+	 * @param slot The batch slot to put a new leaf in.
+	 * @return 1 if a leaf was added to the batch, 0 if not.
+	 */
+	private int descend(final GameStateModule scratch, final int slot)
+	{
+		root.copyInto(scratch);
+		final int[] path = paths[slot];
+		int length = 0;
+		int node = 0;
+		path[length++] = node;
+		virtual[node]++;
+		while(firstChild[node] >= 0 && outcome[node] == UNKNOWN)
+		{
+			node = select(node);
+			scratch.makeMove(column[node]);
+			path[length++] = node;
+			virtual[node]++;
+		}
+		descents++;
+		deepest = Math.max(deepest, length - 1);
+
+		if(outcome[node] != UNKNOWN)
+		{
+			backUp(path, length, outcome[node] == WON ? 1f : 0f);
+			return 0;
+		}
+		if(virtual[node] > 1)
+		{
+			// Another descent of this batch already reached this leaf
+			for(int i = 0; i < length; i++)
+				virtual[path[i]]--;
+			descents--;
+			collisions++;
+			return 0;
+		}
+		scratch.copyInto(leaves[slot]);
+		pathLengths[slot] = length;
+		return 1;
+	}
+
+	/// Picks the child of a node with the highest PUCT score.
+	private int select(final int node)
+	{
+		final float parentVisits = (float) Math.sqrt(Math.max(1, visits[node] + virtual[node]));
+		int best = -1;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		final int first = firstChild[node];
+		for(int child = first; child < first + childCount[node]; child++)
+		{
+			final int n = visits[child] + virtual[child];
+			// Each pending descent counts as a loss until its leaf is evaluated
+			final float q = n == 0 ? 0f : (valueSum[child] - virtual[child]) / n;
+			final float score = q + EXPLORATION * prior[child] * parentVisits / (1 + n);
+			if(score > bestScore)
+			{
+				bestScore = score;
+				best = child;
+			}
+		}
+		return best;
+	}
+
+	/// Evaluates the leaves of the batch, expanding each one.
+	/**
+	 * Sets values[b] to the value of leaf b for the player to move in it, from -1 to 1.
+	 * The leaves and the positions after their moves are all scored in one call.
+	 *
+	 * @param count Number of leaves in the batch.
+	 */
+	private void evaluate(final int count)
+	{
+		int position = 0;
+		for(int b = 0; b < count; b++)
+		{
+			add(leaves[b], position++);
+			position = addChildren(paths[b][pathLengths[b] - 1], leaves[b], position);
+		}
+		score(position);
+		position = 0;
+		for(int b = 0; b < count; b++)
+		{
+			values[b] = (float) Math.tanh(scores[position++] / VALUE_SCALE);
+			position = setPriors(paths[b][pathLengths[b] - 1], position);
+		}
+	}
+
+	/// Creates the children of a node and adds the positions they lead to to the batch.
+	/**
+	 * Children that end the game get their outcome and are not scored.
+	 *
+	 * @param node The node.
+	 * @param state The position at the node; moves are made on it and taken back.
+	 * @param position The batch slot of the first child's position.
+	 * @return The batch slot after the last child's.
+	 */
+	private int addChildren(final int node, final GameStateModule state, int position)
+	{
+		final int first = nodeCount;
+		for(int x = 0; x < state.getWidth(); x++)
+		{
+			if(!state.canMakeMove(x))
+				continue;
+			final int child = nodeCount++;
+			clearNode(child, x);
+			state.makeMove(x);
+			if(state.isGameOver())
+				outcome[child] = state.getWinner() == 0 ? DRAWN : WON;
+			else
+				add(state, position++);
+			state.unMakeMove();
+		}
+		firstChild[node] = first;
+		childCount[node] = (short) (nodeCount - first);
+		return position;
+	}
+
+	/// Sets the priors of a node's children from their scores.
+	/**
+	 * @param node A node whose children were created by addChildren.
+	 * @param position The batch slot addChildren put the first child's position in.
+	 * @return The batch slot after the last child's.
+	 */
+	private int setPriors(final int node, int position)
+	{
+		final int first = firstChild[node];
+		final int count = childCount[node];
+		float max = Float.NEGATIVE_INFINITY;
+		for(int i = 0; i < count; i++)
+		{
+			// The child's score is for the opponent, who moves there
+			final byte result = outcome[first + i];
+			final float score = result == WON ? -LOST_SCORE : result == DRAWN ? 0f : scores[position++];
+			logits[i] = -score / PRIOR_TEMPERATURE;
+			max = Math.max(max, logits[i]);
+		}
+
+		float sum = 0f;
+		for(int i = 0; i < count; i++)
+		{
+			logits[i] = (float) Math.exp(logits[i] - max);
+			sum += logits[i];
+		}
+		for(int i = 0; i < count; i++)
+			prior[first + i] = logits[i] / sum;
+		return position;
+	}
+
+	/// Makes room for more nodes, keeping the tree built so far.
+	/**
+	 * The tree starts small and doubles whenever a search fills it, so it only gets
+	 * as large as the time per move lets the search make it.
+	 *
+	 * @param capacity The number of nodes to make room for.
+	 */
+	private void grow(final int capacity)
+	{
+		if(firstChild == null)
+		{
+			firstChild = new int[capacity];
+			childCount = new short[capacity];
+			column = new short[capacity];
+			prior = new float[capacity];
+			visits = new int[capacity];
+			valueSum = new float[capacity];
+			virtual = new int[capacity];
+			outcome = new byte[capacity];
+			return;
+		}
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		childCount = Arrays.copyOf(childCount, capacity);
+		column = Arrays.copyOf(column, capacity);
+		prior = Arrays.copyOf(prior, capacity);
+		visits = Arrays.copyOf(visits, capacity);
+		valueSum = Arrays.copyOf(valueSum, capacity);
+		virtual = Arrays.copyOf(virtual, capacity);
+		outcome = Arrays.copyOf(outcome, capacity);
+	}
+
+	/// Resets a newly created node.
+	private void clearNode(final int node, final int move)
+	{
+		firstChild[node] = -1;
+		childCount[node] = 0;
+		column[node] = (short) move;
+		prior[node] = 0f;
+		visits[node] = 0;
+		valueSum[node] = 0f;
+		virtual[node] = 0;
+		outcome[node] = UNKNOWN;
+	}
+
+	/// Puts a position in the batch for the evaluator.
+	/**
+	 * With a network the position's accumulators are copied for score to run the
+	 * network on later.  Without one the position is scored at once, the open lines
+	 * evaluation being cheap enough that batching gains nothing.
+	 *
+	 * @param state The position.
+	 * @param position Its batch slot.
+	 */
+	private void add(final GameStateModule state, final int position)
+	{
+		if(network != null)
+			own[position] = ((NeuralEvaluator) state).exportAccumulators(accumulators[position]);
+		else
+			scores[position] = weights.evaluate((EvaluatedGameState) state, state.getActivePlayer(), null);
+	}
+
+	/// Scores the positions in the batch, for the player to move in each.
+	/**
+	 * @param count The number of positions added.
+	 */
+	private void score(final int count)
+	{
+		if(network != null && count > 0)
+			network.evaluate(accumulators, own, count, networkScratch, scores);
+	}
+
+	/// Adds a leaf's value to the nodes on its path and takes off their virtual losses.
+	/**
+	 * @param path The nodes from the root to the leaf.
+	 * @param length Number of nodes on the path.
+	 * @param value The value of the leaf for the player who moved into it.
+	 */
+	private void backUp(final int[] path, final int length, float value)
+	{
+		for(int i = length - 1; i >= 0; i--)
+		{
+			final int node = path[i];
+			virtual[node]--;
+			visits[node]++;
+			valueSum[node] += value;
+			value = -value;
+		}
+	}
+
+	/// Returns the most visited child of a node, or -1 if it has none.
+	private int mostVisited(final int node)
+	{
+		int best = -1;
+		final int first = firstChild[node];
+		for(int child = first; child < first + childCount[node]; child++)
+			if(best < 0 || visits[child] > visits[best])
+				best = child;
+		return best;
+	}
+
+	/// Returns whether searching on cannot change the move: a root move wins at once, or every one ends the game.
+	private boolean isRootDecided()
+	{
+		final int first = firstChild[0];
+		boolean decided = true;
+		for(int child = first; child < first + childCount[0]; child++)
+		{
+			if(outcome[child] == WON)
+				return true;
+			decided &= outcome[child] != UNKNOWN;
+		}
+		return decided;
+	}
+
+	/// Returns the root move to play: one that wins at once if there is one, else the most visited.
+	private int bestChild()
+	{
+		final int first = firstChild[0];
+		for(int child = first; child < first + childCount[0]; child++)
+			if(outcome[child] == WON)
+				return child;
+		return mostVisited(0);
+	}
+
+	/// Describes the best line found so far.
+	private SearchResult result()
+	{
+		final int best = bestChild();
+		int length = 0;
+		// A winning move found on expanding the root may not have been visited yet
+		for(int node = best; node >= 0 && (visits[node] > 0 || node == best); node = mostVisited(node))
+			length++;
+		final int[] pv = new int[length];
+		int i = 0;
+		for(int node = best; i < length; node = mostVisited(node))
+			pv[i++] = column[node];
+		if(outcome[best] == WON)
+			return new SearchResult(column[best], WIN_SCORE, deepest, pv, 1);
+		final float q = visits[best] == 0 ? 0f : valueSum[best] / visits[best];
+		return new SearchResult(column[best], toScore(q), deepest, pv, 0);
+	}
+
+	/// Maps a mean value back onto the evaluator's scale, the units DeepConnect reports.
+	/**
+	 * Leaf values are tanh(score / VALUE_SCALE), so this is the evaluator score whose
+	 * value is q: a move averaging the value of a position DeepConnect would score 16
+	 * is reported as 16.  It is kept below WIN_SCORE, since a mean is never a proof.
+	 *
+	 * @param q A mean value between -1 and 1.
+	 * @return The score, strictly between -WIN_SCORE and WIN_SCORE.
+	 */
+	private static int toScore(final float q)
+	{
+		final double clamped = Math.max(-0.999999, Math.min(0.999999, q));
+		final double score = VALUE_SCALE * 0.5 * Math.log((1 + clamped) / (1 - clamped));
+		return (int) Math.max(1 - WIN_SCORE, Math.min(WIN_SCORE - 1, Math.round(score)));
+	}
+
+	/// Returns the average number of leaves per evaluator call during the last move.
+	public double getAverageBatchSize()
+	{
+		return batches == 0 ? 0 : (double) batchedLeaves / batches;
+	}
+
+	/// Returns the average time of an evaluator call during the last move, in nanoseconds.
+	public double getEvaluatorLatency()
+	{
+		return batches == 0 ? 0 : (double) evaluatorNanos / batches;
+	}
+
+	/// Returns the number of descents given up during the last move because their leaf was already in the batch.
+	public long getCollisions()
+	{
+		return collisions;
+	}
+
+	/// Returns the number of descents per second during the last move.
+	public double getDescentsPerSecond()
+	{
+		return searchNanos == 0 ? 0 : descents * 1e9 / searchNanos;
+	}
+
+	/// Returns the number of tree nodes created per second during the last move.
+	public double getNodesPerSecond()
+	{
+		return searchNanos == 0 ? 0 : nodeCount * 1e9 / searchNanos;
+	}
+
+	/// Summarises the statistics of the last move on one line.
+	public String getStats()
+	{
+		return String.format("%d descents, %d nodes in %.1f ms (%.0f descents/s, %.0f nodes/s), batch %.2f of %d, "
+							 + "%d collisions, evaluator %.1f us per call, %.2f us per leaf",
+							 descents, nodeCount, searchNanos / 1e6, getDescentsPerSecond(), getNodesPerSecond(),
+							 getAverageBatchSize(), batchSize, collisions, getEvaluatorLatency() / 1e3,
+							 batchedLeaves == 0 ? 0 : evaluatorNanos / 1e3 / batchedLeaves);
+	}
+}
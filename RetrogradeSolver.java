@@ -0,0 +1,446 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/// Entry point for solving a whole small board by retrograde analysis.
+/**
+ * Lists every position of the board, ply by ply, as sorted arrays of canonical codes
+ * (see EndgameTable), leaving out positions where the game is already over and keeping
+ * one of each pair of mirror images.  It then solves them backwards from the full
+ * board: a position is won if some move wins at once or leads to a lost position,
+ * drawn if the best it can reach is a draw and lost otherwise.  Each ply is listed
+ * and solved in parallel with fork-join, and the result is written as an EndgameTable.
+ *
+ * Every position takes 9 bytes in memory and in the table; 4x4 and 5x4 take seconds,
+ * 5x5 needs a few hundred megabytes and larger boards more memory than most machines
+ * have.  Every ply is held in memory at once, so 6x5 and 6x6, with billions of
+ * positions, are out of reach; they would need each ply streamed to and from disk.
+ * Run with --help for the command line options.
+ *
+ * @see EndgameTable
+ */
+public class RetrogradeSolver
+{
+	/// Positions per fork-join task.
+	private static final int CHUNK = 1 << 12;
+
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final int h1;
+	/// Distance between neighbouring tiles of a line: vertical, diagonal \, horizontal and diagonal /.
+	private final int[] directions;
+	/// The bottom tile of every column.
+	private final long bottom;
+	/// Every tile of the leftmost column.
+	private final long column;
+	/// Canonical codes of the positions of each ply, sorted.
+	private final long[][] codes;
+	/// Values of the positions of each ply, as in EndgameTable.
+	private final byte[][] values;
+	private final ForkJoinPool pool;
+
+	/// Primary Constructor.
+	/**
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param threads Number of threads to use.
+	 */
+	public RetrogradeSolver(final int width, final int height, final int winLength, final int threads)
+	{
+		if(!ThreatAnalyzer.fits(width, height))
+			throw new IllegalArgumentException("Board too large to encode: " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		h1 = height + 1;
+		directions = new int[] {1, h1 - 1, h1, h1 + 1};
+		column = (1L << height) - 1;
+		long b = 0L;
+		for(int x = 0; x < width; x++)
+			b |= 1L << (x * h1);
+		bottom = b;
+		codes = new long[width * height + 1][];
+		values = new byte[width * height + 1][];
+		pool = new ForkJoinPool(threads);
+	}
+
+	/// Returns whether a player's coins hold winLength in a row.
+	private boolean won(final long coins)
+	{
+		// The empty row above the top keeps lines from wrapping from one column to the next
+		for(final int shift : directions)
+		{
+			long line = coins;
+			for(int i = 1; i < winLength && line != 0; i++)
+				line &= coins >>> (i * shift);
+			if(line != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/// Returns the mask of all coins of a position from its code.
+	private long mask(final long code)
+	{
+		long mask = 0L;
+		for(int x = 0; x < width; x++)
+		{
+			final long bits = (code >>> (x * h1)) & ((1L << h1) - 1);
+			// The highest bit of the column sits just above its coins
+			mask |= (Long.highestOneBit(bits) - 1) << (x * h1);
+		}
+		return mask;
+	}
+
+	/// Returns the code of the mirror image of a position.
+	private long mirror(final long code)
+	{
+		long mirrored = 0L;
+		for(int x = 0; x < width; x++)
+			mirrored |= ((code >>> (x * h1)) & ((1L << h1) - 1)) << ((width - 1 - x) * h1);
+		return mirrored;
+	}
+
+	/// Returns the canonical code of the position after a move, or 0 if the move wins.
+	/**
+	 * @param code The code of the position.
+	 * @param mask The mask of all its coins.
+	 * @param x The column to play, which must not be full.
+	 */
+	private long play(final long code, final long mask, final int x)
+	{
+		final long current = code - mask - bottom;
+		final long move = (mask + (1L << (x * h1))) & (column << (x * h1));
+		if(won(current | move))
+			return 0L;
+		// The opponent is to move next
+		final long next = (current ^ mask) + (mask | move) + bottom;
+		return Math.min(next, mirror(next));
+	}
+
+	/// Returns whether column x of a position can take another coin.
+	private boolean canPlay(final long mask, final int x)
+	{
+		return (mask & (1L << (x * h1 + height - 1))) == 0;
+	}
+
+	/// Lists the children of a range of positions of one ply.
+	private final class Expand extends RecursiveTask<long[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final long[] parents;
+		private final int from;
+		private final int to;
+
+		Expand(final long[] parents, final int from, final int to)
+		{
+			this.parents = parents;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute()
+		{
+			if(to - from > CHUNK)
+			{
+				final int middle = (from + to) >>> 1;
+				final Expand left = new Expand(parents, from, middle);
+				left.fork();
+				final long[] right = new Expand(parents, middle, to).compute();
+				return unique(left.join(), right);
+			}
+			final long[] children = new long[(to - from) * width];
+			int count = 0;
+			for(int i = from; i < to; i++)
+			{
+				final long code = parents[i];
+				final long mask = mask(code);
+				for(int x = 0; x < width; x++)
+					if(canPlay(mask, x))
+					{
+						final long child = play(code, mask, x);
+						if(child != 0L)
+							children[count++] = child;
+					}
+			}
+			final long[] sorted = Arrays.copyOf(children, count);
+			Arrays.sort(sorted);
+			return unique(sorted, new long[0]);
+		}
+	}
+
+	/// Merges two sorted arrays, dropping duplicates.
+	private static long[] unique(final long[] a, final long[] b)
+	{
+		final long[] merged = new long[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		int count = 0;
+		while(i < a.length || j < b.length)
+		{
+			final long next = j >= b.length || i < a.length && a[i] <= b[j] ? a[i++] : b[j++];
+			if(count == 0 || merged[count - 1] != next)
+				merged[count++] = next;
+		}
+		return count == merged.length ? merged : Arrays.copyOf(merged, count);
+	}
+
+	/// Solves a range of positions of one ply from the values of the next.
+	private final class Solve extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int ply;
+		private final int from;
+		private final int to;
+
+		Solve(final int ply, final int from, final int to)
+		{
+			this.ply = ply;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from > CHUNK)
+			{
+				final int middle = (from + to) >>> 1;
+				invokeAll(new Solve(ply, from, middle), new Solve(ply, middle, to));
+				return;
+			}
+			for(int i = from; i < to; i++)
+			{
+				final long code = codes[ply][i];
+				final long mask = mask(code);
+				// Best value so far: quickest win, else a draw, else slowest loss
+				int best = Integer.MIN_VALUE;
+				for(int x = 0; x < width; x++)
+				{
+					if(!canPlay(mask, x))
+						continue;
+					final long child = play(code, mask, x);
+					final int value;
+					if(child == 0L)
+						value = 1;
+					else
+					{
+						final int index = Arrays.binarySearch(codes[ply + 1], child);
+						final int childValue = values[ply + 1][index];
+						value = childValue == 0 ? 0 : childValue > 0 ? -(childValue + 1) : -childValue + 1;
+					}
+					if(best == Integer.MIN_VALUE || better(value, best))
+						best = value;
+				}
+				// A full board is a draw
+				values[ply][i] = (byte) (best == Integer.MIN_VALUE ? 0 : best);
+			}
+		}
+	}
+
+	/// Returns whether value a is better than value b for the player to move.
+	private static boolean better(final int a, final int b)
+	{
+		if(a > 0 && b > 0)
+			return a < b;
+		if(a < 0 && b < 0)
+			return a < b;
+		return a > b;
+	}
+
+	/// Lists and solves every position.
+	/**
+	 * @param log Where to print progress, or null.
+	 */
+	public void solve(final PrintStream log)
+	{
+		codes[0] = new long[] {bottom};
+		for(int ply = 0; ply < codes.length - 1; ply++)
+		{
+			codes[ply + 1] = pool.invoke(new Expand(codes[ply], 0, codes[ply].length));
+			if(log != null)
+				log.printf("Ply %d: %d positions%n", ply + 1, codes[ply + 1].length);
+		}
+		for(int ply = codes.length - 1; ply >= 0; ply--)
+		{
+			values[ply] = new byte[codes[ply].length];
+			if(ply < codes.length - 1)
+				pool.invoke(new Solve(ply, 0, codes[ply].length));
+		}
+		pool.shutdown();
+	}
+
+	/// Returns the value of the empty board, as in EndgameTable.
+	public int getValue()
+	{
+		return values[0][0];
+	}
+
+	/// Returns the number of positions solved.
+	public long size()
+	{
+		long size = 0;
+		for(final long[] ply : codes)
+			size += ply.length;
+		return size;
+	}
+
+	/// Writes the solved positions as an EndgameTable.
+	/**
+	 * @param output The file to write.
+	 * @return The size of the file in bytes.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public long write(final File output) throws IOException
+	{
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+											   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final ByteBuffer header = ByteBuffer.allocate(EndgameTable.MAGIC.length + 4 + 4 * codes.length);
+			header.put(EndgameTable.MAGIC).put((byte) EndgameTable.VERSION).put((byte) width).put((byte) height)
+				.put((byte) winLength);
+			for(final long[] ply : codes)
+				header.putInt(ply.length);
+			write(out, header);
+
+			final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			for(int ply = 0; ply < codes.length; ply++)
+			{
+				for(final long code : codes[ply])
+				{
+					if(buffer.remaining() < 8)
+						write(out, buffer);
+					buffer.putLong(code);
+				}
+				for(final byte value : values[ply])
+				{
+					if(!buffer.hasRemaining())
+						write(out, buffer);
+					buffer.put(value);
+				}
+			}
+			write(out, buffer);
+			return out.size();
+		}
+	}
+
+	/// Writes out and empties a buffer that has just been filled.
+	private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-w [int]\" : Set the width of the game board (default: 4)");
+		System.out.println("      Example: -w 5");
+		System.out.println("    \"-h [int]\" : Set the height of the game board (default: 4)");
+		System.out.println("      Example: -h 4");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win (default: 4)");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-o [file]\" : Where to write the table (default: endgame.c4e)");
+		System.out.println("      Example: -o endgame.c4e");
+		System.out.println("    \"-threads [int]\" : Number of threads (default: all cores)");
+		System.out.println("      Example: -threads 4");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		int width = 4;
+		int height = 4;
+		int winLength = 4;
+		String output = EndgameTable.DEFAULT_FILE;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-w"))
+					width = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-h"))
+					height = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-k"))
+					winLength = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(width < 4 || height < 4)
+				throw new IllegalArgumentException("Widths and heights must be at least four.");
+			if(winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Invalid win length.");
+			if(!ThreatAnalyzer.fits(width, height))
+				throw new IllegalArgumentException("Board too large to encode.");
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final long start = System.nanoTime();
+			final RetrogradeSolver solver = new RetrogradeSolver(width, height, winLength, threads);
+			solver.solve(System.out);
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			final long bytes = solver.write(new File(output));
+			final int value = solver.getValue();
+			System.out.printf("%dx%d, %d in a row: %s%n", width, height, winLength,
+							  value == 0 ? "draw" : (value > 0 ? "first player wins in " : "second player wins in ")
+							  + Math.abs(value) + " plies");
+			System.out.printf("Solved %d positions in %.1f s; wrote %d bytes to %s%n", solver.size(), seconds,
+							  bytes, output);
+		}
+		catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
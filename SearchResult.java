@@ -0,0 +1,88 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// Snapshot of an AI's best line so far, published while it searches.
+/**
+ * Immutable, so an AI can publish a new one whenever its best line changes and anyone
+ * holding a reference (the GameController, an IO module showing live analysis) can
+ * read it from another thread without locking.
+ *
+ * Scores are from the point of view of the player to move and only comparable
+ * between results of the same AI.  A proven result is one the AI has shown to be a
+ * forced win or loss, which no deeper search will change; an AI may stop as soon as
+ * it publishes one.
+ *
+ * @see AIModule#publish
+ */
+public final class SearchResult
+{
+	private final int move;
+	private final int score;
+	private final int depth;
+	private final int[] pv;
+	/// 1 for a proven win, -1 for a proven loss, 0 if not proven.
+	private final int proven;
+
+	/// Primary Constructor.
+	/**
+	 * @param move The column the AI would play now.
+	 * @param score The AI's evaluation of the move.
+	 * @param depth The number of moves the AI looked ahead.
+	 * @param pv The principal variation, starting with move.  Copied.
+	 * @param proven 1 if the move is a proven win, -1 if every move is a proven loss, 0 otherwise.
+	 */
+	public SearchResult(final int move, final int score, final int depth, final int[] pv, final int proven)
+	{
+		this.move = move;
+		this.score = score;
+		this.depth = depth;
+		this.pv = pv.clone();
+		this.proven = Integer.signum(proven);
+	}
+
+	/// Returns the column the AI would play now.
+	public int getMove()
+	{
+		return move;
+	}
+
+	/// Returns the AI's evaluation of the move.
+	public int getScore()
+	{
+		return score;
+	}
+
+	/// Returns the number of moves the AI looked ahead.
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/// Returns a copy of the principal variation, starting with the move.
+	public int[] getPV()
+	{
+		return pv.clone();
+	}
+
+	/// Returns 1 for a proven win, -1 for a proven loss and 0 if the result is not proven.
+	public int getProven()
+	{
+		return proven;
+	}
+
+	/// Returns whether the result is a proven win or loss.
+	public boolean isProven()
+	{
+		return proven != 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder line = new StringBuilder();
+		for(final int column : pv)
+			line.append(' ').append(column);
+		return "depth " + depth + " score " + score + (proven > 0 ? " (win)" : proven < 0 ? " (loss)" : "")
+			+ " pv" + line;
+	}
+}
@@ -0,0 +1,504 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/// Entry point for generating labelled positions from self-play.
+/**
+ * Plays games between AIs (or an AI and itself) on all cores and records every
+ * position an AI searched, along with the score it gave and the result the game
+ * ended with, as training data for evaluators.  Each game starts with a few random
+ * moves so the games differ from one another.  Every worker keeps its own instances
+ * of the AIs, so AIs that keep caches between moves stay warm.
+ *
+ * Output file layout, all numbers big-endian: the magic bytes "C4SP", a version byte,
+ * then width, height and win length bytes.  Then one 19 byte record per position:
+ * - The coins of player 1 as a long, bit x * height + y being set if there is a coin
+ *   in column x, row y (from the bottom).
+ * - The coins of player 2 the same way.
+ * - The searching AI's score as a short, from the point of view of the player to
+ *   move, or NO_SCORE if it did not publish a SearchResult.
+ * - A byte holding the player to move in its low four bits and the winner of the
+ *   game (1 or 2, or 0 on a draw) in its high four bits.
+ *
+ * Boards with more than 64 cells are not supported.  Workers fill fixed size buffers
+ * that a single writer thread drains, so memory use does not grow with the number
+ * of games.  Run with --help for the command line options.
+ *
+ * @see Tournament
+ * @see Tuner
+ */
+public class SelfPlay
+{
+	/// First bytes of every output file.
+	static final byte[] MAGIC = {'C', '4', 'S', 'P'};
+	/// Version of the format written.
+	static final int VERSION = 1;
+	/// Bytes per position.
+	static final int RECORD_SIZE = 19;
+	/// Score recorded for positions the AI gave no score for.
+	public static final short NO_SCORE = Short.MIN_VALUE;
+	/// Size of the buffers the workers fill.
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/// Plays single games of one kind, for SelfPlay's workers or a SelfPlayWorker's connections.
+	/**
+	 * Holds only the settings of the games and a timer shared with its owner, so
+	 * one can be made for every connection without the buffers SelfPlay fills.
+	 */
+	static final class GamePlayer
+	{
+		private final String[] engines;
+		/// Time budget per move in nanoseconds.
+		private final long budget;
+		private final int width;
+		private final int height;
+		private final int winLength;
+		/// Number of random moves at the start of every game.
+		private final int randomMoves;
+		/// Sets the AIs' terminate flags when their budgets run out.
+		private final TimerWheel timer;
+
+		/// Primary Constructor.
+		/**
+		 * @param engines Names of the AIModule classes to play.
+		 * @param budgetMillis Time budget per move in milliseconds.
+		 * @param width The width of the board.
+		 * @param height The height of the board.
+		 * @param winLength The number of coins in a row needed to win.
+		 * @param randomMoves Number of random moves at the start of every game.
+		 * @param timer Timer to stop the AIs with, which the caller stops once done.
+		 */
+		GamePlayer(final String[] engines, final int budgetMillis, final int width, final int height,
+				   final int winLength, final int randomMoves, final TimerWheel timer)
+		{
+			if(width * height > 64)
+				throw new IllegalArgumentException("Boards of more than 64 cells are not supported");
+			this.engines = engines.clone();
+			this.budget = budgetMillis * 1000000L;
+			this.width = width;
+			this.height = height;
+			this.winLength = winLength;
+			this.randomMoves = randomMoves;
+			this.timer = timer;
+		}
+
+		/// Returns the number of engines games are played between.
+		int getEngineCount()
+		{
+			return engines.length;
+		}
+
+		/// Plays one game on the calling thread and records its positions.
+		/**
+		 * @param random Source of the pairing and the random opening.
+		 * @param instances The caller's instances of the AIs, indexed by side and then
+		 *        by engine, created as they are needed.
+		 * @param records Where to put the records, which must have room for width *
+		 *        height of them.
+		 * @return The number of positions recorded.
+		 * @throws Exception If an AI cannot be created or fails.
+		 */
+		int playGame(final Random random, final AIModule[][] instances, final ByteBuffer records) throws Exception
+		{
+			final AIModule[] players = new AIModule[2];
+			for(int side = 0; side < 2; side++)
+			{
+				final int e = random.nextInt(engines.length);
+				if(instances[side][e] == null)
+					instances[side][e] = (AIModule) Class.forName(engines[e]).getDeclaredConstructor().newInstance();
+				players[side] = instances[side][e];
+			}
+
+			// Random opening
+			final GameStateModule game = Main.createGame(width, height, winLength);
+			for(final AIModule player : players)
+				if(player instanceof GameListener)
+					((GameListener) player).onGameStart(game.copy());
+			int opened = 0;
+			while(opened < randomMoves && !game.isGameOver())
+			{
+				int column;
+				do
+					column = random.nextInt(width);
+				while(!game.canMakeMove(column));
+				final int mover = game.getActivePlayer();
+				game.makeMove(column);
+				opened++;
+				for(final AIModule player : players)
+					if(player instanceof GameListener)
+						((GameListener) player).onMovePlayed(column, mover);
+			}
+
+			// Play it out, recording every searched position; the winner is filled in at the end
+			final int start = records.position();
+			int count = 0;
+			while(!game.isGameOver())
+			{
+				final int mover = game.getActivePlayer();
+				final AIModule ai = players[mover - 1];
+				long mine = 0L;
+				long theirs = 0L;
+				for(int x = 0; x < width; x++)
+					for(int y = 0; y < game.getHeightAt(x); y++)
+						if(game.getAt(x, y) == 1)
+							mine |= 1L << (x * height + y);
+						else
+							theirs |= 1L << (x * height + y);
+
+				ai.terminate = false;
+				ai.chosenMove = -1;
+				ai.startClock(budget, budget, 0);
+				final TimerWheel.Timeout stop = timer.schedule(budget, new Runnable()
+				{
+					public void run()
+					{
+						ai.terminate = true;
+					}
+				});
+				try
+				{
+					ai.getNextMove(game.copy());
+				}
+				finally
+				{
+					stop.cancel();
+					ai.terminate = true;
+				}
+
+				final SearchResult result = ai.getResult();
+				final short score = result == null ? NO_SCORE
+					: (short) Math.max(NO_SCORE + 1, Math.min(Short.MAX_VALUE, result.getScore()));
+				records.putLong(mine).putLong(theirs).putShort(score).put((byte) mover);
+				count++;
+				int column = ai.chosenMove;
+				for(int j = 0; j < width && !game.canMakeMove(column); j++)
+					column = j;
+				game.makeMove(column);
+				for(final AIModule player : players)
+					if(player instanceof GameListener)
+						((GameListener) player).onMovePlayed(column, mover);
+			}
+			final int winner = game.getWinner();
+			for(final AIModule player : players)
+				if(player instanceof GameListener)
+					((GameListener) player).onGameEnd(winner);
+
+			for(int i = 0; i < count; i++)
+			{
+				final int at = start + i * RECORD_SIZE + RECORD_SIZE - 1;
+				records.put(at, (byte) (winner << 4 | records.get(at)));
+			}
+			return count;
+		}
+	}
+
+	private final GamePlayer player;
+	/// Sets the AIs' terminate flags when their budgets run out.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+	/// Empty buffers for the workers to fill.
+	private final BlockingQueue<ByteBuffer> free;
+	/// Full buffers for the writer, or an empty buffer once the workers are done.
+	private final BlockingQueue<ByteBuffer> full;
+	/// Games left to start.
+	private final AtomicLong gamesLeft;
+	private final AtomicLong positions = new AtomicLong();
+	private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+	/// Primary Constructor.
+	/**
+	 * @param engines Names of the AIModule classes to play; each game is between two
+	 *        of them picked at random, possibly the same one twice.
+	 * @param budgetMillis Time budget per move in milliseconds.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param randomMoves Number of random moves at the start of every game.
+	 * @param games Number of games to play.
+	 * @param threads Number of games played at once.
+	 */
+	public SelfPlay(final String[] engines, final int budgetMillis, final int width, final int height,
+					final int winLength, final int randomMoves, final long games, final int threads)
+	{
+		player = new GamePlayer(engines, budgetMillis, width, height, winLength, randomMoves, timer);
+		this.gamesLeft = new AtomicLong(games);
+		free = new ArrayBlockingQueue<ByteBuffer>(2 * threads);
+		full = new ArrayBlockingQueue<ByteBuffer>(2 * threads + 1);
+		for(int i = 0; i < 2 * threads; i++)
+			free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+	}
+
+	/// Returns the number of positions recorded so far.
+	public long getPositions()
+	{
+		return positions.get();
+	}
+
+	/// Plays all the games and writes their positions.
+	/**
+	 * @param output The file to write, replacing any existing file.
+	 * @param threads Number of games played at once.
+	 * @param seed Seed for the random openings and pairings.
+	 * @throws Exception If a game or the output fails.
+	 */
+	public void run(final File output, final int threads, final long seed) throws Exception
+	{
+		final Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			final Random random = new Random(seed + t);
+			workers[t] = new Thread("SelfPlay-" + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						work(random);
+					}
+					catch(Throwable e)
+					{
+						error.compareAndSet(null, e);
+						gamesLeft.set(0);
+					}
+				}
+			};
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+
+		final Thread closer = new Thread("SelfPlay-Closer")
+		{
+			@Override
+			public void run()
+			{
+				for(final Thread worker : workers)
+				{
+					try
+					{
+						worker.join();
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				// Tell the writer the workers are done
+				full.add(ByteBuffer.allocate(0));
+			}
+		};
+		closer.setDaemon(true);
+		closer.start();
+
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+											   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+			header.put(MAGIC).put((byte) VERSION).put((byte) player.width).put((byte) player.height)
+				.put((byte) player.winLength);
+			header.flip();
+			while(header.hasRemaining())
+				out.write(header);
+
+			ByteBuffer buffer;
+			while((buffer = full.take()).capacity() > 0)
+			{
+				buffer.flip();
+				while(buffer.hasRemaining())
+					out.write(buffer);
+				buffer.clear();
+				free.add(buffer);
+			}
+		}
+		finally
+		{
+			timer.stop();
+		}
+		if(error.get() != null)
+			throw new RuntimeException("Self-play failed", error.get());
+	}
+
+	/// Plays games on a worker thread until none are left.
+	private void work(final Random random) throws Exception
+	{
+		// This worker's instances of each AI, one set per side
+		final AIModule[][] instances = new AIModule[2][player.getEngineCount()];
+		ByteBuffer buffer = free.take();
+
+		while(gamesLeft.getAndDecrement() > 0)
+		{
+			if(buffer.remaining() < player.width * player.height * RECORD_SIZE)
+			{
+				full.put(buffer);
+				buffer = free.take();
+			}
+			positions.addAndGet(player.playGame(random, instances, buffer));
+		}
+		full.put(buffer);
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-ai [AI Class Names]\" : Comma separated list of the AIs to play; each game pairs two at random");
+		System.out.println("      Example: -ai DeepConnect,MonteCarloAI");
+		System.out.println("    \"-games [int]\" : Number of games to play");
+		System.out.println("      Example: -games 100000");
+		System.out.println("    \"-t [Time in ms]\" : Time budget per move");
+		System.out.println("      Example: -t 10");
+		System.out.println("    \"-random [int]\" : Number of random moves at the start of every game (default: 4)");
+		System.out.println("      Example: -random 6");
+		System.out.println("    \"-w [int]\" : Set the width of the game board");
+		System.out.println("      Example: -w 7");
+		System.out.println("    \"-h [int]\" : Set the height of the game board");
+		System.out.println("      Example: -h 6");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-o [file]\" : Where to write the positions (default: positions.c4p)");
+		System.out.println("      Example: -o positions.c4p");
+		System.out.println("    \"-threads [int]\" : Number of games played at once (default: all cores)");
+		System.out.println("      Example: -threads 4");
+		System.out.println("    \"-seed [int]\" : Seed for the random openings and pairings");
+		System.out.println("      Example: -seed 1");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String[] engines = null;
+		long games = 1000;
+		int time = 10;
+		int randomMoves = 4;
+		int width = 7;
+		int height = 6;
+		int winLength = 4;
+		String output = "positions.c4p";
+		int threads = Runtime.getRuntime().availableProcessors();
+		long seed = System.currentTimeMillis();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-ai"))
+				{
+					engines = args[i + 1].split(",");
+					for(final String name : engines)
+						Class.forName(name);
+				}
+				else if(args[i].equalsIgnoreCase("-games"))
+				{
+					games = Long.parseLong(args[i + 1]);
+					if(games <= 0)
+						throw new IllegalArgumentException("Game count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-t"))
+				{
+					time = Integer.parseInt(args[i + 1]);
+					if(time <= 0)
+						throw new IllegalArgumentException("AI think time must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-random"))
+				{
+					randomMoves = Integer.parseInt(args[i + 1]);
+					if(randomMoves < 0)
+						throw new IllegalArgumentException("Random move count cannot be negative");
+				}
+				else if(args[i].equalsIgnoreCase("-w"))
+					width = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-h"))
+					height = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-k"))
+					winLength = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-seed"))
+					seed = Long.parseLong(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(engines == null)
+				throw new IllegalArgumentException("At least one AI is needed.");
+			if(width < 4 || height < 4)
+				throw new IllegalArgumentException("Widths and heights must be at least four.");
+			if(winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Invalid win length.");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final SelfPlay selfPlay = new SelfPlay(engines, time, width, height, winLength, randomMoves, games,
+												   threads);
+			final int cores = threads;
+			final long start = System.nanoTime();
+			// Report progress every ten seconds
+			final Timer progress = new Timer(true);
+			progress.scheduleAtFixedRate(new TimerTask()
+			{
+				public void run()
+				{
+					report(selfPlay.getPositions(), System.nanoTime() - start, cores);
+				}
+			}, 10000, 10000);
+			selfPlay.run(new File(output), threads, seed);
+			progress.cancel();
+			report(selfPlay.getPositions(), System.nanoTime() - start, cores);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/// Prints the number of positions written and the rate they were written at.
+	private static void report(final long positions, final long nanos, final int threads)
+	{
+		final double seconds = nanos / 1e9;
+		System.out.printf("%d positions in %.1f s, %.0f positions per second, %.0f per second per thread%n",
+						  positions, seconds, positions / seconds, positions / seconds / threads);
+	}
+}
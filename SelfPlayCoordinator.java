@@ -0,0 +1,512 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Entry point for spreading self-play over worker processes on any number of hosts.
+/**
+ * Splits the games into batches, each with a seed of its own, and hands them out to
+ * SelfPlayWorker connections as they ask for them, so that fast workers simply take
+ * more batches.  Workers stream each game's positions back as it ends, and the
+ * positions of a batch are written to the output, in the same format as SelfPlay,
+ * once the whole batch is in.  A batch whose worker disconnects or goes quiet for
+ * longer than the timeout goes back to the front of the queue.  Once the queue is
+ * empty, idle workers get a second copy of a batch still being played, so that one
+ * slow worker cannot hold up the end of the run; whichever copy finishes first is
+ * written and the other is dropped.
+ *
+ * The protocol is line based.  On connecting, a worker is sent "job [engines]
+ * [budget ms] [width] [height] [winLength] [random moves]".  It then repeatedly
+ * sends "next" and is answered with "batch [id] [games] [seed]", "wait" if every
+ * batch is taken, or "done".  While playing a batch it sends "records [id]
+ * [base64]" with the positions of each game and then "finished [id]", and "alive"
+ * now and then so that it is not taken for dead.  The coordinator listens on every
+ * interface and does no authentication, so only run it on a trusted network.
+ *
+ * Run with --help for the command line options.
+ *
+ * @see SelfPlay
+ * @see SelfPlayWorker
+ */
+public final class SelfPlayCoordinator
+{
+	/// A batch of games.
+	private static final class Batch
+	{
+		final int id;
+		final int games;
+		final long seed;
+		/// Connections playing the batch.  Guarded by the coordinator.
+		int running;
+		boolean done;
+
+		Batch(final int id, final int games, final long seed)
+		{
+			this.id = id;
+			this.games = games;
+			this.seed = seed;
+		}
+	}
+
+	private final String job;
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final ServerSocket server;
+	/// Milliseconds a worker may stay silent before its batch is given to another.
+	private final int timeout;
+	private final List<Batch> batches = new ArrayList<Batch>();
+	/// Batches nobody is playing.  Guarded by this.
+	private final ArrayDeque<Batch> waiting = new ArrayDeque<Batch>();
+	private int completed = 0;
+	private long games = 0;
+	private long positions = 0;
+	private final AtomicInteger workers = new AtomicInteger();
+	private FileChannel out;
+	/// Why writing the output failed, if it did.  Guarded by this.
+	private IOException failure;
+
+	/// Primary Constructor.
+	/**
+	 * Binds to the port on every interface.  Call run to start handing out games.
+	 *
+	 * @param engines Names of the AIModule classes to play, as for SelfPlay.
+	 * @param budgetMillis Time budget per move in milliseconds.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param randomMoves Number of random moves at the start of every game.
+	 * @param games Number of games to play.
+	 * @param batchSize Number of games per batch.
+	 * @param seed Seed of the first batch; batch i uses seed + i.
+	 * @param port Port to listen on, or 0 for any free port.
+	 * @param timeoutMillis How long a worker may stay silent before it is taken for dead.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public SelfPlayCoordinator(final String[] engines, final int budgetMillis, final int width, final int height,
+							   final int winLength, final int randomMoves, final long games, final int batchSize,
+							   final long seed, final int port, final int timeoutMillis) throws IOException
+	{
+		if(width * height > 64)
+			throw new IllegalArgumentException("Boards of more than 64 cells are not supported");
+		final StringBuilder names = new StringBuilder();
+		for(final String engine : engines)
+			names.append(names.length() == 0 ? "" : ",").append(engine);
+		job = "job " + names + " " + budgetMillis + " " + width + " " + height + " " + winLength + " " + randomMoves;
+		this.width = width;
+		this.height = height;
+		this.winLength = winLength;
+		this.timeout = timeoutMillis;
+		for(long first = 0; first < games; first += batchSize)
+		{
+			final Batch batch = new Batch(batches.size(), (int) Math.min(batchSize, games - first),
+										  seed + batches.size());
+			batches.add(batch);
+			waiting.add(batch);
+		}
+		server = new ServerSocket(port);
+	}
+
+	/// Returns the port the coordinator listens on.
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+
+	/// Returns the number of worker connections, one per game being played.
+	public int getWorkers()
+	{
+		return workers.get();
+	}
+
+	/// Returns the number of games written so far.
+	public synchronized long getGames()
+	{
+		return games;
+	}
+
+	/// Returns the number of positions written so far.
+	public synchronized long getPositions()
+	{
+		return positions;
+	}
+
+	/// Hands out every batch and writes the positions, returning once all are in.
+	/**
+	 * @param output The file to write, replacing any existing file.
+	 * @throws IOException If the output or the server socket fails.
+	 */
+	public void run(final File output) throws IOException
+	{
+		out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							   StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate(SelfPlay.MAGIC.length + 4);
+			header.put(SelfPlay.MAGIC).put((byte) SelfPlay.VERSION).put((byte) width).put((byte) height)
+				.put((byte) winLength);
+			header.flip();
+			while(header.hasRemaining())
+				out.write(header);
+
+			server.setSoTimeout(1000);
+			while(!isFinished())
+			{
+				final Socket socket;
+				try
+				{
+					socket = server.accept();
+				}
+				catch(SocketTimeoutException e)
+				{
+					continue;
+				}
+				final Thread connection = new Thread("SelfPlayCoordinator-" + socket.getRemoteSocketAddress())
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			}
+		}
+		finally
+		{
+			server.close();
+			synchronized(this)
+			{
+				out.close();
+			}
+		}
+		synchronized(this)
+		{
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	/// Returns whether every batch has been written, or writing failed.
+	private synchronized boolean isFinished()
+	{
+		return completed == batches.size() || failure != null;
+	}
+
+	/// Talks to one worker connection until it disconnects, on a thread of its own.
+	private void serve(final Socket socket)
+	{
+		workers.incrementAndGet();
+		Batch current = null;
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		try
+		{
+			socket.setSoTimeout(timeout);
+			socket.setTcpNoDelay(true);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+																			   StandardCharsets.US_ASCII));
+			final PrintWriter reply = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+																			 StandardCharsets.US_ASCII), true);
+			reply.println(job);
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				final String[] words = line.trim().split("\\s+");
+				if(words[0].equals("alive"))
+					continue;
+				else if(words[0].equals("next"))
+				{
+					if(current != null)
+						throw new IOException("Asked for a batch before finishing one");
+					current = assign();
+					if(current != null)
+						reply.println("batch " + current.id + " " + current.games + " " + current.seed);
+					else if(isFinished())
+					{
+						reply.println("done");
+						break;
+					}
+					else
+						reply.println("wait");
+				}
+				else if(words[0].equals("records") && words.length == 3)
+				{
+					if(current == null || Integer.parseInt(words[1]) != current.id)
+						throw new IOException("Records for a batch not handed out");
+					final byte[] bytes = Base64.getDecoder().decode(words[2]);
+					if(bytes.length % SelfPlay.RECORD_SIZE != 0)
+						throw new IOException("Partial record");
+					records.write(bytes);
+				}
+				else if(words[0].equals("finished") && words.length == 2)
+				{
+					if(current == null || Integer.parseInt(words[1]) != current.id)
+						throw new IOException("Finished a batch not handed out");
+					final Batch finished = current;
+					current = null;
+					complete(finished, records.toByteArray());
+					records.reset();
+				}
+				else
+					throw new IOException("Unknown message " + words[0]);
+			}
+		}
+		catch(IOException | IllegalArgumentException e)
+		{
+			// A timeout, a dropped connection or a garbled message: the batch goes back in the queue
+			System.err.println("Worker " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+		}
+		finally
+		{
+			if(current != null)
+			{
+				System.err.println("Worker " + socket.getRemoteSocketAddress() + " lost batch " + current.id);
+				release(current);
+			}
+			workers.decrementAndGet();
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				// Already gone
+			}
+		}
+	}
+
+	/// Picks the batch for a worker that asks for one, or returns null if there is none.
+	private synchronized Batch assign()
+	{
+		Batch batch = waiting.poll();
+		if(batch == null)
+		{
+			// Back up the oldest batch that only one worker is playing
+			for(final Batch running : batches)
+				if(!running.done && running.running == 1)
+				{
+					batch = running;
+					break;
+				}
+			if(batch == null)
+				return null;
+		}
+		batch.running++;
+		return batch;
+	}
+
+	/// Takes back a batch from a worker that was lost.
+	private synchronized void release(final Batch batch)
+	{
+		batch.running--;
+		if(!batch.done && batch.running == 0)
+			waiting.addFirst(batch);
+	}
+
+	/// Writes the positions of a batch, unless another copy of it got there first.
+	private synchronized void complete(final Batch batch, final byte[] records)
+	{
+		batch.running--;
+		if(batch.done || failure != null)
+			return;
+		try
+		{
+			final ByteBuffer buffer = ByteBuffer.wrap(records);
+			while(buffer.hasRemaining())
+				out.write(buffer);
+		}
+		catch(IOException e)
+		{
+			failure = e;
+			return;
+		}
+		batch.done = true;
+		completed++;
+		games += batch.games;
+		positions += records.length / SelfPlay.RECORD_SIZE;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-ai [AI Class Names]\" : Comma separated list of the AIs to play; each game pairs two at random");
+		System.out.println("      Example: -ai DeepConnect,MonteCarloAI");
+		System.out.println("    \"-games [int]\" : Number of games to play");
+		System.out.println("      Example: -games 100000");
+		System.out.println("    \"-batch [int]\" : Number of games handed to a worker at a time (default: 16)");
+		System.out.println("      Example: -batch 64");
+		System.out.println("    \"-t [Time in ms]\" : Time budget per move");
+		System.out.println("      Example: -t 10");
+		System.out.println("    \"-random [int]\" : Number of random moves at the start of every game (default: 4)");
+		System.out.println("      Example: -random 6");
+		System.out.println("    \"-w [int]\" : Set the width of the game board");
+		System.out.println("      Example: -w 7");
+		System.out.println("    \"-h [int]\" : Set the height of the game board");
+		System.out.println("      Example: -h 6");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-o [file]\" : Where to write the positions (default: positions.c4p)");
+		System.out.println("      Example: -o positions.c4p");
+		System.out.println("    \"-port [int]\" : Port to listen on, on every interface (default: 4041)");
+		System.out.println("      Example: -port 4041");
+		System.out.println("    \"-timeout [Time in ms]\" : Silence after which a worker is taken for dead (default: 60000)");
+		System.out.println("      Example: -timeout 30000");
+		System.out.println("    \"-seed [int]\" : Seed for the random openings and pairings");
+		System.out.println("      Example: -seed 1");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String[] engines = null;
+		long games = 1000;
+		int batchSize = 16;
+		int time = 10;
+		int randomMoves = 4;
+		int width = 7;
+		int height = 6;
+		int winLength = 4;
+		String output = "positions.c4p";
+		int port = 4041;
+		int timeout = 60000;
+		long seed = System.currentTimeMillis();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-ai"))
+				{
+					engines = args[i + 1].split(",");
+					for(final String name : engines)
+						Class.forName(name);
+				}
+				else if(args[i].equalsIgnoreCase("-games"))
+				{
+					games = Long.parseLong(args[i + 1]);
+					if(games <= 0)
+						throw new IllegalArgumentException("Game count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-batch"))
+				{
+					batchSize = Integer.parseInt(args[i + 1]);
+					if(batchSize <= 0)
+						throw new IllegalArgumentException("Batch size must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-t"))
+				{
+					time = Integer.parseInt(args[i + 1]);
+					if(time <= 0)
+						throw new IllegalArgumentException("AI think time must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-random"))
+				{
+					randomMoves = Integer.parseInt(args[i + 1]);
+					if(randomMoves < 0)
+						throw new IllegalArgumentException("Random move count cannot be negative");
+				}
+				else if(args[i].equalsIgnoreCase("-w"))
+					width = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-h"))
+					height = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-k"))
+					winLength = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-port"))
+					port = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-timeout"))
+				{
+					timeout = Integer.parseInt(args[i + 1]);
+					if(timeout <= SelfPlayWorker.KEEPALIVE)
+						throw new IllegalArgumentException("Timeout must be longer than the workers' "
+														   + SelfPlayWorker.KEEPALIVE + " ms keepalive");
+				}
+				else if(args[i].equalsIgnoreCase("-seed"))
+					seed = Long.parseLong(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(engines == null)
+				throw new IllegalArgumentException("At least one AI is needed.");
+			if(width < 4 || height < 4)
+				throw new IllegalArgumentException("Widths and heights must be at least four.");
+			if(winLength < 2 || winLength > Math.max(width, height))
+				throw new IllegalArgumentException("Invalid win length.");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			final SelfPlayCoordinator coordinator = new SelfPlayCoordinator(engines, time, width, height, winLength,
+																			randomMoves, games, batchSize, seed,
+																			port, timeout);
+			System.out.println("Waiting for workers on port " + coordinator.getPort());
+			final long start = System.nanoTime();
+			// Report progress every ten seconds
+			final Timer progress = new Timer(true);
+			progress.scheduleAtFixedRate(new TimerTask()
+			{
+				public void run()
+				{
+					report(coordinator, System.nanoTime() - start);
+				}
+			}, 10000, 10000);
+			coordinator.run(new File(output));
+			progress.cancel();
+			report(coordinator, System.nanoTime() - start);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/// Prints the number of games and positions written and the rate they were written at.
+	private static void report(final SelfPlayCoordinator coordinator, final long nanos)
+	{
+		final double seconds = nanos / 1e9;
+		final long positions = coordinator.getPositions();
+		System.out.printf("%d games, %d positions in %.1f s, %.0f positions per second, %d connections%n",
+						  coordinator.getGames(), positions, seconds, positions / seconds, coordinator.getWorkers());
+	}
+}
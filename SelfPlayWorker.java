@@ -0,0 +1,247 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/// Entry point for playing self-play games handed out by a SelfPlayCoordinator.
+/**
+ * Opens one connection to the coordinator per thread, and on each of them plays the
+ * batches it is given and streams the positions of every game back as the game
+ * ends.  Each thread keeps its own instances of the AIs for the whole run, so AIs
+ * that keep caches between moves stay warm.  Start as many workers, on as many
+ * hosts, as there are cores to spare; they may come and go while the coordinator
+ * runs.  The worker exits once the coordinator has no more batches or goes away.
+ *
+ * Run with --help for the command line options.
+ *
+ * @see SelfPlayCoordinator
+ */
+public final class SelfPlayWorker
+{
+	/// Milliseconds between the messages that tell the coordinator a connection is alive.
+	static final int KEEPALIVE = 10000;
+	/// Milliseconds to wait before asking again when every batch is taken.
+	private static final int RETRY = 1000;
+
+	private final String host;
+	private final int port;
+	/// Sends the keepalive messages of every connection.
+	private final Timer keepalive = new Timer("SelfPlayWorker-Keepalive", true);
+	/// Sets the AIs' terminate flags when their budgets run out, for every connection.
+	private final TimerWheel timer = new TimerWheel(1, 10);
+
+	/// Primary Constructor.
+	/**
+	 * @param host The host the coordinator runs on.
+	 * @param port The port the coordinator listens on.
+	 */
+	public SelfPlayWorker(final String host, final int port)
+	{
+		this.host = host;
+		this.port = port;
+	}
+
+	/// Plays batches on several connections until the coordinator is done.
+	/**
+	 * @param threads Number of connections, each playing one game at a time.
+	 * @param log Where to print progress, or null.
+	 * @throws Exception If a connection cannot be opened or an AI fails.
+	 */
+	public void run(final int threads, final PrintStream log) throws Exception
+	{
+		final Thread[] connections = new Thread[threads];
+		final Exception[] errors = new Exception[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			final int index = t;
+			connections[t] = new Thread("SelfPlayWorker-" + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						play(log);
+					}
+					catch(Exception e)
+					{
+						errors[index] = e;
+					}
+				}
+			};
+			connections[t].start();
+		}
+		for(final Thread connection : connections)
+			connection.join();
+		keepalive.cancel();
+		timer.stop();
+		for(final Exception error : errors)
+			if(error != null)
+				throw error;
+	}
+
+	/// Plays batches on one connection until the coordinator is done.
+	private void play(final PrintStream log) throws Exception
+	{
+		try(Socket socket = new Socket(host, port))
+		{
+			socket.setTcpNoDelay(true);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+																			   StandardCharsets.US_ASCII));
+			// println is atomic, so the keepalive timer can share the writer
+			final PrintWriter send = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+																			StandardCharsets.US_ASCII), true);
+			final String[] job = expect(in.readLine(), "job", 7);
+			final SelfPlay.GamePlayer player = new SelfPlay.GamePlayer(
+				job[1].split(","), Integer.parseInt(job[2]), Integer.parseInt(job[3]), Integer.parseInt(job[4]),
+				Integer.parseInt(job[5]), Integer.parseInt(job[6]), timer);
+			final TimerTask alive = new TimerTask()
+			{
+				public void run()
+				{
+					send.println("alive");
+				}
+			};
+			keepalive.schedule(alive, KEEPALIVE, KEEPALIVE);
+			try
+			{
+				final AIModule[][] instances = new AIModule[2][player.getEngineCount()];
+				final ByteBuffer records = ByteBuffer.allocate(Integer.parseInt(job[3]) * Integer.parseInt(job[4])
+															   * SelfPlay.RECORD_SIZE);
+				while(true)
+				{
+					send.println("next");
+					final String line = in.readLine();
+					// The coordinator exits as soon as the last batch is in
+					if(line == null || line.equals("done"))
+						break;
+					if(line.equals("wait"))
+					{
+						Thread.sleep(RETRY);
+						continue;
+					}
+					final String[] batch = expect(line, "batch", 4);
+					final Random random = new Random(Long.parseLong(batch[3]));
+					final int games = Integer.parseInt(batch[2]);
+					for(int g = 0; g < games; g++)
+					{
+						records.clear();
+						player.playGame(random, instances, records);
+						send.println("records " + batch[1] + " "
+									 + Base64.getEncoder().encodeToString(Arrays.copyOf(records.array(),
+																						records.position())));
+					}
+					send.println("finished " + batch[1]);
+					if(send.checkError())
+						break;
+					if(log != null)
+						log.println("Finished batch " + batch[1]);
+				}
+			}
+			catch(IOException e)
+			{
+				// The coordinator went away, or finished while we were backing up one of its batches
+				if(log != null)
+					log.println("Lost the coordinator: " + e.getMessage());
+			}
+			finally
+			{
+				alive.cancel();
+			}
+		}
+	}
+
+	/// Splits a message from the coordinator, checking its kind and length.
+	private static String[] expect(final String line, final String kind, final int words) throws IOException
+	{
+		if(line == null)
+			throw new IOException("Lost the coordinator");
+		final String[] split = line.trim().split("\\s+");
+		if(!split[0].equals(kind) || split.length != words)
+			throw new IOException("Expected " + kind + ", got " + line);
+		return split;
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-host [name]\" : The host the coordinator runs on (default: localhost)");
+		System.out.println("      Example: -host tuning-01");
+		System.out.println("    \"-port [int]\" : The port the coordinator listens on (default: 4041)");
+		System.out.println("      Example: -port 4041");
+		System.out.println("    \"-threads [int]\" : Number of games played at once (default: all cores)");
+		System.out.println("      Example: -threads 4");
+		System.out.println("    \"-quiet\" : Don't print each finished batch");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String host = "localhost";
+		int port = 4041;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean quiet = false;
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-host"))
+					host = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-port"))
+					port = Integer.parseInt(args[i + 1]);
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-quiet"))
+				{
+					quiet = true;
+					i--; // Compensate for i += 2
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			new SelfPlayWorker(host, port).run(threads, quiet ? null : System.out);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
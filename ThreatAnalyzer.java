@@ -0,0 +1,247 @@
+// (c) Scott Madera, Cameron Lee
+
+
+/// Finds both players' threats on a bitboard and splits them by row parity.
+/**
+ * A threat is an empty tile that would give a player four (or, in Connect-K, K) in a
+ * row if that player's coin were on it.  In Connect Four, who owns threats on odd rows and who owns
+ * threats on even rows (counting the bottom row as row 1) usually decides the game
+ * long before the board fills: the first player wants odd threats, the second player
+ * wants even threats, and whoever is forced to play underneath the other's threat loses.
+ *
+ * Boards use the same layout as GameState_Opt7x6: each column takes height + 1
+ * bits, the last of which is always empty.  Any board with width * (height + 1) of at
+ * most 64 is supported.  The analyzer keeps the result of the last call to analyze in
+ * its fields, so it allocates nothing per position and is cheap enough to run at
+ * every interior node of a search.  An analyzer must not be shared between threads.
+ *
+ * @see GameState_Opt7x6
+ */
+public final class ThreatAnalyzer
+{
+	private final int WIDTH;
+	private final int HEIGHT;
+	/// Number of coins in a row needed to win.
+	private final int LENGTH;
+	/// Amount to shift the bitboard to move over one column.
+	private final int H1;
+	/// Distance between neighbouring tiles of a line: vertical, diagonal \, horizontal and diagonal /.
+	private final int[] DIRECTIONS;
+	/// Every tile on the board.
+	private final long BOARD;
+	/// Tiles on odd rows (1, 3, 5, ... counting from the bottom).
+	private final long ODD_ROWS;
+	/// Tiles on even rows (2, 4, 6, ... counting from the bottom).
+	private final long EVEN_ROWS;
+	/// The tiles of the leftmost column.
+	private final long COLUMN;
+
+	/// Threat tiles of each player from the last analysis.
+	private final long[] threats = new long[2];
+	/// Threat tiles of each player that are not above an opponent threat in the same column.
+	private final long[] useful = new long[2];
+	/// The player that controls zugzwang in the last analyzed position, or 0.
+	private int zugzwang;
+
+	/// Primary Constructor.
+	/**
+	 * @param width The width of the boards to analyze.
+	 * @param height The height of the boards to analyze.
+	 * @throws RuntimeException If the board does not fit in a 64 bit bitboard.
+	 */
+	public ThreatAnalyzer(final int width, final int height)
+	{
+		this(width, height, 4);
+	}
+
+	/// Constructor for Connect-K.
+	/**
+	 * @param width The width of the boards to analyze.
+	 * @param height The height of the boards to analyze.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @throws RuntimeException If the board does not fit in a 64 bit bitboard.
+	 */
+	public ThreatAnalyzer(final int width, final int height, final int winLength)
+	{
+		if(width * (height + 1) > 64)
+			throw new RuntimeException("Board too large for a bitboard: " + width + "x" + height);
+		WIDTH = width;
+		HEIGHT = height;
+		LENGTH = winLength;
+		H1 = height + 1;
+		DIRECTIONS = new int[] {1, H1 - 1, H1, H1 + 1};
+		COLUMN = (1L << HEIGHT) - 1;
+		long board = 0L;
+		long odd = 0L;
+		for(int x = 0; x < WIDTH; x++)
+		{
+			board |= COLUMN << (x * H1);
+			for(int y = 0; y < HEIGHT; y += 2)
+				odd |= 1L << (x * H1 + y);
+		}
+		BOARD = board;
+		ODD_ROWS = odd;
+		EVEN_ROWS = board & ~odd;
+	}
+
+	/// Returns whether a board of the given size can be analyzed.
+	public static boolean fits(final int width, final int height)
+	{
+		return width * (height + 1) <= 64;
+	}
+
+	/// Computes the tiles that would complete LENGTH in a row for the given coins.
+	/**
+	 * @param coins Bitboard of one player's coins.
+	 * @param empty Bitboard of the empty tiles.
+	 * @return The empty tiles that would win for that player.
+	 */
+	private long winningTiles(final long coins, final long empty)
+	{
+		long result = 0L;
+		for(final int shift : DIRECTIONS)
+			// The empty tile can sit at any place in the line; every other place needs a coin.
+			for(int place = 0; place < LENGTH; place++)
+			{
+				long tiles = empty;
+				for(int i = 0; i < LENGTH && tiles != 0; i++)
+					if(i != place)
+						tiles &= shift(coins, (i - place) * shift);
+				result |= tiles;
+			}
+		return result;
+	}
+
+	/// Moves the bit of each tile to the tile the given distance below it in bit order.
+	/**
+	 * @param board A bitboard.
+	 * @param distance How far away the tile to read is; may be negative.
+	 * @return A bitboard in which bit i is bit i + distance of board.
+	 */
+	private static long shift(final long board, final int distance)
+	{
+		if(distance >= 64 || distance <= -64)
+			return 0L;
+		return distance >= 0 ? board >>> distance : board << -distance;
+	}
+
+	/// Analyzes a position given as a pair of bitboards.
+	/**
+	 * @param first Bitboard of player 1's coins.
+	 * @param second Bitboard of player 2's coins.
+	 */
+	public void analyze(final long first, final long second)
+	{
+		final long empty = BOARD & ~(first | second);
+		threats[0] = winningTiles(first, empty);
+		threats[1] = winningTiles(second, empty);
+
+		// A threat only counts if the opponent has no threat lower down in its column,
+		// since the opponent's threat would be reached (and won or blocked) first.
+		useful[0] = useful[1] = 0L;
+		for(int x = 0; x < WIDTH; x++)
+		{
+			final long column = COLUMN << (x * H1);
+			final long lowFirst = Long.lowestOneBit(threats[0] & column);
+			final long lowSecond = Long.lowestOneBit(threats[1] & column);
+			useful[0] |= threats[0] & column & (lowSecond == 0 ? -1L : (lowSecond << 1) - 1);
+			useful[1] |= threats[1] & column & (lowFirst == 0 ? -1L : (lowFirst << 1) - 1);
+		}
+
+		// Static parity rules for boards of even height: the second player can always
+		// answer in the same column and so claims every even tile, unless the first player
+		// has an odd threat to aim for.
+		zugzwang = 0;
+		if((HEIGHT & 1) == 0)
+		{
+			final boolean firstOdd = (useful[0] & ODD_ROWS) != 0;
+			final boolean secondEven = (useful[1] & EVEN_ROWS) != 0;
+			if(firstOdd && !secondEven)
+				zugzwang = 1;
+			else if(!firstOdd && secondEven)
+				zugzwang = 2;
+		}
+	}
+
+	/// Analyzes the position in a game state.
+	/**
+	 * Reads the bitboards directly from a GameState_Opt7x6, also one wrapped in layers
+	 * such as EvaluatedGameState, and builds them from getAt for any other state.
+	 *
+	 * @param state The game to analyze.  Must be the size this analyzer was built for.
+	 */
+	public void analyze(final GameStateModule state)
+	{
+		GameStateModule game = state;
+		while(game instanceof GameStateLayer)
+			game = ((GameStateLayer) game).getGame();
+		if(game instanceof GameState_Opt7x6 && WIDTH == 7 && HEIGHT == 6)
+		{
+			final GameState_Opt7x6 opt = (GameState_Opt7x6) game;
+			analyze(opt.getBitboard(1), opt.getBitboard(2));
+			return;
+		}
+		long first = 0L;
+		long second = 0L;
+		for(int x = 0; x < WIDTH; x++)
+			for(int y = 0; y < game.getHeightAt(x); y++)
+			{
+				final long bit = 1L << (x * H1 + y);
+				if(game.getAt(x, y) == 1)
+					first |= bit;
+				else
+					second |= bit;
+			}
+		analyze(first, second);
+	}
+
+	/// Returns every threat tile of a player from the last analysis.
+	/**
+	 * @param player The 1-based index of the player.
+	 * @return A bitboard of the player's threats.
+	 */
+	public long getThreats(final int player)
+	{
+		return threats[player - 1];
+	}
+
+	/// Returns a player's threats on odd rows (1, 3, 5, ... from the bottom).
+	public long getOddThreats(final int player)
+	{
+		return threats[player - 1] & ODD_ROWS;
+	}
+
+	/// Returns a player's threats on even rows (2, 4, 6, ... from the bottom).
+	public long getEvenThreats(final int player)
+	{
+		return threats[player - 1] & EVEN_ROWS;
+	}
+
+	/// Returns a player's threats that are not above an opponent threat in the same column.
+	public long getUsefulThreats(final int player)
+	{
+		return useful[player - 1];
+	}
+
+	/// Returns which player controls zugzwang in the last analyzed position.
+	/**
+	 * Player 1 controls zugzwang if they have a useful odd threat and player 2 has no
+	 * useful even threat; player 2 controls it if they have a useful even threat and
+	 * player 1 has no useful odd threat.  On such a position the controlling player can
+	 * normally force a win by simply following up in the opponent's column, so a
+	 * search may score it statically instead of expanding it.  Boards of odd height are
+	 * never flagged.
+	 *
+	 * @return 1 or 2 for the controlling player, or 0 if neither player controls zugzwang.
+	 */
+	public int getZugzwang()
+	{
+		return zugzwang;
+	}
+
+	/// Returns the tile index of column x and row y in this analyzer's layout.
+	public int bit(final int x, final int y)
+	{
+		return x * H1 + y;
+	}
+}
@@ -0,0 +1,163 @@
+// (c) Scott Madera, Cameron Lee
+
+/// How much time the players get to think over a game.
+/**
+ * Either a fixed amount of time per move, as with Main's -t switch, or a clock per
+ * player.  A clock starts at base, loses the time each move takes and gains the
+ * increment after each move.  If movesToGo is set, base is added to the clock again
+ * every movesToGo moves.
+ *
+ * Written as text, "500" is 500ms per move, "60000+1000" is one minute for the game
+ * with a one second increment, and "40/60000+0" is one minute for every forty moves.
+ *
+ * @see GameController
+ */
+public final class TimeControl
+{
+	/// Time per move, or the starting time on the clock, in milliseconds.
+	private final long base;
+	/// Time added to the clock after each move, in milliseconds.
+	private final long increment;
+	/// Moves until base is added to the clock again, or 0 to never add it.
+	private final int movesToGo;
+	/// Whether the clock is reset to base before every move.
+	private final boolean perMove;
+	/// Time kept back on the clock for an AI to return once it has been told to stop, in nanoseconds.
+	private static final long OVERHEAD = 50 * 1000000L;
+
+	private TimeControl(final long base, final long increment, final int movesToGo, final boolean perMove)
+	{
+		if(base <= 0 || increment < 0 || movesToGo < 0)
+			throw new IllegalArgumentException("Invalid time control");
+		this.base = base;
+		this.increment = increment;
+		this.movesToGo = movesToGo;
+		this.perMove = perMove;
+	}
+
+	/// Returns a time control giving the same time to every move.
+	/**
+	 * @param millis Time per move in milliseconds.
+	 */
+	public static TimeControl perMove(final long millis)
+	{
+		return new TimeControl(millis, 0, 0, true);
+	}
+
+	/// Returns a time control with a clock per player.
+	/**
+	 * @param base Starting time on the clock in milliseconds.
+	 * @param increment Time added after each move in milliseconds.
+	 * @param movesToGo Moves per period after which base is added again, or 0.
+	 */
+	public static TimeControl clock(final long base, final long increment, final int movesToGo)
+	{
+		return new TimeControl(base, increment, movesToGo, false);
+	}
+
+	/// Parses a time control written as in toString.
+	/**
+	 * @param text "millis", "base+increment" or "moves/base+increment".
+	 * @throws IllegalArgumentException If the text is not a valid time control.
+	 */
+	public static TimeControl parse(final String text) throws IllegalArgumentException
+	{
+		final int slash = text.indexOf('/');
+		final int plus = text.indexOf('+');
+		if(slash < 0 && plus < 0)
+			return perMove(Long.parseLong(text.trim()));
+		if(plus < 0 || plus < slash)
+			throw new IllegalArgumentException("Invalid time control: " + text);
+		final int moves = slash < 0 ? 0 : Integer.parseInt(text.substring(0, slash).trim());
+		return clock(Long.parseLong(text.substring(slash + 1, plus).trim()),
+					 Long.parseLong(text.substring(plus + 1).trim()), moves);
+	}
+
+	/// Returns whether every move gets the same fixed time.
+	public boolean isPerMove()
+	{
+		return perMove;
+	}
+
+	/// Returns the time on each clock at the start of the game, in nanoseconds.
+	public long start()
+	{
+		return base * 1000000L;
+	}
+
+	/// Returns a player's clock after a move.
+	/**
+	 * @param remaining Time that was left on the clock after the move, in nanoseconds.
+	 * Under a clock this is never negative, since a player whose clock runs out loses.
+	 * @param moves Number of moves the player has made including this one.
+	 * @return The time on the clock for the player's next move, in nanoseconds.
+	 */
+	public long afterMove(final long remaining, final int moves)
+	{
+		if(perMove)
+			return start();
+		long clock = remaining + increment * 1000000L;
+		if(movesToGo > 0 && moves % movesToGo == 0)
+			clock += start();
+		return clock;
+	}
+
+	/// Returns the time after which a player is told to stop thinking about its next move.
+	/**
+	 * With a fixed time per move this is the whole time.  Under a clock the time on the
+	 * clock is spread evenly over the moves until base is added again, or over a guess
+	 * at the number of moves left in the game under sudden death, with the increment on
+	 * top; a move may take twice that share.  A little of the clock is always kept back
+	 * so that an AI told to stop can still return before its clock runs out.
+	 *
+	 * @param remaining Time on the player's clock in nanoseconds.
+	 * @param moves Number of moves the player has made so far.
+	 * @param movesLeft Upper bound on the number of moves the player has left in the game.
+	 * @return The time until the terminate flag is set in nanoseconds, less than remaining
+	 *         under a clock.
+	 */
+	public long limit(final long remaining, final int moves, final int movesLeft)
+	{
+		if(perMove)
+			return remaining;
+		int spread = movesToGo > 0 ? movesToGo - moves % movesToGo : (movesLeft + 1) / 2;
+		spread = Math.max(1, Math.min(spread, movesLeft));
+		final long share = remaining / spread + increment * 1000000L;
+		return Math.min(2 * share, remaining - Math.min(OVERHEAD, remaining / 2));
+	}
+
+	/// Returns the time a player should plan to spend on its next move.
+	/**
+	 * Half of limit, so that an AI which stops starting new work at this point has time
+	 * to finish what it has started.
+	 *
+	 * @param remaining Time on the player's clock in nanoseconds.
+	 * @param moves Number of moves the player has made so far.
+	 * @param movesLeft Upper bound on the number of moves the player has left in the game.
+	 * @return The planned time for the move in nanoseconds.
+	 */
+	public long allocate(final long remaining, final int moves, final int movesLeft)
+	{
+		return limit(remaining, moves, movesLeft) / 2;
+	}
+
+	/// Returns the time added after each move in nanoseconds.
+	public long getIncrement()
+	{
+		return increment * 1000000L;
+	}
+
+	/// Returns the number of moves per period, or 0 if base is only given once.
+	public int getMovesToGo()
+	{
+		return movesToGo;
+	}
+
+	@Override
+	public String toString()
+	{
+		if(perMove)
+			return Long.toString(base);
+		return (movesToGo > 0 ? movesToGo + "/" : "") + base + "+" + increment;
+	}
+}
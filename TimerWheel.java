@@ -0,0 +1,157 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/// Hashed timer wheel for running many short deadline tasks from one thread.
+/**
+ * A single daemon thread advances a ring of buckets once per tick and runs the tasks
+ * whose deadlines have passed.  Scheduling and cancelling are O(1) and never block,
+ * so thousands of games can each have a move deadline pending without a sleeping
+ * thread or a join per move.  Tasks run on the wheel's own thread and must be quick
+ * (set a flag, complete a future); deadlines are met to within about one tick.
+ *
+ * @see GameScheduler
+ */
+public final class TimerWheel
+{
+	/// A pending task.
+	public static final class Timeout
+	{
+		/// When the task should run, in System.nanoTime terms.
+		private final long deadline;
+		private final Runnable task;
+		private volatile boolean cancelled = false;
+		/// Full turns of the wheel left before the deadline.  Owned by the wheel's thread.
+		private long rounds;
+		/// Next timeout in the same bucket.  Owned by the wheel's thread.
+		private Timeout next;
+
+		private Timeout(final long deadline, final Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/// Stops the task from running if it hasn't already.
+		public void cancel()
+		{
+			cancelled = true;
+		}
+	}
+
+	/// Length of one tick in nanoseconds.
+	private final long tickNanos;
+	/// First timeout of every bucket.
+	private final Timeout[] buckets;
+	/// Bucket index mask.
+	private final int mask;
+	/// Timeouts scheduled since the last tick, not yet put in a bucket.
+	private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+	/// Time at which tick 0 started.
+	private final long start = System.nanoTime();
+	/// Number of ticks processed.  Owned by the wheel's thread.
+	private long tick = 0;
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	/// Primary Constructor.
+	/**
+	 * Starts the wheel's thread.
+	 *
+	 * @param tickMillis Length of one tick in milliseconds.
+	 * @param bucketBits The wheel has 2^bucketBits buckets.
+	 */
+	public TimerWheel(final int tickMillis, final int bucketBits)
+	{
+		tickNanos = tickMillis * 1000000L;
+		buckets = new Timeout[1 << bucketBits];
+		mask = buckets.length - 1;
+		thread = new Thread("TimerWheel")
+		{
+			@Override
+			public void run()
+			{
+				while(running)
+					advance();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/// Runs a task after the given delay.
+	/**
+	 * @param delayNanos The delay in nanoseconds.
+	 * @param task The task to run on the wheel's thread.
+	 * @return A handle with which the task can be cancelled.
+	 */
+	public Timeout schedule(final long delayNanos, final Runnable task)
+	{
+		final Timeout timeout = new Timeout(System.nanoTime() + delayNanos, task);
+		incoming.add(timeout);
+		return timeout;
+	}
+
+	/// Stops the wheel's thread.  Pending tasks are dropped.
+	public void stop()
+	{
+		running = false;
+		thread.interrupt();
+	}
+
+	/// Waits for the next tick, then runs every task due in its bucket.
+	private void advance()
+	{
+		final long tickEnd = start + (tick + 1) * tickNanos;
+		long now;
+		while((now = System.nanoTime()) < tickEnd && running)
+			LockSupport.parkNanos(tickEnd - now);
+
+		// File the newly scheduled timeouts under the tick they expire on.
+		Timeout timeout;
+		while((timeout = incoming.poll()) != null)
+		{
+			if(timeout.cancelled)
+				continue;
+			final long due = Math.max(tick, (timeout.deadline - start) / tickNanos);
+			timeout.rounds = (due - tick) / buckets.length;
+			final int index = (int) (due & mask);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+
+		// Expire this tick's bucket, keeping the timeouts due on a later turn.
+		final int index = (int) (tick & mask);
+		Timeout kept = null;
+		timeout = buckets[index];
+		while(timeout != null)
+		{
+			final Timeout next = timeout.next;
+			if(timeout.cancelled)
+			{
+				// Dropped
+			}
+			else if(timeout.rounds > 0)
+			{
+				timeout.rounds--;
+				timeout.next = kept;
+				kept = timeout;
+			}
+			else
+			{
+				try
+				{
+					timeout.task.run();
+				}
+				catch(RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			timeout = next;
+		}
+		buckets[index] = kept;
+		tick++;
+	}
+}
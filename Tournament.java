@@ -0,0 +1,408 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Entry point for playing many headless games between AIs in one process.
+/**
+ * Plays round-robin or gauntlet matches between any number of AIModule classes, over
+ * any number of board sizes and time limits, on all cores at once using a
+ * GameScheduler.  Every game gets fresh AI instances and no display; players
+ * alternate colors from game to game.  Time limits may be a fixed time per move or a clock per player (see
+ * TimeControl); a player that overruns its time loses the game.  At the end, each
+ * pairing's wins, draws, losses and games lost on time are printed along with
+ * the Elo difference they imply (with a 95% error bar) and the number of games
+ * played per hour, followed by the timing of each AI's moves (see MoveStats).  The games can also
+ * be saved to a binary game record (see GameRecordWriter).  Run with --help for the command line options.
+ *
+ * @see Main
+ * @see GameScheduler
+ */
+public class Tournament
+{
+	/// Results of one pairing on one board size and time limit.
+	private static final class Match
+	{
+		final String first;
+		final String second;
+		final int width;
+		final int height;
+		final TimeControl time;
+		/// Games won, drawn and lost by first against second.
+		int wins;
+		int draws;
+		int losses;
+		/// Games lost on time or by forfeit, by either player.
+		int forfeits;
+
+		Match(final String first, final String second, final int width, final int height, final TimeControl time)
+		{
+			this.first = first;
+			this.second = second;
+			this.width = width;
+			this.height = height;
+			this.time = time;
+		}
+
+		/// Records the outcome of a game from first's point of view: 1, 0 or -1.
+		synchronized void record(final int outcome, final boolean forfeit)
+		{
+			if(forfeit)
+				forfeits++;
+			if(outcome > 0)
+				wins++;
+			else if(outcome < 0)
+				losses++;
+			else
+				draws++;
+		}
+
+		int games()
+		{
+			return wins + draws + losses;
+		}
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-ai [AI Class Names]\" : Comma separated list of the AIs to play");
+		System.out.println("      Example: -ai DeepConnect,MonteCarloAI,RandomAI");
+		System.out.println("    \"-gauntlet\" : Play the first AI against each of the others only");
+		System.out.println("      (the default is a round robin between all of them)");
+		System.out.println("    \"-games [int]\" : Games per pairing, board size and time limit");
+		System.out.println("      Example: -games 100");
+		System.out.println("    \"-size [WxH list]\" : Comma separated list of board sizes");
+		System.out.println("      Example: -size 7x6,8x8");
+		System.out.println("    \"-t [Time list in ms]\" : Comma separated list of per-move time limits");
+		System.out.println("      Example: -t 100,500");
+		System.out.println("    \"-tc [Time control list]\" : Comma separated list of clocks, in ms: [moves/]base+increment");
+		System.out.println("      Example: -tc 10000+100,40/10000+0");
+		System.out.println("    \"-k [int]\" : Set the number of coins in a row needed to win");
+		System.out.println("      Example: -k 4");
+		System.out.println("    \"-threads [int]\" : Number of AIs that may think at once (default: all cores)");
+		System.out.println("      Example: -threads 4");
+		System.out.println("    \"-inflight [int]\" : Number of games in progress at once (default: 4 per thread)");
+		System.out.println("      Example: -inflight 10000");
+		System.out.println("    \"-record [file]\" : Append every game to a binary game record (one board size only)");
+		System.out.println("      Example: -record games.c4r");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String[] names = null;
+		boolean gauntlet = false;
+		int games = 10;
+		int[][] sizes = {{7, 6}};
+		TimeControl[] times = {TimeControl.perMove(500)};
+		int winLength = 4;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int inFlight = 0;
+		String record = null;
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-ai"))
+				{
+					names = args[i + 1].split(",");
+					for(final String name : names)
+						createPlayer(name);
+				}
+				else if(args[i].equalsIgnoreCase("-gauntlet"))
+				{
+					gauntlet = true;
+					// Compensate for i += 2
+					i--;
+				}
+				else if(args[i].equalsIgnoreCase("-games"))
+				{
+					games = Integer.parseInt(args[i + 1]);
+					if(games <= 0)
+						throw new IllegalArgumentException("Game count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-size"))
+				{
+					final String[] list = args[i + 1].split(",");
+					sizes = new int[list.length][];
+					for(int j = 0; j < list.length; j++)
+					{
+						final String[] wh = list[j].toLowerCase().split("x");
+						sizes[j] = new int[] {Integer.parseInt(wh[0]), Integer.parseInt(wh[1])};
+						if(sizes[j][0] < 4 || sizes[j][1] < 4)
+							throw new IllegalArgumentException("Widths and heights must be at least four.");
+					}
+				}
+				else if(args[i].equalsIgnoreCase("-t"))
+				{
+					final String[] list = args[i + 1].split(",");
+					times = new TimeControl[list.length];
+					for(int j = 0; j < list.length; j++)
+					{
+						final int time = Integer.parseInt(list[j]);
+						if(time <= 0)
+							throw new IllegalArgumentException("AI think time must be positive");
+						times[j] = TimeControl.perMove(time);
+					}
+				}
+				else if(args[i].equalsIgnoreCase("-tc"))
+				{
+					final String[] list = args[i + 1].split(",");
+					times = new TimeControl[list.length];
+					for(int j = 0; j < list.length; j++)
+						times[j] = TimeControl.parse(list[j]);
+				}
+				else if(args[i].equalsIgnoreCase("-k"))
+				{
+					winLength = Integer.parseInt(args[i + 1]);
+					if(winLength < 2)
+						throw new IllegalArgumentException("Win length must be at least two.");
+				}
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-inflight"))
+				{
+					inFlight = Integer.parseInt(args[i + 1]);
+					if(inFlight <= 0)
+						throw new IllegalArgumentException("In-flight game count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-record"))
+					record = args[i + 1];
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(names == null || names.length < 2)
+				throw new IllegalArgumentException("At least two AIs are needed.");
+			if(record != null && sizes.length > 1)
+				throw new IllegalArgumentException("Only one board size can be recorded.");
+			for(final int[] size : sizes)
+				if(winLength > Math.max(size[0], size[1]))
+					throw new IllegalArgumentException("Win length cannot exceed both the width and the height of "
+													   + size[0] + "x" + size[1] + ".");
+		}
+		catch(ClassNotFoundException cnf)
+		{
+			System.err.println("Player Not Found: " + cnf.getMessage());
+			System.exit(1);
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Integer: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+		catch(Exception e)
+		{
+			System.err.println("Unknown Error");
+			System.exit(5);
+		}
+
+		// Set up every pairing
+		final List<Match> matches = new ArrayList<Match>();
+		for(final int[] size : sizes)
+			for(final TimeControl time : times)
+				for(int a = 0; a < (gauntlet ? 1 : names.length); a++)
+					for(int b = a + 1; b < names.length; b++)
+						matches.add(new Match(names[a], names[b], size[0], size[1], time));
+
+		final Map<String, MoveStats> stats = new LinkedHashMap<String, MoveStats>();
+		for(final String name : names)
+			stats.put(name, new MoveStats());
+
+		GameRecordWriter writer = null;
+		if(record != null)
+		{
+			try
+			{
+				writer = new GameRecordWriter(new java.io.File(record), sizes[0][0], sizes[0][1], winLength, names);
+			}
+			catch(java.io.IOException e)
+			{
+				System.err.println("Cannot record games: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		final long start = System.nanoTime();
+		run(matches, stats, games, winLength, threads, inFlight > 0 ? inFlight : 4 * threads,
+			writer, Arrays.asList(names));
+		final double hours = (System.nanoTime() - start) / 3.6e12;
+
+		if(writer != null)
+		{
+			try
+			{
+				writer.close();
+			}
+			catch(java.io.IOException e)
+			{
+				System.err.println("Cannot record games: " + e.getMessage());
+			}
+		}
+
+		report(matches, hours);
+		System.out.println();
+		System.out.printf("%-16s %s%n", "Player", MoveStats.header());
+		for(final Map.Entry<String, MoveStats> entry : stats.entrySet())
+			System.out.printf("%-16s %s%n", entry.getKey(), entry.getValue().summary());
+	}
+
+	/// Plays all games of all matches on a GameScheduler.
+	private static void run(final List<Match> matches, final Map<String, MoveStats> stats, final int games,
+							final int winLength, final int threads, final int inFlight,
+							final GameRecordWriter writer, final List<String> names)
+	{
+		final GameScheduler scheduler = new GameScheduler(threads, inFlight);
+		final List<Future<?>> pending = new ArrayList<Future<?>>();
+		try
+		{
+			for(final Match match : matches)
+				for(int g = 0; g < games; g++)
+				{
+					// Alternate who moves first
+					final boolean swap = (g & 1) == 1;
+					pending.add(scheduler.submit(new Callable<Object>()
+					{
+						public Object call()
+						{
+							playGame(scheduler, match, stats, swap, winLength, writer, names);
+							return null;
+						}
+					}));
+				}
+
+			for(final Future<?> game : pending)
+				game.get();
+			scheduler.shutdown();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/// Plays one headless game of a match and records its outcome.
+	/**
+	 * @param scheduler The scheduler whose workers run the AIs.
+	 * @param match The pairing to play.
+	 * @param stats Timing of the moves of each AI by name, added to after the game.
+	 * @param swap Whether the second AI of the match moves first.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param writer Where to record the game, or null.
+	 * @param names The names of the AIs, in the order the writer's header gives them.
+	 */
+	private static void playGame(final GameScheduler scheduler, final Match match, final Map<String, MoveStats> stats,
+								 final boolean swap, final int winLength, final GameRecordWriter writer,
+								 final List<String> names)
+	{
+		final AIModule[] players = new AIModule[2];
+		try
+		{
+			players[swap ? 1 : 0] = createPlayer(match.first);
+			players[swap ? 0 : 1] = createPlayer(match.second);
+		}
+		catch(Exception e)
+		{
+			throw new RuntimeException("Could not create players: " + e.getMessage(), e);
+		}
+
+		final GameStateModule game = Main.createGame(match.width, match.height, winLength);
+		final GameController controller = scheduler.newController(game, new NullDisplay(), players, match.time);
+		if(writer != null)
+		{
+			final int first = names.indexOf(match.first);
+			final int second = names.indexOf(match.second);
+			controller.addListener(swap ? writer.recorder(second, first) : writer.recorder(first, second));
+		}
+		controller.play();
+
+		stats.get(match.first).add(controller.getStats(swap ? 2 : 1));
+		stats.get(match.second).add(controller.getStats(swap ? 1 : 2));
+
+		final int winner = controller.getWinner();
+		final boolean forfeit = controller.getForfeited() != 0;
+		if(winner == 0)
+			match.record(0, forfeit);
+		else
+			match.record((winner == 1) != swap ? 1 : -1, forfeit);
+	}
+
+	/// Creates a new instance of the named AI.
+	private static AIModule createPlayer(final String name) throws Exception
+	{
+		return (AIModule) Class.forName(name).getDeclaredConstructor().newInstance();
+	}
+
+	/// Prints the results of all matches.
+	private static void report(final List<Match> matches, final double hours)
+	{
+		int total = 0;
+		System.out.printf("%-16s %-16s %6s %12s %5s %5s %5s %5s %8s %8s%n",
+						  "Player", "Opponent", "Board", "Time", "Win", "Draw", "Loss", "Flag", "Elo", "+/-");
+		for(final Match match : matches)
+		{
+			final int n = match.games();
+			total += n;
+			final double score = (match.wins + 0.5 * match.draws) / n;
+			// Standard error of the mean score per game
+			final double deviation = Math.sqrt((match.wins * sq(1 - score)
+												+ match.draws * sq(0.5 - score)
+												+ match.losses * sq(score)) / n);
+			final double margin = 1.96 * deviation / Math.sqrt(n);
+			final double elo = elo(score);
+			final double error = (elo(score + margin) - elo(score - margin)) / 2;
+			System.out.printf("%-16s %-16s %6s %12s %5d %5d %5d %5d %8s %8s%n",
+							  match.first, match.second, match.width + "x" + match.height, match.time,
+							  match.wins, match.draws, match.losses, match.forfeits, format(elo), format(error));
+		}
+		System.out.printf("%d games in %.1f s, %.0f games per hour%n", total, hours * 3600, total / hours);
+	}
+
+	/// Converts a mean score to an Elo difference.
+	private static double elo(final double score)
+	{
+		if(score <= 0)
+			return Double.NEGATIVE_INFINITY;
+		if(score >= 1)
+			return Double.POSITIVE_INFINITY;
+		return -400 * Math.log10(1 / score - 1);
+	}
+
+	private static double sq(final double x)
+	{
+		return x * x;
+	}
+
+	private static String format(final double value)
+	{
+		if(Double.isInfinite(value) || Double.isNaN(value))
+			return value > 0 ? "inf" : value < 0 ? "-inf" : "?";
+		return String.format("%.0f", value);
+	}
+}
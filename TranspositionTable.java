@@ -0,0 +1,399 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/// Fixed-size cache of search results indexed by position key.
+/**
+ * Stores, for a position key, the value a search found for it and how many levels
+ * deep that search looked.  The table never grows: each key maps to one slot, and a
+ * new entry replaces the old one unless the old one was searched deeper.  Nothing is
+ * allocated after construction.
+ *
+ * Callers normally index it with PositionKey.canonical so that a position and its
+ * mirror image share an entry.
+ *
+ * A table may be shared between threads without locking.  Entries are read and
+ * written a field at a time, so a probe racing a store can see parts of two entries,
+ * but the check kept with each entry then fails and the probe reads it as empty.
+ * Searches get their table from acquire, which hands every search of the same kind
+ * of game in the process the same table, sized from the heap (or the
+ * c4.cache.bits system property), instead of each allocating its own.
+ *
+ * A table may be backed by a memory-mapped file, so that an engine started again
+ * begins with everything it searched before.  Stores are written straight through
+ * to the mapping and checkpoint() forces them to disk.  The file is tagged with the
+ * board size and a version of the evaluation; if the tag does not match, or the
+ * header is damaged, the old contents are thrown away and the table starts empty.
+ * Each entry also carries a check of its own, mixed with the tag, so an entry torn by
+ * a crash in the middle of a store, or written under another tag, reads as empty.
+ * Only one table at a time may have a file open: the file is locked until close, and
+ * opening it while another table, in this process or another, holds it fails.  Tables
+ * from acquire share the file between every search in the process, and close it once
+ * none of them is using it.
+ *
+ * File layout, all numbers big-endian: the magic bytes "C4TT", a version byte, width,
+ * height, win length and bits bytes, three bytes of padding, the evaluation version
+ * as a long and a check of everything before it as a long.  Then 2^bits entries of
+ * 16 bytes: the key as a long, the value as an int, the depth plus one as a byte
+ * (zero marks an empty slot), a byte of padding and a check of the entry and the
+ * header's check as a short.
+ *
+ * @see PositionKey
+ */
+public final class TranspositionTable
+{
+	/// Returned by probe when there is no usable entry.
+	public static final int MISSING = Integer.MIN_VALUE;
+	/// First bytes of every table file.
+	static final byte[] MAGIC = {'C', '4', 'T', 'T'};
+	/// Version of the file format.
+	static final int VERSION = 2;
+	/// Bytes before the first entry of a table file.
+	static final int HEADER_SIZE = 32;
+	/// Bytes per entry.
+	static final int ENTRY_SIZE = 16;
+	/// System property giving the size of shared tables as a power of two.
+	public static final String BITS_PROPERTY = "c4.cache.bits";
+	/// Smallest and largest shared tables, as powers of two.
+	private static final int MIN_SHARED_BITS = 16;
+	private static final int MAX_SHARED_BITS = 22;
+
+	/// Tables handed out by acquire, by the kind of game they are for.
+	private static final Map<String, TranspositionTable> SHARED = new HashMap<String, TranspositionTable>();
+
+	/// The entries, on the heap or mapped from a file.
+	private final ByteBuffer entries;
+	/// The mapping of the whole file, or null if the table is not backed by one.
+	private final MappedByteBuffer mapped;
+	/// The open file, holding the lock on it, or null if the table is not backed by one.
+	private final FileChannel channel;
+	/// Mixed into every entry's check: the check of the file's header, or 0.
+	private final long salt;
+	/// Whether the file held entries of an earlier run when it was opened.
+	private final boolean restored;
+	/// Slot index mask.
+	private final int mask;
+	/// Key in SHARED and number of searches using the table, if it came from acquire.  Guarded by SHARED.
+	private String sharedKey = null;
+	private int users = 0;
+
+	/// Primary Constructor.
+	/**
+	 * @param bits The table holds 2^bits entries.
+	 */
+	public TranspositionTable(final int bits)
+	{
+		entries = ByteBuffer.allocate(ENTRY_SIZE << bits);
+		mapped = null;
+		channel = null;
+		salt = 0;
+		restored = false;
+		mask = (1 << bits) - 1;
+	}
+
+	/// Constructor for a table backed by a file.
+	/**
+	 * Opens the file if it holds a table with the same tag, and otherwise creates it
+	 * or overwrites it with an empty table.  The file stays locked until close.
+	 *
+	 * @param file The file to keep the table in.
+	 * @param bits The table holds 2^bits entries.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param evaluator A version of the evaluation the values come from; a file
+	 *                  written with another version is discarded.
+	 * @throws IOException If the file cannot be created or mapped, or another table has it open.
+	 */
+	public TranspositionTable(final File file, final int bits, final int width, final int height,
+							  final int winLength, final long evaluator) throws IOException
+	{
+		if(bits < 1 || bits > 26)
+			throw new IllegalArgumentException("Table size must be from 2^1 to 2^26 entries");
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC).put((byte) VERSION).put((byte) width).put((byte) height).put((byte) winLength)
+			.put((byte) bits).put(new byte[3]).putLong(evaluator);
+		salt = check(header, header.position());
+		header.putLong(salt);
+
+		final long size = HEADER_SIZE + ((long) ENTRY_SIZE << bits);
+		// Closing the channel closes the file and releases the lock
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try
+		{
+			FileLock lock;
+			try
+			{
+				lock = channel.tryLock();
+			}
+			catch(OverlappingFileLockException e)
+			{
+				// Held by another table in this process
+				lock = null;
+			}
+			if(lock == null)
+				throw new IOException(file + " is in use by another table");
+
+			boolean matches = false;
+			if(channel.size() == size)
+			{
+				final ByteBuffer found = ByteBuffer.allocate(HEADER_SIZE);
+				while(found.hasRemaining() && channel.read(found, found.position()) >= 0)
+					;
+				found.flip();
+				header.rewind();
+				matches = found.equals(header);
+			}
+			if(!matches)
+			{
+				// Anything else is another table, another format or damaged: start over
+				channel.truncate(0);
+				raf.setLength(size);
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			restored = matches;
+		}
+		catch(IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+		if(!restored)
+		{
+			mapped.put(header.array());
+			mapped.force();
+		}
+		mapped.position(HEADER_SIZE);
+		entries = mapped.slice();
+		mask = (1 << bits) - 1;
+	}
+
+	/// Returns the table for searches of one kind of game, creating it if no search has it.
+	/**
+	 * Every call must be matched by one to release once the caller is done with the
+	 * table, such as at the end of a game.  A table in memory that nobody uses is kept
+	 * for the next search of the same kind, until a table of another kind is created.
+	 * A table kept in a file is closed as soon as nobody uses it, so the file is
+	 * written out and unlocked between games.  If the file cannot be opened, for
+	 * instance because a table of another kind has it, the table is kept in memory.
+	 *
+	 * @param file The file to keep the table in, or null to keep it in memory.
+	 * @param width The width of the board.
+	 * @param height The height of the board.
+	 * @param winLength The number of coins in a row needed to win.
+	 * @param evaluator A version of the evaluation the values come from.
+	 */
+	public static TranspositionTable acquire(final File file, final int width, final int height,
+											 final int winLength, final long evaluator)
+	{
+		final String key = file + ":" + width + "x" + height + "/" + winLength + "/" + evaluator;
+		synchronized(SHARED)
+		{
+			TranspositionTable table = SHARED.get(key);
+			if(table == null)
+			{
+				dropUnused();
+				final int bits = sharedBits();
+				if(file != null)
+				{
+					try
+					{
+						table = new TranspositionTable(file, bits, width, height, winLength, evaluator);
+					}
+					catch(IOException e)
+					{
+						System.err.println("Cannot open search cache: " + e.getMessage());
+					}
+				}
+				if(table == null)
+					table = new TranspositionTable(bits);
+				table.sharedKey = key;
+				SHARED.put(key, table);
+			}
+			table.users++;
+			return table;
+		}
+	}
+
+	/// Hands back a table from acquire.
+	/**
+	 * A table kept in a file is written to disk, and closed if no one else uses it.
+	 *
+	 * @param table The table, which the caller must not use afterwards.
+	 */
+	public static void release(final TranspositionTable table)
+	{
+		synchronized(SHARED)
+		{
+			if(table.users > 0)
+				table.users--;
+			if(table.channel == null)
+				return;
+			if(table.users > 0)
+				table.checkpoint();
+			else
+			{
+				SHARED.remove(table.sharedKey);
+				table.close();
+			}
+		}
+	}
+
+	/// Lets go of every shared table no search is using.  Caller holds SHARED.
+	private static void dropUnused()
+	{
+		final Iterator<TranspositionTable> tables = SHARED.values().iterator();
+		while(tables.hasNext())
+		{
+			final TranspositionTable table = tables.next();
+			if(table.users == 0)
+			{
+				tables.remove();
+				table.close();
+			}
+		}
+	}
+
+	/// Returns the size of a new shared table as a power of two.
+	/**
+	 * Taken from the c4.cache.bits system property if set, and otherwise as large as
+	 * fits in a sixteenth of the heap, within 2^16 to 2^22 entries.
+	 */
+	private static int sharedBits()
+	{
+		final String property = System.getProperty(BITS_PROPERTY);
+		if(property != null)
+		{
+			try
+			{
+				return Math.max(1, Math.min(26, Integer.parseInt(property)));
+			}
+			catch(NumberFormatException e)
+			{
+				System.err.println("Invalid " + BITS_PROPERTY + ": " + e.getMessage());
+			}
+		}
+		final long entries = Runtime.getRuntime().maxMemory() / 16 / ENTRY_SIZE;
+		final int bits = 63 - Long.numberOfLeadingZeros(Math.max(1, entries));
+		return Math.max(MIN_SHARED_BITS, Math.min(MAX_SHARED_BITS, bits));
+	}
+
+	/// Mixes bytes 0 to length of a buffer into a check value.
+	private static long check(final ByteBuffer buffer, final int length)
+	{
+		long check = 0x9E3779B97F4A7C15L;
+		for(int i = 0; i < length; i++)
+			check = mix(check ^ (buffer.get(i) & 0xFF));
+		return check;
+	}
+
+	/// Scrambles the bits of a long, as in SplitMix64.
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/// Computes the check stored with an entry.
+	private short check(final long key, final int value, final int depth)
+	{
+		return (short) (mix(key ^ salt ^ ((long) value << 8) ^ depth) >>> 48);
+	}
+
+	/// Picks the slot for a key.
+	private int slot(final long key)
+	{
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/// Looks up a position.
+	/**
+	 * @param key The position key.
+	 * @param depth The number of levels the caller would search below the position.
+	 * @return The stored value if the position was searched at least that deep, or MISSING.
+	 */
+	public int probe(final long key, final int depth)
+	{
+		final int at = slot(key) * ENTRY_SIZE;
+		final int stored = entries.get(at + 12);
+		if(stored > depth && entries.getLong(at) == key)
+		{
+			final int value = entries.getInt(at + 8);
+			if(entries.getShort(at + 14) == check(key, value, stored))
+				return value;
+		}
+		return MISSING;
+	}
+
+	/// Records the value of a position.
+	/**
+	 * @param key The position key.
+	 * @param depth The number of levels searched below the position.
+	 * @param value The value found.
+	 */
+	public void store(final long key, final int depth, final int value)
+	{
+		final int at = slot(key) * ENTRY_SIZE;
+		if(entries.getLong(at) == key && entries.get(at + 12) > depth + 1)
+			return;
+		entries.putLong(at, key);
+		entries.putInt(at + 8, value);
+		entries.put(at + 12, (byte) (depth + 1));
+		entries.putShort(at + 14, check(key, value, depth + 1));
+	}
+
+	/// Empties the table.
+	public void clear()
+	{
+		for(int at = 12; at < entries.capacity(); at += ENTRY_SIZE)
+			entries.put(at, (byte) 0);
+	}
+
+	/// Writes the entries of a file-backed table to disk.
+	/**
+	 * Stores reach the file anyway when the operating system gets to them; this only
+	 * makes sure they survive a crash of the machine from this point.  Does nothing
+	 * for a table that is not backed by a file.
+	 */
+	public void checkpoint()
+	{
+		if(mapped != null)
+			mapped.force();
+	}
+
+	/// Writes the entries of a file-backed table to disk and unlocks the file.
+	/**
+	 * The table must not be used afterwards.  Does nothing for a table that is not
+	 * backed by a file.
+	 */
+	public void close()
+	{
+		if(channel == null)
+			return;
+		mapped.force();
+		try
+		{
+			channel.close();
+		}
+		catch(IOException e)
+		{
+			// The lock is released with the file descriptor either way
+		}
+	}
+
+	/// Returns whether the table was opened with the entries of an earlier run.
+	public boolean isRestored()
+	{
+		return restored;
+	}
+}
@@ -0,0 +1,460 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/// Entry point for fitting DeepConnect's evaluation weights to self-play outcomes.
+/**
+ * Texel-style tuning: every position in a SelfPlay file is reduced to the features of
+ * EvalWeights once, and the weights are then fitted so that the evaluation of each
+ * position, passed through a logistic curve, predicts the result the game ended with
+ * (1 for a win by the player to move, 0.5 for a draw, 0 for a loss).  Positions from a
+ * game that stopped without a result, such as one lost by forfeit (a winner of
+ * GameRecordWriter.UNFINISHED), are read but left out.  The loss is the
+ * mean cross-entropy, minimized with Adam.  Features are extracted and gradients
+ * summed over all cores with fork-join.
+ *
+ * An evaluation of 10 predicts a win about 73% of the time (see SCALE), which keeps
+ * tuned evaluations well short of DeepConnect's win score.  The features take two
+ * bytes per position each, so ten million 7x6 positions need about 120MB.  Run with
+ * --help for the command line options.
+ *
+ * @see SelfPlay
+ * @see EvalWeights
+ */
+public class Tuner
+{
+	/// Slope of the logistic curve mapping evaluations to expected results.
+	private static final double SCALE = 0.1;
+	/// Positions per fork-join task.
+	private static final int CHUNK = 1 << 14;
+	private static final double BETA1 = 0.9;
+	private static final double BETA2 = 0.999;
+	private static final double EPSILON = 1e-8;
+	/// Entry in results of a position whose game stopped without a result.
+	private static final byte NO_RESULT = -1;
+
+	private final int width;
+	private final int height;
+	private final int winLength;
+	private final int featureCount;
+	private final int positionCount;
+	/// Number of positions with a result, which the loss is averaged over.
+	private final int labelledCount;
+	/// Features of every position, featureCount per position.
+	private final short[] features;
+	/// Expected result of every position for the player to move: 0, 1 or 2 half points, or NO_RESULT.
+	private final byte[] results;
+	/// Every line of winLength tiles, in SelfPlay's layout.
+	private final long[] lines;
+	/// The middle column or columns, in SelfPlay's layout.
+	private final long centerMask;
+	private final ForkJoinPool pool;
+
+	/// Primary Constructor.
+	/**
+	 * Reads the positions and extracts their features.
+	 *
+	 * @param file A file written by SelfPlay.
+	 * @param threads Number of threads to use.
+	 * @throws IOException If the file cannot be read or was not written by SelfPlay.
+	 */
+	public Tuner(final File file, final int threads) throws IOException
+	{
+		final MappedByteBuffer buffer;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final byte[] magic = new byte[SelfPlay.MAGIC.length];
+		if(buffer.remaining() < magic.length + 4)
+			throw new IOException(file + " is not a self-play file");
+		buffer.get(magic);
+		if(!Arrays.equals(magic, SelfPlay.MAGIC) || buffer.get() != SelfPlay.VERSION)
+			throw new IOException(file + " is not a self-play file of this version");
+		width = buffer.get();
+		height = buffer.get();
+		winLength = buffer.get();
+		featureCount = EvalWeights.getFeatureCount(winLength);
+		positionCount = buffer.remaining() / SelfPlay.RECORD_SIZE;
+		features = new short[positionCount * featureCount];
+		results = new byte[positionCount];
+		lines = buildLines(width, height, winLength);
+
+		long center = 0L;
+		for(int x = (width - 1) / 2; x <= width / 2; x++)
+			center |= ((1L << height) - 1) << (x * height);
+		centerMask = center;
+
+		pool = new ForkJoinPool(threads);
+		final int start = buffer.position();
+		pool.invoke(new Extract(buffer, start, 0, positionCount));
+		int labelled = 0;
+		for(final byte result : results)
+			if(result != NO_RESULT)
+				labelled++;
+		labelledCount = labelled;
+	}
+
+	/// Lists the masks of every line of the given length, in SelfPlay's layout.
+	private static long[] buildLines(final int width, final int height, final int length)
+	{
+		final int[][] directions = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+		final long[] masks = new long[4 * width * height];
+		int count = 0;
+		for(final int[] d : directions)
+			for(int x = 0; x < width; x++)
+				for(int y = 0; y < height; y++)
+				{
+					final int endX = x + (length - 1) * d[0];
+					final int endY = y + (length - 1) * d[1];
+					if(endX >= width || endY < 0 || endY >= height)
+						continue;
+					long mask = 0L;
+					for(int i = 0; i < length; i++)
+						mask |= 1L << ((x + i * d[0]) * height + y + i * d[1]);
+					masks[count++] = mask;
+				}
+		return Arrays.copyOf(masks, count);
+	}
+
+	/// Extracts the features of a range of positions.
+	private final class Extract extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final MappedByteBuffer buffer;
+		private final int offset;
+		private final int from;
+		private final int to;
+
+		Extract(final MappedByteBuffer buffer, final int offset, final int from, final int to)
+		{
+			this.buffer = buffer;
+			this.offset = offset;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from > CHUNK)
+			{
+				final int middle = (from + to) >>> 1;
+				invokeAll(new Extract(buffer, offset, from, middle), new Extract(buffer, offset, middle, to));
+				return;
+			}
+			// Same condition as play (EvalWeights.evaluate, DeepConnect), whatever the height
+			final ThreatAnalyzer threats = ThreatAnalyzer.fits(width, height)
+				? new ThreatAnalyzer(width, height, winLength) : null;
+			final int[] counts = new int[featureCount];
+			for(int i = from; i < to; i++)
+			{
+				final int at = offset + i * SelfPlay.RECORD_SIZE;
+				final long first = buffer.getLong(at);
+				final long second = buffer.getLong(at + 8);
+				final int flags = buffer.get(at + 18);
+				final int mover = flags & 0xF;
+				final int winner = (flags >> 4) & 0xF;
+				final long mine = mover == 1 ? first : second;
+				final long theirs = mover == 1 ? second : first;
+
+				Arrays.fill(counts, 0);
+				for(final long line : lines)
+				{
+					final int own = Long.bitCount(line & mine);
+					final int other = Long.bitCount(line & theirs);
+					if(other == 0 && own > 0 && own < winLength)
+						counts[own - 1]++;
+					else if(own == 0 && other > 0 && other < winLength)
+						counts[other - 1]--;
+				}
+				counts[EvalWeights.center(winLength)] = Long.bitCount(mine & centerMask)
+					- Long.bitCount(theirs & centerMask);
+				if(threats != null)
+				{
+					threats.analyze(spread(first, threats), spread(second, threats));
+					final int owner = threats.getZugzwang();
+					counts[EvalWeights.parity(winLength)] = owner == 0 ? 0 : owner == mover ? 1 : -1;
+				}
+
+				for(int f = 0; f < featureCount; f++)
+					features[i * featureCount + f] = (short) counts[f];
+				results[i] = winner > 2 ? NO_RESULT : (byte) (winner == mover ? 2 : winner == 0 ? 1 : 0);
+			}
+		}
+
+		/// Converts a bitboard from SelfPlay's layout to ThreatAnalyzer's.
+		private long spread(final long board, final ThreatAnalyzer threats)
+		{
+			long result = 0L;
+			for(int x = 0; x < width; x++)
+				for(int y = 0; y < height; y++)
+					if((board & (1L << (x * height + y))) != 0)
+						result |= 1L << threats.bit(x, y);
+			return result;
+		}
+	}
+
+	/// Sums the loss and its gradient over a range of positions.
+	/**
+	 * The result holds the gradient of each weight followed by the loss, all summed
+	 * rather than averaged.
+	 */
+	private final class Gradient extends RecursiveTask<double[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final double[] weights;
+		private final int from;
+		private final int to;
+
+		Gradient(final double[] weights, final int from, final int to)
+		{
+			this.weights = weights;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected double[] compute()
+		{
+			if(to - from > CHUNK)
+			{
+				final int middle = (from + to) >>> 1;
+				final Gradient left = new Gradient(weights, from, middle);
+				left.fork();
+				final double[] sum = new Gradient(weights, middle, to).compute();
+				final double[] other = left.join();
+				for(int f = 0; f < sum.length; f++)
+					sum[f] += other[f];
+				return sum;
+			}
+			final double[] sum = new double[featureCount + 1];
+			for(int i = from; i < to; i++)
+			{
+				if(results[i] == NO_RESULT)
+					continue;
+				final int base = i * featureCount;
+				double eval = 0;
+				for(int f = 0; f < featureCount; f++)
+					eval += weights[f] * features[base + f];
+				final double predicted = 1 / (1 + Math.exp(-SCALE * eval));
+				final double actual = results[i] * 0.5;
+				final double error = (predicted - actual) * SCALE;
+				for(int f = 0; f < featureCount; f++)
+					sum[f] += error * features[base + f];
+				sum[featureCount] -= actual * Math.log(Math.max(predicted, 1e-12))
+					+ (1 - actual) * Math.log(Math.max(1 - predicted, 1e-12));
+			}
+			return sum;
+		}
+	}
+
+	/// Returns the number of positions read.
+	public int getPositionCount()
+	{
+		return positionCount;
+	}
+
+	/// Returns the number of positions read whose game has a result, the ones tuned on.
+	public int getLabelledCount()
+	{
+		return labelledCount;
+	}
+
+	/// Returns the width of the board of the positions.
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/// Returns the height of the board of the positions.
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/// Returns the win length of the positions.
+	public int getWinLength()
+	{
+		return winLength;
+	}
+
+	/// Returns the mean loss of a set of weights over the positions with a result.
+	public double loss(final EvalWeights weights)
+	{
+		final double[] values = new double[featureCount];
+		for(int f = 0; f < featureCount; f++)
+			values[f] = weights.get(f);
+		return pool.invoke(new Gradient(values, 0, positionCount))[featureCount] / labelledCount;
+	}
+
+	/// Fits the weights to the positions.
+	/**
+	 * @param start The weights to start from.
+	 * @param epochs Number of passes over the positions.
+	 * @param rate The learning rate.
+	 * @param log Where to print progress, or null.
+	 * @return The fitted weights.
+	 */
+	public EvalWeights tune(final EvalWeights start, final int epochs, final double rate, final PrintStream log)
+	{
+		final double[] weights = new double[featureCount];
+		for(int f = 0; f < featureCount; f++)
+			weights[f] = start.get(f);
+		final double[] moment = new double[featureCount];
+		final double[] velocity = new double[featureCount];
+
+		for(int epoch = 1; epoch <= epochs; epoch++)
+		{
+			final double[] sum = pool.invoke(new Gradient(weights, 0, positionCount));
+			for(int f = 0; f < featureCount; f++)
+			{
+				final double gradient = sum[f] / labelledCount;
+				moment[f] = BETA1 * moment[f] + (1 - BETA1) * gradient;
+				velocity[f] = BETA2 * velocity[f] + (1 - BETA2) * gradient * gradient;
+				final double m = moment[f] / (1 - Math.pow(BETA1, epoch));
+				final double v = velocity[f] / (1 - Math.pow(BETA2, epoch));
+				weights[f] -= rate * m / (Math.sqrt(v) + EPSILON);
+			}
+			if(log != null && (epoch % 50 == 0 || epoch == 1))
+				log.printf("Epoch %d: loss %.5f%n", epoch, sum[featureCount] / labelledCount);
+		}
+		return new EvalWeights(width, height, winLength, weights);
+	}
+
+	/// Stops the worker threads.
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/// Prints the commandline instructions.
+	public static void helpPrinter()
+	{
+		System.out.println("  Command Line Parameters are as follows:");
+		System.out.println("    \"--help\" : You're looking at it");
+		System.out.println("    \"-positions [file]\" : Positions written by SelfPlay");
+		System.out.println("      Example: -positions positions.c4p");
+		System.out.println("    \"-init [file]\" : Weights to start from (default: DeepConnect's defaults)");
+		System.out.println("      Example: -init weights.properties");
+		System.out.println("    \"-o [file]\" : Where to write the tuned weights (default: weights.properties)");
+		System.out.println("      Example: -o weights.properties");
+		System.out.println("    \"-epochs [int]\" : Number of passes over the positions (default: 500)");
+		System.out.println("      Example: -epochs 1000");
+		System.out.println("    \"-rate [double]\" : Learning rate (default: 0.05)");
+		System.out.println("      Example: -rate 0.1");
+		System.out.println("    \"-threads [int]\" : Number of threads (default: all cores)");
+		System.out.println("      Example: -threads 4");
+	}
+
+	/// Program startup function.
+	public static void main(String[] args)
+	{
+		String positions = null;
+		String init = null;
+		String output = EvalWeights.DEFAULT_FILE;
+		int epochs = 500;
+		double rate = 0.05;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Parse through the command line arguements
+		try
+		{
+			int i = 0;
+			while(i < args.length)
+			{
+				if(args[i].equalsIgnoreCase("-positions"))
+					positions = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-init"))
+					init = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-o"))
+					output = args[i + 1];
+				else if(args[i].equalsIgnoreCase("-epochs"))
+				{
+					epochs = Integer.parseInt(args[i + 1]);
+					if(epochs <= 0)
+						throw new IllegalArgumentException("Epoch count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-rate"))
+				{
+					rate = Double.parseDouble(args[i + 1]);
+					if(rate <= 0)
+						throw new IllegalArgumentException("Learning rate must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("-threads"))
+				{
+					threads = Integer.parseInt(args[i + 1]);
+					if(threads <= 0)
+						throw new IllegalArgumentException("Thread count must be positive");
+				}
+				else if(args[i].equalsIgnoreCase("--help"))
+				{
+					helpPrinter();
+					System.exit(0);
+				}
+				else
+					throw new IllegalArgumentException();
+				i += 2;
+			}
+			if(positions == null)
+				throw new IllegalArgumentException("A position file is needed.");
+		}
+		catch(IndexOutOfBoundsException ioob)
+		{
+			System.err.println("Invalid Arguments");
+			System.exit(2);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println("Invalid Number: " + e.getMessage());
+			System.exit(3);
+		}
+		catch(IllegalArgumentException ia)
+		{
+			System.err.println("Invalid Arguments: " + ia.getMessage());
+			System.exit(4);
+		}
+
+		try
+		{
+			long start = System.nanoTime();
+			final Tuner tuner = new Tuner(new File(positions), threads);
+			System.out.printf("Read %d positions in %.1f s%n", tuner.getPositionCount(),
+							  (System.nanoTime() - start) / 1e9);
+			if(tuner.getLabelledCount() < tuner.getPositionCount())
+				System.out.printf("Skipping %d positions from games without a result%n",
+								  tuner.getPositionCount() - tuner.getLabelledCount());
+			if(tuner.getLabelledCount() == 0)
+				throw new IOException("No positions to tune on");
+
+			final EvalWeights initial = init != null ? EvalWeights.load(new File(init))
+				: EvalWeights.defaults(tuner.getWidth(), tuner.getHeight(), tuner.getWinLength());
+			if(!initial.isFor(tuner.getWidth(), tuner.getHeight(), tuner.getWinLength()))
+				throw new IOException("Initial weights are for a different board size or win length");
+			System.out.printf("Start: %s, loss %.5f%n", initial, tuner.loss(initial));
+
+			start = System.nanoTime();
+			final EvalWeights tuned = tuner.tune(initial, epochs, rate, System.out);
+			final double loss = tuner.loss(tuned);
+			System.out.printf("Tuned: %s, loss %.5f in %.1f s%n", tuned, loss, (System.nanoTime() - start) / 1e9);
+			tuned.save(new File(output), String.format("Tuned on %d positions from %s, loss %.5f",
+													   tuner.getLabelledCount(), positions, loss));
+			tuner.shutdown();
+		}
+		catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
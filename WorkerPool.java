@@ -0,0 +1,238 @@
+// (c) Scott Madera, Cameron Lee
+
+import java.util.concurrent.*;
+
+/// Fixed set of threads that run AI moves, with the deadlines kept by a TimerWheel.
+/**
+ * A move's time starts when a thread picks it up, not while it waits in the queue.
+ * The wheel sets the AI's terminate flag when the time is up and gives up on the move
+ * if the AI has not returned by a later time of the caller's choosing, normally
+ * GRACE_NANOS after.  The thread left inside such an AI is replaced at once, so AIs
+ * that ignore terminate cannot tie up every thread and leave the queued moves
+ * waiting forever; the extra thread goes away again once the stuck AI returns.
+ *
+ * @see GameScheduler
+ * @see MoveServer
+ */
+public final class WorkerPool implements Executor
+{
+	/// Time an AI has to return after its terminate flag is set, in nanoseconds.
+	static final long GRACE_NANOS = 100 * 1000000L;
+
+	private final ThreadPoolExecutor threads;
+	private final TimerWheel timer;
+	/// Number of threads asked for.
+	private final int size;
+	/// Number of threads stuck in an AI past its grace period.  Guarded by threads.
+	private int stuck = 0;
+
+	/// One move waiting for or running on a thread.
+	private final class Move implements Runnable
+	{
+		final AIModule ai;
+		final GameStateModule state;
+		final long limit;
+		final long allocation;
+		final long increment;
+		final long giveUp;
+		final String name;
+		final CompletableFuture<Integer> result;
+		/// When a thread picked the move up, or 0 while it is queued.
+		volatile long started = 0;
+		/// Whether the move was given up on while the AI was still running.  Guarded by this.
+		boolean abandoned = false;
+		/// Gives up on the move once it has overrun its grace period.
+		final Runnable watchdog = new Runnable()
+		{
+			public void run()
+			{
+				check();
+			}
+		};
+
+		Move(final AIModule ai, final GameStateModule state, final long limit, final long allocation,
+			 final long increment, final long giveUp, final String name, final CompletableFuture<Integer> result)
+		{
+			this.ai = ai;
+			this.state = state;
+			this.limit = limit;
+			this.allocation = allocation;
+			this.increment = increment;
+			this.giveUp = giveUp;
+			this.name = name;
+			this.result = result;
+		}
+
+		public void run()
+		{
+			ai.startClock(limit, allocation, increment);
+			started = ai.started;
+			final TimerWheel.Timeout stop = timer.schedule(limit, new Runnable()
+			{
+				public void run()
+				{
+					ai.stoppedAt = System.nanoTime();
+					ai.terminate = true;
+				}
+			});
+			final long cpu = MoveStats.cpuTime();
+			try
+			{
+				ai.getNextMove(state);
+				ai.finished = System.nanoTime();
+				ai.cpuUsed = cpu < 0 ? -1 : MoveStats.cpuTime() - cpu;
+				result.complete(ai.chosenMove);
+			}
+			catch(Throwable t)
+			{
+				result.completeExceptionally(t);
+			}
+			finally
+			{
+				stop.cancel();
+				synchronized(this)
+				{
+					if(abandoned)
+						recover();
+				}
+			}
+		}
+
+		/// Run by the timer: waits on while the move is queued or within its time.
+		void check()
+		{
+			if(result.isDone())
+				return;
+			final long start = started;
+			// A queued move has used none of its time yet
+			final long left = start == 0 ? giveUp : start + giveUp - System.nanoTime();
+			if(left > 0)
+			{
+				timer.schedule(left, watchdog);
+				return;
+			}
+			synchronized(this)
+			{
+				if(result.completeExceptionally(new TimeoutException(name + " did not terminate when told to do so.")))
+				{
+					abandoned = true;
+					replace();
+				}
+			}
+		}
+	}
+
+	/// Primary Constructor.
+	/**
+	 * @param size Number of threads on which AIs may compute at once.
+	 * @param name Prefix of the threads' names.
+	 * @param timer Timer wheel used to tell the AIs when to stop.
+	 */
+	public WorkerPool(final int size, final String name, final TimerWheel timer)
+	{
+		this.size = size;
+		this.timer = timer;
+		threads = new ThreadPoolExecutor(size, size, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+										 GameScheduler.daemonThreads(name));
+	}
+
+	/// Runs a move of an AI on one of the threads.
+	/**
+	 * The watchdog that gives up on the move is armed right away, so a move still has a
+	 * timer while it waits in the queue.
+	 *
+	 * @param ai The AIModule to call.
+	 * @param state The copy of the game to hand to the AI.
+	 * @param limit Time until the terminate flag is set in nanoseconds.
+	 * @param allocation Time the AI should plan to use in nanoseconds.
+	 * @param increment Time added to the AI's clock after each move in nanoseconds.
+	 * @param giveUp Time after which the move is given up in nanoseconds, at least limit.
+	 * @param name Label given to the AI in the timeout message.
+	 * @return Completes with the AI's chosenMove, with a TimeoutException if the AI did
+	 *         not return in time, or with whatever the AI threw.
+	 */
+	public CompletableFuture<Integer> move(final AIModule ai, final GameStateModule state, final long limit,
+										   final long allocation, final long increment, final long giveUp,
+										   final String name)
+	{
+		final Move move = new Move(ai, state, limit, allocation, increment, giveUp, name,
+								   new CompletableFuture<Integer>());
+		timer.schedule(giveUp, move.watchdog);
+		threads.execute(move);
+		return move.result;
+	}
+
+	/// Runs a move of an AI on the calling thread, which must be one of this pool's.
+	/**
+	 * For tasks that run several moves back to back.  The result is completed as by
+	 * move, and if the AI overruns it is completed by the timer while the AI is still
+	 * running; the calling thread is then replaced until the AI returns.  Callers that
+	 * must react to an overrun at once should add their handlers to result first.
+	 *
+	 * @param ai The AIModule to call.
+	 * @param state The copy of the game to hand to the AI.
+	 * @param limit Time until the terminate flag is set in nanoseconds.
+	 * @param allocation Time the AI should plan to use in nanoseconds.
+	 * @param increment Time added to the AI's clock after each move in nanoseconds.
+	 * @param giveUp Time after which the move is given up in nanoseconds, at least limit.
+	 * @param name Label given to the AI in the timeout message.
+	 * @param result Future to complete with the AI's chosenMove.
+	 */
+	public void moveHere(final AIModule ai, final GameStateModule state, final long limit, final long allocation,
+						 final long increment, final long giveUp, final String name,
+						 final CompletableFuture<Integer> result)
+	{
+		final Move move = new Move(ai, state, limit, allocation, increment, giveUp, name, result);
+		timer.schedule(giveUp, move.watchdog);
+		move.run();
+	}
+
+	/// Runs any other task on one of the threads.
+	public void execute(final Runnable task)
+	{
+		threads.execute(task);
+	}
+
+	/// Adds a thread in place of one that is stuck in an AI.
+	private void replace()
+	{
+		synchronized(threads)
+		{
+			stuck++;
+			threads.setMaximumPoolSize(size + stuck);
+			threads.setCorePoolSize(size + stuck);
+		}
+	}
+
+	/// Drops the thread added by replace once the stuck AI has returned.
+	private void recover()
+	{
+		synchronized(threads)
+		{
+			stuck--;
+			threads.setCorePoolSize(size + stuck);
+			threads.setMaximumPoolSize(size + stuck);
+		}
+	}
+
+	/// Returns the number of threads stuck in an AI past its grace period.
+	public int getStuck()
+	{
+		synchronized(threads)
+		{
+			return stuck;
+		}
+	}
+
+	/// Returns the number of tasks waiting for a thread.
+	public int getQueued()
+	{
+		return threads.getQueue().size();
+	}
+
+	/// Lets the threads exit once the queued tasks are done.
+	public void shutdown()
+	{
+		threads.shutdown();
+	}
+}